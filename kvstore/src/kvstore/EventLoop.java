@@ -0,0 +1,381 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread of a SocketServer running in event loop mode. The loop
+ * owns a set of non-blocking connections and does all of their reads and
+ * writes. Only once a request has been read in full and decoded is it handed
+ * to the FrameHandler; the response comes back through a Responder and is
+ * written out by the loop again. Requests on one connection are dispatched
+ * one at a time, so pipelined binary requests are answered in order.
+ */
+class EventLoop implements Runnable {
+
+    private static final int TIMEOUT = 100;
+    private static final int BUFFER_SIZE = 4096;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private FrameHandler handler;
+    private Selector selector;
+    private ConcurrentLinkedQueue<SocketChannel> accepted;
+    private ConcurrentLinkedQueue<Connection> responded;
+    private volatile boolean stopped = false;
+    private long lastSweep;
+
+    /**
+     * Constructs an EventLoop that dispatches requests to the given handler.
+     *
+     * @param handler FrameHandler that services decoded requests
+     * @throws IOException if unable to open a Selector
+     */
+    public EventLoop(FrameHandler handler) throws IOException {
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.accepted = new ConcurrentLinkedQueue<SocketChannel>();
+        this.responded = new ConcurrentLinkedQueue<Connection>();
+    }
+
+    /**
+     * Hands a newly accepted connection over to this loop.
+     *
+     * @param channel SocketChannel connected to the client
+     */
+    public void register(SocketChannel channel) {
+        accepted.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the loop. All of its connections are closed no more than TIMEOUT
+     * milliseconds later.
+     */
+    public void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                selector.select(TIMEOUT);
+                registerAccepted();
+                writeResponded();
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            conn.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.write();
+                        }
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+                sweepIdle();
+            }
+        } catch (IOException e) {
+            // selector failed, nothing else we can do
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                closeQuietly(channel);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore error
+            }
+        }
+    }
+
+    private void registerAccepted() {
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void writeResponded() {
+        Connection conn;
+        while ((conn = responded.poll()) != null) {
+            try {
+                conn.startWrite();
+            } catch (IOException e) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Closes connections with no request outstanding that have been idle for
+     * longer than KVConnection.KEEPALIVE_TIMEOUT. Runs about once a second.
+     */
+    private void sweepIdle() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < 1000) {
+            return;
+        }
+        lastSweep = now;
+        ArrayList<Connection> idle = new ArrayList<Connection>();
+        for (SelectionKey key : selector.keys()) {
+            Connection conn = (Connection) key.attachment();
+            if (!conn.busy && now - conn.lastActive > KVConnection.KEEPALIVE_TIMEOUT) {
+                idle.add(conn);
+            }
+        }
+        for (Connection conn : idle) {
+            conn.close();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore error
+        }
+    }
+
+    /**
+     * State of one client connection. Only touched by the loop thread, except
+     * for the response handed over by respond().
+     */
+    private class Connection implements FrameHandler.Responder {
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in;
+        private ByteBuffer out;
+        private volatile ByteBuffer response;
+        private boolean negotiated, binary;
+        private boolean busy, eof;
+        private volatile boolean closed;
+        private long lastActive;
+
+        public Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.in = ByteBuffer.allocate(BUFFER_SIZE);
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        /**
+         * Reads whatever is available. While a request is being serviced the
+         * following bytes are only buffered, and reading pauses once the
+         * buffer fills up.
+         */
+        public void read() throws IOException {
+            if (!in.hasRemaining()) {
+                if (busy) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+                grow(in.capacity() * 2);
+            }
+            int n = channel.read(in);
+            lastActive = System.currentTimeMillis();
+            if (n < 0) {
+                eof = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if (!negotiated && in.position() > 0) {
+                binary = ((in.get(0) & 0xFF) == KVMessage.BINARY_MAGIC);
+                negotiated = true;
+            }
+            if (!busy) {
+                dispatch();
+            }
+        }
+
+        /**
+         * Dispatches the next complete request in the buffer, if any.
+         */
+        private void dispatch() {
+            if (!binary) {
+                if (in.position() > KVMessage.MAX_FRAME_SIZE) {
+                    close();
+                } else if (eof) {
+                    // an XML message runs until EOF
+                    busy = true;
+                    byte[] bytes = new byte[in.position()];
+                    in.flip();
+                    in.get(bytes);
+                    in.clear();
+                    KVMessage request;
+                    try {
+                        request = new KVMessage(new ByteArrayInputStream(bytes));
+                    } catch (KVException kve) {
+                        respond(kve.getKVMessage());
+                        return;
+                    }
+                    handler.handle(request, this);
+                }
+                return;
+            }
+            if (in.position() == 0) {
+                if (eof) {
+                    close();
+                }
+                return;
+            }
+            if ((in.get(0) & 0xFF) != KVMessage.BINARY_MAGIC) {
+                close(); // stream is out of sync
+                return;
+            }
+            int length = 0;
+            int header = 1;
+            for (int shift = 0; ; shift += 7) {
+                if (header >= in.position()) {
+                    if (eof) {
+                        close();
+                    }
+                    return; // header not complete yet
+                }
+                int b = in.get(header++) & 0xFF;
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                if (shift >= 28) {
+                    close();
+                    return;
+                }
+            }
+            if (length < 0 || length > KVMessage.MAX_FRAME_SIZE) {
+                close();
+                return;
+            }
+            if (in.position() < header + length) {
+                if (eof) {
+                    close();
+                } else if (in.capacity() < header + length) {
+                    grow(header + length);
+                }
+                return;
+            }
+            byte[] body = new byte[length];
+            in.flip();
+            in.position(header);
+            in.get(body);
+            in.compact();
+            busy = true;
+            KVMessage request;
+            try {
+                request = KVMessage.fromBinary(body);
+            } catch (KVException kve) {
+                // a well-framed but invalid message leaves the connection usable
+                respond(kve.getKVMessage());
+                return;
+            }
+            handler.handle(request, this);
+        }
+
+        /**
+         * Encodes the response on the calling thread and queues it for the
+         * loop to write out.
+         *
+         * @param msg KVMessage to send back to the client
+         */
+        @Override
+        public void respond(KVMessage msg) {
+            byte[] bytes;
+            try {
+                bytes = encode(msg);
+            } catch (KVException kve) {
+                try {
+                    bytes = encode(kve.getKVMessage());
+                } catch (KVException e) {
+                    bytes = new byte[0];
+                }
+            }
+            response = ByteBuffer.wrap(bytes);
+            responded.add(this);
+            selector.wakeup();
+        }
+
+        private byte[] encode(KVMessage msg) throws KVException {
+            if (binary) {
+                return msg.toBinary();
+            }
+            return msg.toXML().getBytes(UTF8);
+        }
+
+        public void startWrite() throws IOException {
+            if (closed) {
+                return;
+            }
+            out = response;
+            response = null;
+            write();
+        }
+
+        /**
+         * Writes out as much of the pending response as the socket accepts.
+         * Once it has all been written, an XML connection is closed and a
+         * binary one moves on to its next buffered request.
+         */
+        public void write() throws IOException {
+            channel.write(out);
+            lastActive = System.currentTimeMillis();
+            if (out.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            out = null;
+            busy = false;
+            if (!binary) {
+                close();
+                return;
+            }
+            int ops = SelectionKey.OP_READ;
+            if (eof) {
+                ops = 0;
+            }
+            key.interestOps(ops);
+            dispatch();
+        }
+
+        private void grow(int capacity) {
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+}
@@ -0,0 +1,270 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which entry of a full KVCache set makes room for a new one. A
+ * policy is chosen when the cache is constructed and belongs to that one
+ * cache; use the factory methods to get a fresh instance.
+ *
+ * The hooks that report accesses run under the read lock of the set, so
+ * they may run concurrently; chooseVictim runs under the write lock.
+ */
+public abstract class EvictionPolicy {
+
+    /**
+     * The policy KVCache has always used: sweep the set from its head,
+     * clearing reference bits, and replace the first unreferenced entry.
+     */
+    public static EvictionPolicy secondChance() {
+        return new SecondChance();
+    }
+
+    /**
+     * Replace the least recently used entry of the set.
+     */
+    public static EvictionPolicy lru() {
+        return new LeastRecentlyUsed();
+    }
+
+    /**
+     * W-TinyLFU: the newest entry of each set is its window and is always
+     * admitted. Once a newer key arrives, the window entry competes with the
+     * second-chance victim of the rest of the set, and whichever key has
+     * been used less often, by a count-min sketch of recent accesses, is
+     * dropped. A scan of keys used once cannot push out frequently used
+     * ones.
+     */
+    public static EvictionPolicy tinyLfu() {
+        return new TinyLfu();
+    }
+
+    private boolean attached;
+
+    /**
+     * Called once by the cache that owns the policy.
+     *
+     * @param numSets the number of sets of the cache
+     * @param maxElemsPerSet the size of each set
+     * @throws IllegalStateException if the policy already belongs to a cache
+     */
+    synchronized void attach(int numSets, int maxElemsPerSet) {
+        if (attached) {
+            throw new IllegalStateException("policy already belongs to a cache");
+        }
+        attached = true;
+    }
+
+    /**
+     * Prepares the per-entry state a new set needs.
+     */
+    void initSet(KVCache.CacheSet set) {
+    }
+
+    /**
+     * A key was looked up or written, whether or not it is cached.
+     */
+    void recordAccess(String key) {
+    }
+
+    /**
+     * A lookup found the entry in a slot.
+     */
+    void recordHit(KVCache.CacheSet set, int slot) {
+        set.setRef(slot);
+    }
+
+    /**
+     * A new entry was stored in a slot, behind the existing entries.
+     */
+    void recordInsert(KVCache.CacheSet set, int slot) {
+    }
+
+    /**
+     * Chooses an entry to remove from a set to make room for a key. The
+     * cache asks again while the set is still full or over its budget.
+     *
+     * @param set a set with at least one entry
+     * @param key the key to be stored
+     * @return the slot of the entry, or -1 to leave the key out of the cache
+     */
+    abstract int chooseVictim(KVCache.CacheSet set, String key);
+
+    static class SecondChance extends EvictionPolicy {
+
+        @Override
+        int chooseVictim(KVCache.CacheSet set, String key) {
+            return set.sweep(-1);
+        }
+    }
+
+    static class LeastRecentlyUsed extends EvictionPolicy {
+
+        @Override
+        void initSet(KVCache.CacheSet set) {
+            set.stamps = new AtomicLongArray(set.capacity());
+        }
+
+        @Override
+        void recordHit(KVCache.CacheSet set, int slot) {
+            set.stamps.lazySet(slot, System.nanoTime());
+        }
+
+        @Override
+        void recordInsert(KVCache.CacheSet set, int slot) {
+            set.stamps.set(slot, System.nanoTime());
+        }
+
+        @Override
+        int chooseVictim(KVCache.CacheSet set, String key) {
+            int victim = set.slot(0);
+            for (int n = 1; n < set.size(); n++) {
+                int slot = set.slot(n);
+                if (set.stamps.get(slot) - set.stamps.get(victim) < 0) {
+                    victim = slot;
+                }
+            }
+            return victim;
+        }
+    }
+
+    static class TinyLfu extends EvictionPolicy {
+
+        private FrequencySketch sketch;
+
+        @Override
+        synchronized void attach(int numSets, int maxElemsPerSet) {
+            super.attach(numSets, maxElemsPerSet);
+            sketch = new FrequencySketch(numSets * maxElemsPerSet);
+        }
+
+        @Override
+        void recordAccess(String key) {
+            sketch.increment(key);
+        }
+
+        @Override
+        void recordInsert(KVCache.CacheSet set, int slot) {
+            set.window = slot;
+        }
+
+        @Override
+        int chooseVictim(KVCache.CacheSet set, String key) {
+            int window = set.window;
+            if (window < 0 || set.size() == 1) {
+                // nothing to compete with; the new key takes the window
+                return window < 0 ? set.sweep(-1) : window;
+            }
+            int victim = set.sweep(window);
+            if (sketch.frequency(set.key(window)) > sketch.frequency(set.key(victim))) {
+                // the window entry joins the rest of the set
+                return victim;
+            }
+            return window;
+        }
+    }
+
+    /**
+     * A count-min sketch of how often keys were accessed recently, with
+     * four 4-bit counters per key spread over rows of a table of longs. Once
+     * ten times as many accesses as the cache holds entries have been
+     * counted, every counter is halved so old popularity fades. Counters are
+     * updated with compare-and-set, so any number of threads may count.
+     */
+    static class FrequencySketch {
+
+        private static final long[] SEEDS = {
+            0x97cb3127L, 0xc3a5c85cL, 0xb492b66fL, 0x9ae16a3bL
+        };
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        private AtomicLongArray table;
+        private int tableMask;
+        private int sampleSize;
+        private AtomicInteger additions;
+
+        /**
+         * @param capacity the number of entries of the cache being sized for
+         */
+        public FrequencySketch(int capacity) {
+            int length = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+            table = new AtomicLongArray(length);
+            tableMask = length - 1;
+            sampleSize = 10 * Math.max(capacity, 1);
+            additions = new AtomicInteger();
+        }
+
+        /**
+         * Counts an access to a key.
+         */
+        public void increment(String key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                added |= incrementAt(index(hash, row), offset(hash, row));
+            }
+            if (added && additions.incrementAndGet() == sampleSize) {
+                reset();
+            }
+        }
+
+        /**
+         * Estimates the recent accesses to a key, at most 15.
+         */
+        public int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int row = 0; row < 4; row++) {
+                long word = table.get(index(hash, row));
+                frequency = Math.min(frequency, (int) ((word >>> offset(hash, row)) & 0xF));
+            }
+            return frequency;
+        }
+
+        private boolean incrementAt(int index, int offset) {
+            long mask = 0xFL << offset;
+            while (true) {
+                long word = table.get(index);
+                if ((word & mask) == mask) {
+                    return false;
+                }
+                if (table.compareAndSet(index, word, word + (1L << offset))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Halves every counter. Increments racing with this may be lost,
+         * which only makes the estimates a little lower.
+         */
+        private void reset() {
+            for (int i = 0; i < table.length(); i++) {
+                long word;
+                do {
+                    word = table.get(i);
+                } while (!table.compareAndSet(i, word, (word >>> 1) & HALF_MASK));
+            }
+            additions.addAndGet(-sampleSize / 2);
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & tableMask;
+        }
+
+        /* each row has its own four counters in a word; pick one by hash */
+        private static int offset(int hash, int row) {
+            return ((row << 2) + ((hash >>> (row << 3)) & 3)) << 2;
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.lang.ref.WeakReference;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A bounded pool of binary connections to one server, each lent to one
+ * caller at a time. Unlike KVConnectionPool, which pipelines whole
+ * request-response exchanges, a borrower may send on several connections
+ * before it reads from any, as the master does with the replicas of a
+ * transaction. The server has to keep a connection open between requests
+ * and answer them in order, as KVConnection.serve does. Idle connections
+ * are closed in the background once they time out, so a pool no one
+ * borrows from does not keep server threads waiting on them.
+ */
+public abstract class ExclusiveConnectionPool {
+
+    /**
+     * How long a connection may sit idle in the pool before it is closed
+     * instead of lent out again.
+     */
+    public static final int IDLE_TIMEOUT = KVConnectionPool.IDLE_TIMEOUT;
+
+    /* one daemon thread closes idle connections for every pool */
+    private static final Timer REAPER = new Timer("kvstore-pool-reaper", true);
+
+    private int maxConnections;
+    private int idleTimeout;
+    private TimerTask reaper;
+    /* connections lent out or idle in the pool */
+    private int open;
+    /* most recently returned first */
+    private ArrayDeque<Idle> idle;
+    private boolean closed;
+
+    /**
+     * Constructs an empty pool; connections are opened as they are needed,
+     * and closed after sitting idle for IDLE_TIMEOUT.
+     *
+     * @param maxConnections most connections to keep open at once
+     */
+    public ExclusiveConnectionPool(int maxConnections) {
+        this(maxConnections, IDLE_TIMEOUT);
+    }
+
+    /**
+     * Constructs an empty pool; connections are opened as they are needed.
+     *
+     * @param maxConnections most connections to keep open at once
+     * @param idleTimeout milliseconds a connection may sit idle before it
+     *        is closed
+     */
+    public ExclusiveConnectionPool(int maxConnections, int idleTimeout) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("need at least one connection");
+        }
+        if (idleTimeout < 1) {
+            throw new IllegalArgumentException("idle timeout must be positive");
+        }
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.idle = new ArrayDeque<Idle>(maxConnections);
+        this.reaper = new Reaper(this);
+        int period = Math.max(idleTimeout / 2, 1);
+        REAPER.schedule(reaper, period, period);
+    }
+
+    /**
+     * Creates a KVConnection to the server for the pool.
+     *
+     * @param timeout how long to wait for the connection, in milliseconds
+     * @return a new connection speaking the binary format
+     * @throws KVException if unable to connect
+     */
+    protected abstract KVConnection openConnection(int timeout) throws KVException;
+
+    /**
+     * Lends a connection: the most recently returned one that is still
+     * healthy, or a new one if there is none and the pool is not full.
+     * Otherwise waits for a connection to be returned.
+     *
+     * @param timeout how long to wait for a free connection, and then to
+     *        open one, in milliseconds
+     * @param fresh true to open a new connection even if idle ones remain
+     * @return a connection no one else is using
+     * @throws KVException with ERROR_SOCKET_TIMEOUT if every connection
+     *         stayed lent out, or as openConnection
+     */
+    public KVConnection borrow(int timeout, boolean fresh) throws KVException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (true) {
+                evictIdle();
+                if (!fresh && !idle.isEmpty()) {
+                    return idle.pollFirst().connection;
+                }
+                if (open >= maxConnections && !idle.isEmpty()) {
+                    idle.pollLast().connection.close();
+                    open--;
+                }
+                if (open < maxConnections || closed) {
+                    open++;
+                    break;
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new KVException(ERROR_SOCKET_TIMEOUT);
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException ie) {
+                    // ignore and check again
+                }
+            }
+        }
+        try {
+            return openConnection(timeout);
+        } catch (KVException kve) {
+            synchronized (this) {
+                open--;
+                notifyAll();
+            }
+            throw kve;
+        }
+    }
+
+    /**
+     * Takes back a lent connection. It is kept for the next borrower if it
+     * is still healthy, and closed otherwise.
+     *
+     * @param connection a connection from borrow, with every response to
+     *        the requests sent on it read
+     */
+    public synchronized void giveBack(KVConnection connection) {
+        if (isHealthy(connection)) {
+            idle.addFirst(new Idle(connection));
+        } else {
+            connection.close();
+            open--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Closes a lent connection that must not be reused, such as one a
+     * response was abandoned on.
+     *
+     * @param connection a connection from borrow
+     */
+    public synchronized void discard(KVConnection connection) {
+        connection.close();
+        open--;
+        notifyAll();
+    }
+
+    /**
+     * Number of connections currently open, lent out or idle.
+     */
+    public synchronized int size() {
+        return open;
+    }
+
+    /**
+     * Number of connections waiting in the pool to be lent out.
+     */
+    public synchronized int idleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Closes every idle connection. Connections lent out are closed as they
+     * are given back or discarded. The pool still lends new connections
+     * afterwards, so borrowers holding on to it can finish their work, but
+     * no longer keeps them.
+     */
+    public synchronized void close() {
+        closed = true;
+        reaper.cancel();
+        evictIdle();
+        notifyAll();
+    }
+
+    /* caller holds the monitor */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Idle> iter = idle.iterator();
+        while (iter.hasNext()) {
+            Idle entry = iter.next();
+            if (now - entry.since > idleTimeout || !isHealthy(entry.connection)) {
+                iter.remove();
+                entry.connection.close();
+                open--;
+            }
+        }
+    }
+
+    /**
+     * Best-effort health check: no send or receive on the connection has
+     * failed, its socket is open, and nothing is waiting to be read, on the
+     * socket or already buffered by the connection, which would be a
+     * response no one asked for. A connection the server has
+     * closed may still pass until it is used.
+     */
+    private boolean isHealthy(KVConnection connection) {
+        if (closed || connection.isBroken()) {
+            return false;
+        }
+        Socket sock = connection.getSocket();
+        if (sock.isClosed() || sock.isInputShutdown() || sock.isOutputShutdown()) {
+            return false;
+        }
+        return !connection.hasUnreadData();
+    }
+
+    /**
+     * Evicts the idle connections of a pool from the REAPER thread. Only a
+     * weak reference is kept, so a pool that is dropped without being
+     * closed can still be collected.
+     */
+    private static class Reaper extends TimerTask {
+
+        private WeakReference<ExclusiveConnectionPool> pool;
+
+        public Reaper(ExclusiveConnectionPool pool) {
+            this.pool = new WeakReference<ExclusiveConnectionPool>(pool);
+        }
+
+        @Override
+        public void run() {
+            ExclusiveConnectionPool target = pool.get();
+            if (target == null) {
+                cancel();
+                return;
+            }
+            synchronized (target) {
+                target.evictIdle();
+                target.notifyAll();
+            }
+        }
+    }
+
+    private static class Idle {
+
+        private KVConnection connection;
+        private long since;
+
+        public Idle(KVConnection connection) {
+            this.connection = connection;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package kvstore;
+
+/**
+ * Interface for NetworkHandlers that can also service requests which a
+ * selector-based SocketServer has already read and decoded, so no thread
+ * has to block on the connection while waiting for a request.
+ */
+public interface FrameHandler extends NetworkHandler {
+
+    /**
+     * Creates a job to service a decoded request and returns immediately
+     * after enqueuing that job. The job passes exactly one response to the
+     * responder when it is done, or closes the responder instead.
+     *
+     * @param request KVMessage received from the other endpoint
+     * @param responder where to deliver the response
+     */
+    public void handle(KVMessage request, Responder responder);
+
+    /**
+     * Receives the response to a request passed to a FrameHandler.
+     */
+    public interface Responder {
+
+        /**
+         * Queues a response to be written back to the other endpoint.
+         *
+         * @param response KVMessage to send back
+         */
+        public void respond(KVMessage response);
+
+        /**
+         * Closes the connection instead of responding.
+         */
+        public void close();
+    }
+
+}
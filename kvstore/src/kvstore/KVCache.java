@@ -1,10 +1,10 @@
 package kvstore;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.*;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -20,13 +20,28 @@ import org.w3c.dom.*;
  * A set-associate cache which has a fixed maximum number of sets (numSets).
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is removed based on
- * the eviction policy.
+ * the eviction policy. A cache may also be given a budget of bytes, split
+ * evenly between its sets; a set then also removes entries while the new
+ * entry would take it over its share. Such a cache can keep its values
+ * off the heap.
+ *
+ * The number of locks is fixed when the cache is constructed. The cache can
+ * be resized online to any multiple of that many sets, so each lock guards
+ * a fixed group of keys however many sets they are spread over.
  */
 public class KVCache implements KeyValueInterface {
 	
-	ArrayList<LinkedList<CacheEntry>> cache;
-	ReentrantLock[] locks;
+	volatile CacheSet[] cache;
+	ReentrantReadWriteLock[] locks;
 	int maxElemsPerSet;
+	long maxBytes;
+	boolean offHeap;
+	EvictionPolicy policy;
+	/* while resizing, the new sets, and how many locks' keys are in them */
+	private volatile CacheSet[] resized;
+	private volatile int migrated;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
     /**
      * Constructs a second-chance-replacement cache.
@@ -35,28 +50,167 @@ public class KVCache implements KeyValueInterface {
      * @param maxElemsPerSet the size of each set
      */
     public KVCache(int numSets, int maxElemsPerSet) {
-    	cache = new ArrayList<LinkedList<CacheEntry>>(numSets);
-    	locks = new ReentrantLock[numSets];
+    	this(numSets, maxElemsPerSet, EvictionPolicy.secondChance());
+    }
+
+    /**
+     * Constructs a cache that evicts with the given policy.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy a policy not used by any other cache
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy policy) {
+    	this(numSets, maxElemsPerSet, Long.MAX_VALUE, policy);
+    }
+
+    /**
+     * Constructs a cache limited by the size of its entries as well as
+     * their number, so that it can be sized against the heap. An entry
+     * weighs two bytes per character of its key and value; one heavier
+     * than the share of a set is never cached.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the most entries a set holds
+     * @param maxBytes the most bytes of entries the whole cache holds
+     * @param policy a policy not used by any other cache
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long maxBytes, EvictionPolicy policy) {
+    	this(numSets, maxElemsPerSet, maxBytes, policy, false);
+    }
+
+    /**
+     * Constructs a cache limited by the size of its entries that may keep
+     * its values off the heap. Each set then has a direct buffer the size of
+     * its share of the budget, and values are kept there as UTF-8, so their
+     * bytes are neither doubled as UTF-16 nor seen by the garbage collector.
+     * An entry weighs two bytes per character of its key plus the bytes of
+     * its value. Every hit decodes the value again.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the most entries a set holds
+     * @param maxBytes the most bytes of entries the whole cache holds
+     * @param policy a policy not used by any other cache
+     * @param offHeap whether to keep values in direct buffers
+     * @throws IllegalArgumentException if values are to be off the heap
+     *         but a set's share of maxBytes does not fit in a buffer
+     */
+    public KVCache(int numSets, int maxElemsPerSet, long maxBytes, EvictionPolicy policy,
+    		boolean offHeap) {
+    	this.maxElemsPerSet = maxElemsPerSet;
+    	this.maxBytes = maxBytes;
+    	this.offHeap = offHeap;
+    	this.policy = policy;
+    	policy.attach(numSets, maxElemsPerSet);
+    	cache = newSets(numSets);
+    	locks = new ReentrantReadWriteLock[numSets];
     	for (int i = 0; i < numSets; i++) {
-    		cache.add(new LinkedList<CacheEntry>());
-    		locks[i] = new ReentrantLock();
+    		locks[i] = new ReentrantReadWriteLock();
+    	}
+    }
+
+    /**
+     * Empties the cache, one lock at a time. The locks stay the same, so
+     * callers holding one while this runs are still excluded.
+     */
+    public synchronized void freshCache() {
+    	CacheSet[] empty = newSets(cache.length);
+    	for (int i = 0; i < locks.length; i++) {
+    		locks[i].writeLock().lock();
+    	}
+    	try {
+    		cache = empty;
+    	} finally {
+    		for (int i = 0; i < locks.length; i++) {
+    			locks[i].writeLock().unlock();
+    		}
     	}
+    }
+
+    /**
+     * Changes the number and size of the sets, keeping the cached entries.
+     * The entries guarded by each lock are moved to their new sets while
+     * that lock is held, one lock after another, so requests wait only
+     * while their own keys are moved. Entries that no longer fit in their
+     * set, once it is full or over its share of the byte budget, are
+     * dropped. The EvictionPolicy keeps the state it was sized with.
+     *
+     * @param numSets the new number of sets, a multiple of the number the
+     *        cache was constructed with
+     * @param maxElemsPerSet the new size of each set
+     * @throws IllegalArgumentException if numSets is not such a multiple,
+     *         or values are off the heap and a set's share of the byte
+     *         budget would not fit in a buffer
+     */
+    public synchronized void resize(int numSets, int maxElemsPerSet) {
+    	if (numSets <= 0 || numSets % locks.length != 0) {
+    		throw new IllegalArgumentException("number of sets must be a multiple of "
+    				+ locks.length);
+    	}
+    	int oldMaxElems = this.maxElemsPerSet;
     	this.maxElemsPerSet = maxElemsPerSet;
+    	CacheSet[] next;
+    	try {
+    		next = newSets(numSets);
+    	} catch (IllegalArgumentException e) {
+    		this.maxElemsPerSet = oldMaxElems;
+    		throw e;
+    	}
+    	CacheSet[] old = cache;
+    	migrated = 0;
+    	resized = next;
+    	for (int lock = 0; lock < locks.length; lock++) {
+    		locks[lock].writeLock().lock();
+    		try {
+    			// old sets lock, lock + locks.length, ... hold this lock's keys
+    			for (int id = lock; id < old.length; id += locks.length) {
+    				CacheSet set = old[id];
+    				for (int n = 0; n < set.size; n++) {
+    					int slot = set.slot(n);
+    					set.transfer(slot, next[setId(set.keys[slot], next)]);
+    				}
+    			}
+    			migrated = lock + 1;
+    		} finally {
+    			locks[lock].writeLock().unlock();
+    		}
+    	}
+    	cache = next;
+    	resized = null;
     }
 
-    public void freshCache() {
-    	int numSets = cache.size();
-        cache = new ArrayList<LinkedList<CacheEntry>>(numSets);
-        for (int i = 0; i < numSets; i++) {
-    		cache.add(new LinkedList<CacheEntry>());
-    		locks[i] = new ReentrantLock();
+    private CacheSet[] newSets(int numSets) {
+    	long budget = maxBytes == Long.MAX_VALUE ? maxBytes : maxBytes / numSets;
+    	if (offHeap && budget > Integer.MAX_VALUE) {
+    		throw new IllegalArgumentException("off-heap sets need a budget under 2GB each");
+    	}
+    	CacheSet[] sets = new CacheSet[numSets];
+    	for (int i = 0; i < numSets; i++) {
+    		sets[i] = new CacheSet(maxElemsPerSet, budget, offHeap);
+    		policy.initSet(sets[i]);
+    	}
+    	return sets;
+    }
+
+    /**
+     * The set a key belongs in. While the cache is resized, that is a new
+     * set once the keys of its lock have been moved. Caller holds the lock
+     * of the key, so they cannot be moved meanwhile.
+     */
+    private CacheSet setFor(String key) {
+    	CacheSet[] next = resized;
+    	if (next != null && getLockId(key) < migrated) {
+    		return next[setId(key, next)];
     	}
+    	return cache[setId(key, cache)];
     }
     
     /**
      * Retrieves an entry from the cache.
      * Assumes access to the corresponding set has already been locked by the
-     * caller of this method.
+     * caller of this method, with either the read lock or the write lock.
+     * Readers holding the read lock may call this concurrently: it changes
+     * nothing but the entry's reference bit.
      *
      * @param  key the key whose associated value is to be returned.
      * @return the value associated to this key or null if no value is
@@ -64,26 +218,26 @@ public class KVCache implements KeyValueInterface {
      */
     @Override
     public String get(String key) {
-    	LinkedList<CacheEntry> set = cache.get(getSetId(key));
-        for (CacheEntry entry : set) {
-            if (entry.getKey().equals(key)) {
-                entry.setRefTrue();
-                return entry.getValue();
-            }
-        }
-    	return null;
+    	policy.recordAccess(key);
+    	CacheSet set = setFor(key);
+    	int slot = set.find(key);
+    	if (slot < 0) {
+    		return null;
+    	}
+    	policy.recordHit(set, slot);
+    	return set.value(slot);
     }
 
     /**
      * Adds an entry to this cache.
      * If an entry with the specified key already lives in the cache, it is
      * replaced by the new entry. When an entry is replaced, its reference bit
-     * will be set to True. If the set is full, an entry is removed from
-     * the cache based on the eviction policy. If the set isn't full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a hole in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
+     * will be set to True. If the set is full, or the entry would take it
+     * over its budget of bytes, entries are removed from the cache based on
+     * the eviction policy, which may also leave the new entry out. If the
+     * set isn't full, the entry
+     * will be inserted behind all existing entries. More details and
+     * explanations in the spec. Assumes access to
      * the corresponding set has already been locked by the caller of this
      * method.
      *
@@ -92,40 +246,76 @@ public class KVCache implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) {
-    	LinkedList<CacheEntry> set = cache.get(getSetId(key));
+    	policy.recordAccess(key);
+    	CacheSet set = setFor(key);
+    	byte[] encoded = offHeap ? value.getBytes(UTF8) : null;
+    	long weight = offHeap ? 2L * key.length() + encoded.length : weight(key, value);
     	boolean replaced = false;
-    	
-    	//Checks if key already exists in set
-        for (CacheEntry entry : set) {
-            if (entry.getKey().equals(key)) {
-                entry.setValue(value);
-                entry.setRefTrue();
-                replaced = true;
-            }
-        }
-    	
-    	//Should only run if key did not exist and key, value not replaced
-    	//Either use second chance algorithm or append onto end of list
-    	if (!replaced) {
-            if (set.size() != maxElemsPerSet) {
-                set.add(new CacheEntry(key, value));
-                return;
-            }
-            CacheEntry secondChance;
-    		while (true) {
-        		if (set.getFirst().hasRef()) {
-       				//Gives second chance. Removes head and adds onto tail with ref bit false
-       				secondChance = set.remove();
-        			secondChance.setRefFalse();
-        			set.addLast(secondChance);
-       			} else {
-        			//No second chance so remove head and adds new entry onto tail
-        			set.remove();
-        			set.add(new CacheEntry(key, value));
-       				break;
-       			}
-       		}
-    	}	
+    	int slot = set.find(key);
+    	if (slot >= 0) {
+    		if (weight > set.budget) {
+    			set.remove(slot);
+    			return;
+    		}
+    		if (!offHeap) {
+    			set.replace(slot, value);
+    			policy.recordHit(set, slot);
+    			while (set.bytes > set.budget && evict(set, key)) {
+    				// the replaced entry grew; make room for it
+    			}
+    			return;
+    		}
+    		// off the heap, make room as for a new entry before the old
+    		// bytes can be overwritten
+    		set.remove(slot);
+    		replaced = true;
+    	}
+    	if (set.capacity() == 0 || weight > set.budget) {
+    		return;
+    	}
+    	while (set.size == set.capacity() || set.bytes + weight > set.budget) {
+    		if (!evict(set, key)) {
+    			return;
+    		}
+    	}
+    	slot = set.append(key, value, encoded, weight);
+    	policy.recordInsert(set, slot);
+    	if (replaced) {
+    		policy.recordHit(set, slot);
+    	}
+    }
+
+    /**
+     * Removes the entry the policy chooses to make room for a key.
+     *
+     * @return false if the policy chose to leave the key out instead
+     */
+    private boolean evict(CacheSet set, String key) {
+    	int victim = policy.chooseVictim(set, key);
+    	if (victim < 0) {
+    		return false;
+    	}
+    	set.remove(victim);
+    	return true;
+    }
+
+    /**
+     * Approximate bytes of heap the key and value of an entry take.
+     */
+    static long weight(String key, String value) {
+    	return 2L * (key.length() + value.length());
+    }
+
+    /**
+     * Total weight of the entries in the cache. Exact only while no set is
+     * being written.
+     */
+    public long getSizeInBytes() {
+    	long bytes = 0;
+    	for (CacheSet set : cache) {
+    		bytes += set.bytes;
+    	}
+    	return bytes;
     }
 
     /**
@@ -137,22 +327,48 @@ public class KVCache implements KeyValueInterface {
      */
     @Override
     public void del(String key) {
-        Iterator<CacheEntry> set = cache.get(getSetId(key)).iterator();
-        while (set.hasNext()) {
-            if (set.next().getKey().equals(key)) set.remove();
-        }
+    	CacheSet set = setFor(key);
+    	int slot = set.find(key);
+    	if (slot >= 0) {
+    		set.remove(slot);
+    	}
     }
 
     /**
      * Get a lock for the set corresponding to a given key.
      * The lock should be used by the caller of the get/put/del methods 
-     * so that different sets can be changed in parallel.
+     * so that different sets can be changed in parallel. This is the write
+     * lock of the set; see getReadLock.
      *
      * @param  key key to determine the lock to return
      * @return lock for the set that contains the key
      */
     public Lock getLock(String key) {
-    	return locks[getSetId(key)];
+    	return locks[getLockId(key)].writeLock();
+    }
+
+    /**
+     * Get the read lock for the set corresponding to a given key. Holders
+     * of the read lock may only call get, so any number of readers of a
+     * set run together, but not alongside a holder of getLock.
+     *
+     * @param  key key to determine the lock to return
+     * @return read lock for the set that contains the key
+     */
+    public Lock getReadLock(String key) {
+    	return locks[getLockId(key)].readLock();
+    }
+
+    /**
+     * Get the id of the lock for a specific key. Keys with the same lock id
+     * share a lock; to take several locks without deadlock, take them in
+     * order of lock id.
+     *
+     * @param  key key of interest
+     * @return lock of the key
+     */
+    int getLockId(String key) {
+        return Math.abs(key.hashCode() % locks.length);
     }
 
     /**
@@ -161,8 +377,13 @@ public class KVCache implements KeyValueInterface {
      * @param  key key of interest
      * @return set of the key
      */
-    private int getSetId(String key) {
-        return Math.abs(key.hashCode() % cache.size());
+    int getSetId(String key) {
+        return setId(key, cache);
+    }
+
+    /* with as many sets as locks or a multiple, a key's set maps to its lock */
+    private static int setId(String key, CacheSet[] sets) {
+        return Math.abs(key.hashCode() % sets.length);
     }
 
     /**
@@ -176,19 +397,21 @@ public class KVCache implements KeyValueInterface {
     		
     		
     		Element root = xmlDoc.createElement("KVCache");
-    		for (int i = 0; i < cache.size(); i++) {
+    		CacheSet[] cache = this.cache;
+    		for (int i = 0; i < cache.length; i++) {
     			Element setXML = xmlDoc.createElement("Set");
     			setXML.setAttribute("Id", Integer.toString(i));
     			
-    			LinkedList<CacheEntry> set = cache.get(i);
-                for (CacheEntry e : set) {
+    			CacheSet set = cache[i];
+                for (int n = 0; n < set.size; n++) {
+                    int slot = set.slot(n);
                     Element entry = xmlDoc.createElement("CacheEntry");
-                    entry.setAttribute("isReferenced", String.valueOf(e.hasRef()));
+                    entry.setAttribute("isReferenced", String.valueOf(set.hasRef(slot)));
 
                     Element key = xmlDoc.createElement("Key");
-                    key.appendChild(xmlDoc.createTextNode(e.getKey()));
+                    key.appendChild(xmlDoc.createTextNode(set.keys[slot]));
                     Element value = xmlDoc.createElement("Value");
-                    value.appendChild(xmlDoc.createTextNode(e.getValue()));
+                    value.appendChild(xmlDoc.createTextNode(set.value(slot)));
 
                     entry.appendChild(key);
                     entry.appendChild(value);
@@ -232,49 +455,328 @@ public class KVCache implements KeyValueInterface {
      * Returns -1 if doesn't exist in set. Otherwise, returns 0 for false or 1 for true. 
      */
     public int getReference(String key) {
-    	LinkedList<CacheEntry> set = cache.get(getSetId(key));
-        for (CacheEntry entry : set) {
-            if (entry.getKey().equals(key)) {
-                return entry.hasRef() ? 1 : 0;
-            }
-        }
-    	return -1;
+    	CacheSet set = setFor(key);
+    	int slot = set.find(key);
+    	if (slot < 0) {
+    		return -1;
+    	}
+    	return set.hasRef(slot) ? 1 : 0;
     }
 
-    private class CacheEntry {
-    	
-    	private String key, value;
-    	private boolean reference;
-    	
-    	public CacheEntry(String k, String v) {
-    		this.key = k;
-    		this.value = v;
-    		this.reference = false;
+    /**
+     * One set of the cache, as a ring of fixed-size arrays so that lookups
+     * and evictions allocate nothing. The entries in order are the size
+     * slots starting at head; the head is the clock hand of the second
+     * chance policy. The hash of each key is kept next to it so a lookup
+     * only compares strings whose hashes match. Reference bits are in a
+     * bitset, and the EvictionPolicy may keep a timestamp per slot; readers
+     * sharing the read lock may set both concurrently. Everything else
+     * changes only under the write lock.
+     */
+    static class CacheSet {
+
+    	private String[] keys, values;
+    	private int[] hashes;
+    	private long[] weights;
+    	private AtomicLongArray refs;
+    	private int head, size;
+    	private long bytes;
+    	/* the most bytes of entries the set holds */
+    	private long budget;
+    	/* off-heap values: each slot's offset << 32 | length in the slab */
+    	private ByteBuffer slab;
+    	private long[] locations;
+    	private int slabEnd;
+    	/* per-slot state of the EvictionPolicy */
+    	AtomicLongArray stamps;
+    	int window = -1;
+
+    	/**
+    	 * @param capacity the most entries the set holds
+    	 * @param budget the most bytes of entries the set holds
+    	 * @param offHeap whether to keep values in a direct buffer of budget
+    	 *        bytes
+    	 */
+    	public CacheSet(int capacity, long budget, boolean offHeap) {
+    		keys = new String[capacity];
+    		hashes = new int[capacity];
+    		weights = new long[capacity];
+    		refs = new AtomicLongArray((capacity + 63) / 64);
+    		this.budget = budget;
+    		if (offHeap) {
+    			slab = ByteBuffer.allocateDirect((int) budget);
+    			locations = new long[capacity];
+    		} else {
+    			values = new String[capacity];
+    		}
+    	}
+
+    	public int capacity() {
+    		return keys.length;
+    	}
+
+    	public int size() {
+    		return size;
+    	}
+
+    	public String key(int slot) {
+    		return keys[slot];
+    	}
+
+    	public String value(int slot) {
+    		if (slab == null) {
+    			return values[slot];
+    		}
+    		return new String(encodedValue(slot), UTF8);
+    	}
+
+    	private byte[] encodedValue(int slot) {
+    		byte[] bytes = new byte[(int) locations[slot]];
+    		ByteBuffer value = slab.duplicate();
+    		value.position((int) (locations[slot] >>> 32));
+    		value.get(bytes);
+    		return bytes;
+    	}
+
+    	/**
+    	 * Copies the entry in a slot to the back of another set, with its
+    	 * reference bit and policy state, if it fits there.
+    	 */
+    	public void transfer(int slot, CacheSet to) {
+    		if (to.size == to.capacity() || to.bytes + weights[slot] > to.budget) {
+    			return;
+    		}
+    		int copy = to.append(keys[slot], slab == null ? values[slot] : null,
+    				slab == null ? null : encodedValue(slot), weights[slot]);
+    		if (hasRef(slot)) {
+    			to.setRef(copy);
+    		}
+    		if (stamps != null) {
+    			to.stamps.set(copy, stamps.get(slot));
+    		}
+    		if (window == slot) {
+    			to.window = copy;
+    		}
+    	}
+
+    	/**
+    	 * The slot of the n-th entry from the head.
+    	 */
+    	public int slot(int n) {
+    		int slot = head + n;
+    		return slot < keys.length ? slot : slot - keys.length;
+    	}
+
+    	/**
+    	 * The slot holding a key, or -1.
+    	 */
+    	public int find(String key) {
+    		int hash = key.hashCode();
+    		for (int n = 0; n < size; n++) {
+    			int slot = slot(n);
+    			if (hashes[slot] == hash && keys[slot].equals(key)) {
+    				return slot;
+    			}
+    		}
+    		return -1;
+    	}
+
+    	/**
+    	 * Adds a new, unreferenced entry behind the others. The set must
+    	 * have a free slot and, off the heap, room in its slab.
+    	 *
+    	 * @param encoded the value as UTF-8 if the set is off the heap
+    	 * @return the slot of the entry
+    	 */
+    	public int append(String key, String value, byte[] encoded, long weight) {
+    		int slot = slot(size);
+    		keys[slot] = key;
+    		hashes[slot] = key.hashCode();
+    		weights[slot] = weight;
+    		clearRef(slot);
+    		if (slab == null) {
+    			values[slot] = value;
+    		} else {
+    			if (slabEnd + encoded.length > slab.capacity()) {
+    				compact();
+    			}
+    			ByteBuffer free = slab.duplicate();
+    			free.position(slabEnd);
+    			free.put(encoded);
+    			locations[slot] = ((long) slabEnd << 32) | encoded.length;
+    			slabEnd += encoded.length;
+    		}
+    		bytes += weight;
+    		size++;
+    		return slot;
+    	}
+
+    	/**
+    	 * Changes the value of the entry in a slot of a set on the heap.
+    	 */
+    	public void replace(int slot, String value) {
+    		long weight = weight(keys[slot], value);
+    		bytes += weight - weights[slot];
+    		weights[slot] = weight;
+    		values[slot] = value;
+    	}
+
+    	/**
+    	 * Moves the values of the entries to the start of the slab, in the
+    	 * order they are in it, so the free space is all at the end.
+    	 */
+    	private void compact() {
+    		byte[] chunk = new byte[8192];
+    		ByteBuffer from = slab.duplicate();
+    		ByteBuffer to = slab.duplicate();
+    		int end = 0;
+    		long last = -1;
+    		for (int moved = 0; moved < size; moved++) {
+    			// the entry lowest in the slab that has not been moved yet
+    			int next = -1;
+    			long nextOrder = Long.MAX_VALUE;
+    			for (int n = 0; n < size; n++) {
+    				int slot = slot(n);
+    				long order = (locations[slot] >>> 32) << 32 | slot;
+    				if (order > last && order < nextOrder) {
+    					next = slot;
+    					nextOrder = order;
+    				}
+    			}
+    			last = nextOrder;
+    			int offset = (int) (locations[next] >>> 32);
+    			int length = (int) locations[next];
+    			for (int done = 0; done < length && offset != end; ) {
+    				int n = Math.min(chunk.length, length - done);
+    				from.position(offset + done);
+    				from.get(chunk, 0, n);
+    				to.position(end + done);
+    				to.put(chunk, 0, n);
+    				done += n;
+    			}
+    			locations[next] = ((long) end << 32) | length;
+    			end += length;
+    		}
+    		slabEnd = end;
+    	}
+
+    	/**
+    	 * Second chance: moves referenced entries, clearing their bits, and
+    	 * the skipped slot from the head of the set to its tail, until the
+    	 * head is an entry to evict.
+    	 *
+    	 * @param skip a slot never to choose, or -1
+    	 * @return the slot of the head
+    	 */
+    	public int sweep(int skip) {
+    		while (head == skip || clearRef(head)) {
+    			if (head == skip) {
+    				skip = slot(size);
+    			}
+    			moveHeadToTail();
+    		}
+    		return head;
+    	}
+
+    	/**
+    	 * In a full set the tail slot is the head slot, so only the head
+    	 * moves; otherwise the entry is copied to the free slot behind the
+    	 * tail.
+    	 */
+    	private void moveHeadToTail() {
+    		int tail = slot(size);
+    		if (tail != head) {
+    			move(head, tail);
+    			clear(head);
+    		}
+    		head = slot(1);
     	}
-    	
-    	public void setRefTrue() {
-    		this.reference = true;
+
+    	private void move(int from, int to) {
+    		keys[to] = keys[from];
+    		hashes[to] = hashes[from];
+    		weights[to] = weights[from];
+    		if (slab == null) {
+    			values[to] = values[from];
+    		} else {
+    			locations[to] = locations[from];
+    		}
+    		if (hasRef(from)) {
+    			setRef(to);
+    		} else {
+    			clearRef(to);
+    		}
+    		if (stamps != null) {
+    			stamps.set(to, stamps.get(from));
+    		}
+    		if (window == from) {
+    			window = to;
+    		}
     	}
-    	
-    	public void setRefFalse() {
-    		this.reference = false;
+
+    	private void clear(int slot) {
+    		keys[slot] = null;
+    		if (slab == null) {
+    			values[slot] = null;
+    		}
     	}
-    	
-    	public String getValue() {
-    		return this.value;
+
+    	/**
+    	 * Removes the entry in a slot, moving the entries behind it forward
+    	 * so the rest keep their order. Off the heap, the bytes of its value
+    	 * are reclaimed by the next compaction.
+    	 */
+    	public void remove(int slot) {
+    		bytes -= weights[slot];
+    		if (window == slot) {
+    			window = -1;
+    		}
+    		int last = slot(size - 1);
+    		if (slot == head) {
+    			// nothing to move up
+    			last = slot;
+    			head = slot(1);
+    		}
+    		while (slot != last) {
+    			int next = slot + 1 < keys.length ? slot + 1 : 0;
+    			move(next, slot);
+    			slot = next;
+    		}
+    		clear(last);
+    		size--;
     	}
-    	
-    	public void setValue(String v) {
-    		this.value = v;
+
+    	public boolean hasRef(int slot) {
+    		return (refs.get(slot >>> 6) & (1L << slot)) != 0;
     	}
-    	
-    	public String getKey() {
-    		return this.key;
+
+    	public void setRef(int slot) {
+    		long bit = 1L << slot;
+    		int word = slot >>> 6;
+    		long bits;
+    		while (((bits = refs.get(word)) & bit) == 0
+    				&& !refs.compareAndSet(word, bits, bits | bit)) {
+    			// another reader set a bit in the same word; try again
+    		}
     	}
-    	
-    	public boolean hasRef() {
-    		return this.reference;
+
+    	/**
+    	 * Clears the reference bit of a slot.
+    	 *
+    	 * @return whether it was set
+    	 */
+    	public boolean clearRef(int slot) {
+    		long bit = 1L << slot;
+    		int word = slot >>> 6;
+    		long bits;
+    		do {
+    			bits = refs.get(word);
+    			if ((bits & bit) == 0) {
+    				return false;
+    			}
+    		} while (!refs.compareAndSet(word, bits, bits & ~bit));
+    		return true;
     	}
     }
-    
+
 }
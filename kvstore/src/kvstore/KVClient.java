@@ -13,6 +13,8 @@ public class KVClient implements KeyValueInterface {
 
     private String server;
     private int port;
+    private boolean binary;
+    private KVConnectionPool pool;
 
     /**
      * Constructs a KVClient connected to a server.
@@ -21,8 +23,41 @@ public class KVClient implements KeyValueInterface {
      * @param port is the port to which the server is listening
      */
     public KVClient(String server, int port) {
+        this(server, port, false);
+    }
+
+    /**
+     * Constructs a KVClient connected to a server, choosing the wire format
+     * used for requests.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port to which the server is listening
+     * @param binary true to use the compact binary format instead of XML
+     */
+    public KVClient(String server, int port, boolean binary) {
         this.server = server;
         this.port = port;
+        this.binary = binary;
+    }
+
+    /**
+     * Constructs a KVClient that keeps up to the given number of binary
+     * connections open to the server and reuses them for every request,
+     * pipelining concurrent requests over the same connection. Call close()
+     * when done with the client.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port to which the server is listening
+     * @param connections most connections to keep open to the server
+     */
+    public KVClient(String server, int port, int connections) {
+        this(server, port, true);
+        this.pool = new KVConnectionPool(connections) {
+            @Override
+            protected KVConnection openConnection() throws KVException {
+                return new KVConnection(connectHost(), true);
+            }
+        };
     }
 
     /**
@@ -57,6 +92,49 @@ public class KVClient implements KeyValueInterface {
 		}
     }
 
+    /**
+     * Closes any connections kept open to the server.
+     */
+    public void close() {
+        if (pool != null) pool.close();
+    }
+
+    /**
+     * Sends a request over a socket and waits for the response, using the
+     * wire format of this client.
+     *
+     * @param  sock Socket connected to the server
+     * @param  request KVMessage to send
+     * @return response from the server
+     * @throws KVException if unable to send the request or receive a response
+     */
+    private KVMessage exchange(Socket sock, KVMessage request) throws KVException {
+        KVConnection connection = new KVConnection(sock, binary);
+        connection.send(request);
+        return connection.receive();
+    }
+
+    /**
+     * Sends a request and waits for the response, either on a pooled
+     * connection or on a fresh socket that is closed afterwards.
+     *
+     * @param  request KVMessage to send
+     * @return response from the server
+     * @throws KVException if unable to send the request or receive a response
+     */
+    private KVMessage exchange(KVMessage request) throws KVException {
+        if (pool != null) {
+            // a DEL that did reach the server would fail with no such key if resent
+            return pool.request(request, 0, !request.getMsgType().equals(DEL_REQ));
+        }
+        Socket sock = connectHost();
+        try {
+            return exchange(sock, request);
+        } finally {
+            closeHost(sock);
+        }
+    }
+
     /**
      * Issues a PUT request to the server.
      *
@@ -65,19 +143,14 @@ public class KVClient implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) throws KVException {
-    	Socket sock = null;
     	try {
     		if (key == null || key.isEmpty()) throw new KVException(ERROR_INVALID_KEY);
     		if (value == null || value.isEmpty()) throw new KVException(ERROR_INVALID_VALUE);
-    		
-    		sock = connectHost();
 
     		KVMessage outMsg = new KVMessage(PUT_REQ);
     		outMsg.setKey(key);
     		outMsg.setValue(value);
-    		outMsg.sendMessage(sock);
-
-    		KVMessage inMsg = new KVMessage(sock);
+    		KVMessage inMsg = exchange(outMsg);
     		String message = inMsg.getMessage();
     		//assertTrue(message != null);
     		if(message == null) throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
@@ -86,8 +159,6 @@ public class KVClient implements KeyValueInterface {
     	} catch (KVException kve) {
     		System.err.println(kve.getKVMessage().getMessage());
     		throw kve;
-    	} finally {
-    		if(sock != null) closeHost(sock);
     	}
     }
 
@@ -100,16 +171,12 @@ public class KVClient implements KeyValueInterface {
      */
     @Override
     public String get(String key) throws KVException {
-    	Socket sock = null;
         try {
             if (key == null || key.isEmpty()) throw new KVException(ERROR_INVALID_KEY);
 
-        	sock = connectHost();
         	KVMessage outMsg = new KVMessage(GET_REQ);
         	outMsg.setKey(key);
-        	outMsg.sendMessage(sock);
-        	
-        	KVMessage inMsg = new KVMessage(sock);
+        	KVMessage inMsg = exchange(outMsg);
         	String message  = inMsg.getMessage();
         	
         	if(message != null) throw new KVException(message);
@@ -120,8 +187,6 @@ public class KVClient implements KeyValueInterface {
         } catch (KVException kve) {
         	System.err.println(kve.getKVMessage().getMessage());
         	throw kve;
-        } finally {
-        	if(sock != null) closeHost(sock);
         }
     }
 
@@ -133,17 +198,12 @@ public class KVClient implements KeyValueInterface {
      */
     @Override
     public void del(String key) throws KVException {
-    	Socket sock = null;
         try {
             if (key == null || key.isEmpty()) throw new KVException(ERROR_INVALID_KEY);
 
-        	sock = connectHost();
-        	
         	KVMessage outMsg = new KVMessage(DEL_REQ);
         	outMsg.setKey(key);
-        	outMsg.sendMessage(sock);
-        	
-        	KVMessage inMsg = new KVMessage(sock);
+        	KVMessage inMsg = exchange(outMsg);
         	String message = inMsg.getMessage();
         	if(message == null) throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
         	if(!message.equals(SUCCESS)) throw new KVException(message);
@@ -151,8 +211,6 @@ public class KVClient implements KeyValueInterface {
         } catch (KVException kve) {
             System.err.println(kve.getKVMessage().getMessage());
         	throw kve;
-        } finally {
-        	if(sock != null) closeHost(sock);
         }
     }
 
@@ -0,0 +1,253 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Wraps a socket that KVMessages are exchanged over. Two wire formats are
+ * understood: the original XML format, and the compact binary format
+ * produced by KVMessage.toBinary(). The side that opens a connection picks
+ * the format; the side that accepts it detects the format from the first
+ * byte received and answers in kind, so XML peers keep working unchanged.
+ * Binary frames carry their own length, so a binary connection can be kept
+ * open and reused for any number of requests.
+ */
+public class KVConnection {
+
+    /**
+     * How long a binary connection may sit idle between requests before the
+     * accepting side closes it, in milliseconds.
+     */
+    public static final int KEEPALIVE_TIMEOUT = 30000;
+
+    private Socket sock;
+    private InputStream in;
+    private boolean binary;
+    private boolean negotiated;
+    private volatile boolean broken;
+
+    /**
+     * Constructs a KVConnection for an accepted socket. The wire format is
+     * detected on the first call to receive().
+     *
+     * @param sock Socket connected to the peer
+     */
+    public KVConnection(Socket sock) {
+        this.sock = sock;
+        this.negotiated = false;
+    }
+
+    /**
+     * Constructs a KVConnection for a socket this side opened.
+     *
+     * @param sock Socket connected to the peer
+     * @param binary true to speak the binary format, false for XML
+     */
+    public KVConnection(Socket sock, boolean binary) {
+        this.sock = sock;
+        this.binary = binary;
+        this.negotiated = true;
+    }
+
+    public Socket getSocket() {
+        return sock;
+    }
+
+    /**
+     * Whether this connection speaks the binary format. Only meaningful once
+     * the format has been negotiated.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Whether a failed send or receive has left this connection unusable for
+     * further messages.
+     */
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Whether bytes have arrived on this connection that no receive has
+     * consumed yet, either read ahead into its buffer or still waiting on the
+     * socket. Counts as true if the socket cannot be asked.
+     */
+    public boolean hasUnreadData() {
+        try {
+            return (in != null && in.available() > 0)
+                || sock.getInputStream().available() > 0;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Receive a KVMessage with no timeout.
+     *
+     * @return the received KVMessage
+     * @throws KVException if we fail to receive a valid KVMessage
+     */
+    public KVMessage receive() throws KVException {
+        return receive(0);
+    }
+
+    /**
+     * Receive a KVMessage within a certain timeout, or with no timeout if the
+     * provided argument is 0. On an accepted connection the first call also
+     * decides the wire format of the connection.
+     *
+     * @param  timeout total allowable receipt time, in milliseconds
+     * @return the received KVMessage
+     * @throws KVException if we fail to receive a valid KVMessage. Please see
+     *         KVConstants.java for possible KVException messages.
+     */
+    public KVMessage receive(int timeout) throws KVException {
+        try {
+            sock.setSoTimeout(timeout);
+            if (in == null) {
+                in = new BufferedInputStream(sock.getInputStream());
+            }
+            if (!negotiated) {
+                in.mark(1);
+                int first = in.read();
+                in.reset();
+                binary = (first == KVMessage.BINARY_MAGIC);
+                negotiated = true;
+            }
+        } catch (SocketTimeoutException e) {
+            broken = true;
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            broken = true;
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        } catch (NullPointerException e) {
+            broken = true;
+            throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+        }
+        if (!binary) {
+            // an XML message runs until EOF, so it is always the last one
+            broken = true;
+            return new KVMessage(in);
+        }
+        byte[] body;
+        try {
+            body = KVMessage.readFrame(in);
+        } catch (SocketTimeoutException e) {
+            broken = true;
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            broken = true;
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        } catch (KVException e) {
+            broken = true;
+            throw e;
+        }
+        // a well-framed but invalid message leaves the connection usable
+        return KVMessage.fromBinary(body);
+    }
+
+    /**
+     * Send a KVMessage in the format of this connection. XML messages are
+     * terminated by shutting down the output of the socket, binary frames
+     * carry their own length and leave the socket open.
+     *
+     * @param  msg KVMessage to send
+     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    public void send(KVMessage msg) throws KVException {
+        if (!binary) {
+            msg.sendMessage(sock);
+            return;
+        }
+        byte[] frame = msg.toBinary();
+        try {
+            sock.getOutputStream().write(frame);
+            sock.getOutputStream().flush();
+        } catch (IOException e) {
+            broken = true;
+            throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+        } catch (NullPointerException e) {
+            broken = true;
+            throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+        }
+    }
+
+    /**
+     * Service requests arriving on this accepted connection with the given
+     * handler, then close it. An XML connection carries exactly one request.
+     * A binary connection is kept alive and serviced frame after frame, in
+     * order, until the peer closes it or it stays idle for KEEPALIVE_TIMEOUT.
+     * The delivery of each response is best-effort.
+     *
+     * @param handler MessageHandler that services each request
+     */
+    public void serve(MessageHandler handler) {
+        int timeout = 0;
+        while (true) {
+            KVMessage response;
+            try {
+                response = handler.process(receive(timeout));
+            } catch (KVException kve) {
+                if (broken && binary) {
+                    break; // peer is gone or the stream is out of sync
+                }
+                response = kve.getKVMessage();
+            }
+            try {
+                send(response);
+            } catch (KVException kve) {
+                break; // no way to report to the peer that sending failed
+            }
+            if (!binary) {
+                break;
+            }
+            timeout = KEEPALIVE_TIMEOUT;
+        }
+        close();
+    }
+
+    /**
+     * Turns away this accepted connection without servicing its request:
+     * answers with ERROR_SERVER_BUSY and closes the connection. The answer is
+     * binary if a binary request has already arrived, XML otherwise, since
+     * nothing may block while turning a connection away. Best effort.
+     */
+    public void refuse() {
+        try {
+            InputStream raw = sock.getInputStream();
+            if (!negotiated && raw.available() > 0) {
+                in = new BufferedInputStream(raw);
+                in.mark(1);
+                binary = (in.read() == KVMessage.BINARY_MAGIC);
+                negotiated = true;
+            }
+            send(new KVMessage(RESP, ERROR_SERVER_BUSY));
+        } catch (IOException e) {
+            // ignore error
+        } catch (KVException e) {
+            // ignore error
+        }
+        close();
+    }
+
+    /**
+     * Closes the underlying socket.
+     * Best effort, ignores error.
+     */
+    public void close() {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // ignore error
+        }
+    }
+
+}
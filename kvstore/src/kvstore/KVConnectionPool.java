@@ -0,0 +1,288 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small pool of long-lived binary connections to one server. Requests are
+ * pipelined: several callers may have requests in flight on the same
+ * connection at once. The server answers the requests on a connection in the
+ * order they were sent, so each caller simply waits for its turn to read.
+ */
+public abstract class KVConnectionPool {
+
+    /**
+     * How long a pooled connection may sit idle before it is closed instead
+     * of reused. Kept below KVConnection.KEEPALIVE_TIMEOUT so we normally
+     * close idle connections before the server does.
+     */
+    public static final int IDLE_TIMEOUT = KVConnection.KEEPALIVE_TIMEOUT / 2;
+
+    private int maxConnections;
+    private ArrayList<Pipeline> pipelines;
+    /* connections being opened, not yet in pipelines */
+    private int opening;
+    private ReentrantLock poolLock;
+
+    /**
+     * Constructs an empty pool; connections are opened as they are needed.
+     *
+     * @param maxConnections most connections to keep open at once
+     */
+    public KVConnectionPool(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("need at least one connection");
+        }
+        this.maxConnections = maxConnections;
+        this.pipelines = new ArrayList<Pipeline>(maxConnections);
+        this.poolLock = new ReentrantLock();
+    }
+
+    /**
+     * Creates a KVConnection to the server for the pool.
+     *
+     * @return a new connection speaking the binary format
+     * @throws KVException if unable to connect
+     */
+    protected abstract KVConnection openConnection() throws KVException;
+
+    /**
+     * Sends a request on a pooled connection and waits for its response.
+     * If a connection that had been sitting idle turns out to have been
+     * closed by the server, the request is retried once on a fresh one
+     * when retry is allowed.
+     *
+     * @param  request KVMessage to send
+     * @param  timeout allowable time to wait for the response, 0 for none
+     * @param  retry whether the request is safe to send a second time
+     * @return the response from the server
+     * @throws KVException if the request could not be sent or answered
+     */
+    public KVMessage request(KVMessage request, int timeout, boolean retry)
+            throws KVException {
+        Pipeline pipeline = choosePipeline(false);
+        boolean wasIdle = pipeline.isIdle();
+        try {
+            return pipeline.request(request, timeout);
+        } catch (KVException kve) {
+            if (!retry || !wasIdle || !pipeline.isBroken()) {
+                throw kve;
+            }
+        }
+        return choosePipeline(true).request(request, timeout);
+    }
+
+    /**
+     * Number of connections currently open in this pool.
+     */
+    public int size() {
+        poolLock.lock();
+        try {
+            return pipelines.size();
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     * Closes every pooled connection. Requests still in flight fail.
+     */
+    public void close() {
+        poolLock.lock();
+        try {
+            for (Pipeline pipeline : pipelines) {
+                pipeline.fail();
+            }
+            pipelines.clear();
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     * Picks the connection with the fewest requests in flight, opening a new
+     * one when every open connection is busy and the pool is not full.
+     * Broken and long-idle connections are dropped along the way. The new
+     * connection is opened without holding the pool lock, so callers that
+     * can use an open connection do not wait for the connect; if the pool
+     * filled up meanwhile, it is closed again and an open one is used.
+     *
+     * @param  fresh true to always open a new connection
+     * @return the connection to send on
+     * @throws KVException if a new connection could not be opened
+     */
+    private Pipeline choosePipeline(boolean fresh) throws KVException {
+        poolLock.lock();
+        try {
+            Pipeline best = prune();
+            if (!fresh && best != null
+                    && (best.isIdle() || pipelines.size() + opening >= maxConnections)) {
+                return best;
+            }
+            opening++;
+        } finally {
+            poolLock.unlock();
+        }
+        Pipeline pipeline;
+        try {
+            pipeline = new Pipeline(openConnection());
+        } catch (KVException kve) {
+            poolLock.lock();
+            opening--;
+            poolLock.unlock();
+            throw kve;
+        }
+        poolLock.lock();
+        try {
+            opening--;
+            Pipeline best = prune();
+            if (pipelines.size() >= maxConnections) {
+                if (!fresh) {
+                    pipeline.retire();
+                    return best;
+                }
+                pipelines.remove(0).retire();
+            }
+            pipelines.add(pipeline);
+            return pipeline;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    /**
+     * Drops broken and long-idle connections. Caller holds the pool lock.
+     *
+     * @return the remaining connection with the fewest requests in flight,
+     *         or null if there is none
+     */
+    private Pipeline prune() {
+        long now = System.currentTimeMillis();
+        Pipeline best = null;
+        Iterator<Pipeline> iter = pipelines.iterator();
+        while (iter.hasNext()) {
+            Pipeline pipeline = iter.next();
+            if (pipeline.isBroken()
+                    || (pipeline.isIdle() && now - pipeline.lastUsed > IDLE_TIMEOUT)) {
+                iter.remove();
+                pipeline.fail();
+            } else if (best == null || pipeline.inFlight.get() < best.inFlight.get()) {
+                best = pipeline;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * One pooled connection. Requests are written in the order they take a
+     * ticket; responses are read back in the same order.
+     */
+    private class Pipeline {
+
+        private KVConnection connection;
+        private ReentrantLock sendLock, receiveLock;
+        private Condition turn;
+        private long issued, completed;
+        private AtomicInteger inFlight;
+        private volatile boolean broken, retired;
+        private volatile long lastUsed;
+
+        public Pipeline(KVConnection connection) {
+            this.connection = connection;
+            this.sendLock = new ReentrantLock();
+            this.receiveLock = new ReentrantLock();
+            this.turn = receiveLock.newCondition();
+            this.inFlight = new AtomicInteger();
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public boolean isIdle() {
+            return inFlight.get() == 0;
+        }
+
+        public boolean isBroken() {
+            return broken;
+        }
+
+        public KVMessage request(KVMessage request, int timeout) throws KVException {
+            inFlight.incrementAndGet();
+            try {
+                long ticket;
+                sendLock.lock();
+                try {
+                    if (broken) {
+                        throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+                    }
+                    ticket = issued++;
+                    try {
+                        connection.send(request);
+                    } catch (KVException kve) {
+                        fail();
+                        throw kve;
+                    }
+                } finally {
+                    sendLock.unlock();
+                }
+
+                receiveLock.lock();
+                try {
+                    while (completed != ticket && !broken) {
+                        turn.awaitUninterruptibly();
+                    }
+                    if (broken) {
+                        throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+                    }
+                    try {
+                        return connection.receive(timeout);
+                    } catch (KVException kve) {
+                        if (connection.isBroken()) {
+                            fail();
+                        }
+                        throw kve;
+                    } finally {
+                        completed++;
+                        turn.signalAll();
+                    }
+                } finally {
+                    receiveLock.unlock();
+                }
+            } finally {
+                lastUsed = System.currentTimeMillis();
+                if (inFlight.decrementAndGet() == 0 && retired) {
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * Takes this connection out of the pool; it is closed once the
+         * requests already in flight on it have been answered.
+         */
+        public void retire() {
+            retired = true;
+            if (isIdle()) {
+                connection.close();
+            }
+        }
+
+        /**
+         * Closes this connection, failing every request waiting on it.
+         */
+        public void fail() {
+            broken = true;
+            connection.close();
+            receiveLock.lock();
+            try {
+                turn.signalAll();
+            } finally {
+                receiveLock.unlock();
+            }
+        }
+    }
+
+}
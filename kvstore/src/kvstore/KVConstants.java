@@ -15,6 +15,9 @@ public class KVConstants {
     public static final String COMMIT   = "commit";
     public static final String ACK      = "ack";
 
+    // several PUT/DEL requests voted on and decided together; binary only
+    public static final String BATCH_REQ = "batchreq";
+
 
     /**
      * Error message used if an IOException arises while parsing the
@@ -109,4 +112,33 @@ public class KVConstants {
     public static final String ERROR_INVALID_REQUEST =
             "Error: Invalid request";
 
+    /**
+     * Error message used if a request is turned away because every worker of
+     * the server is busy and its queue of waiting requests is full.
+     */
+    public static final String ERROR_SERVER_BUSY =
+        "Error: Server busy";
+
+    /**
+     * Error message used if a StorageEngine cannot write to its backing
+     * files.
+     */
+    public static final String ERROR_STORAGE_UNAVAILABLE =
+        "Error: Storage unavailable";
+
+    /**
+     * Error message used if the master has fewer slaves registered than it
+     * keeps replicas of each key.
+     */
+    public static final String ERROR_NOT_ENOUGH_SLAVES =
+        "Error: Not enough slaves registered";
+
+    /**
+     * Error message used if a batched PUT or DEL fails because the batch it
+     * was carried out in failed unexpectedly. The request may or may not
+     * have taken effect.
+     */
+    public static final String ERROR_BATCH_FAILED =
+        "Error: Batch failed";
+
 }
@@ -4,6 +4,7 @@ import static kvstore.KVConstants.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.Charset;
 import java.util.*;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -26,6 +27,7 @@ public class KVMessage implements Serializable {
     private String key;
     private String value;
     private String message;
+    private ArrayList<KVMessage> ops;
     
     private static final String[] SET_TYPES = new String[] { GET_REQ, PUT_REQ, DEL_REQ, RESP,REGISTER, COMMIT, ABORT, READY, ACK};
     private static final Set<String> msgTypes = new HashSet<String>(Arrays.asList(SET_TYPES));
@@ -34,6 +36,14 @@ public class KVMessage implements Serializable {
     //private static final String VAL = "Value", KEY = "Key", MESS = "Message", TEXT = "#text";
     private static final Set<String> eleTypes = new HashSet<String>(Arrays.asList(ELEMENT_TYPES));
     
+    /* binary wire format, see toBinary() */
+    public static final int BINARY_MAGIC = 0xB7;
+    public static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+    private static final List<String> binaryTypes = Arrays.asList(
+        new String[] { GET_REQ, PUT_REQ, DEL_REQ, RESP, REGISTER, READY, ABORT, COMMIT, ACK,
+            BATCH_REQ });
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     public static final long serialVersionUID = 6473128480951955693L;
     
     public KVMessage(KVMessage kvm) {
@@ -42,6 +52,21 @@ public class KVMessage implements Serializable {
     	this.key = kvm.getKey();
     	this.value = kvm.getValue();
     	this.message = kvm.getMessage();
+    	if (kvm.ops != null) {
+    		this.ops = new ArrayList<KVMessage>(kvm.ops);
+    	}
+    }
+
+    /**
+     * Construct a BATCH_REQ carrying several PUT and DEL requests, to be
+     * voted on and decided as one transaction. Batches only have a binary
+     * form.
+     *
+     * @param ops the PUT_REQ and DEL_REQ messages, in the order to apply them
+     */
+    public KVMessage(List<KVMessage> ops) {
+        this.msgType = BATCH_REQ;
+        this.ops = new ArrayList<KVMessage>(ops);
     }
 
     /**
@@ -94,10 +119,33 @@ public class KVMessage implements Serializable {
      */
     public KVMessage(Socket sock, int timeout) throws KVException {
         // implement me
-    	Document document;
+    	InputStream in;
     	try {
 	    	sock.setSoTimeout(timeout);
-	    	NoCloseInputStream openStream = new NoCloseInputStream( sock.getInputStream() );
+	    	in = sock.getInputStream();
+    	} catch (IOException e) {
+			throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+		} catch (NullPointerException e){
+			throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+		}
+    	parseXML(in);
+    }
+
+    /**
+     * Construct KVMessage by parsing XML from an InputStream. The stream is
+     * read until EOF and is not closed.
+     *
+     * @param  in InputStream to receive serialized KVMessage through
+     * @throws KVException if we fail to create a valid KVMessage
+     */
+    KVMessage(InputStream in) throws KVException {
+        parseXML(in);
+    }
+
+    private void parseXML(InputStream in) throws KVException {
+    	Document document;
+    	try {
+	    	NoCloseInputStream openStream = new NoCloseInputStream(in);
 	        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 	        DocumentBuilder builder;
 			builder = factory.newDocumentBuilder();
@@ -267,7 +315,28 @@ public class KVMessage implements Serializable {
 			}
     	}
 		
-    	else if (root.getAttribute("type").equals(COMMIT) || root.getAttribute("type").equals(READY) || root.getAttribute("type").equals(ACK)){
+    	else if (root.getAttribute("type").equals(COMMIT)){
+    		// a decision may name the key of the transaction it decides
+    		this.msgType = root.getAttribute("type");
+    		for (int i = 0; i < elements.getLength(); ++i) {
+    			Node element = elements.item(i);
+    			String elementtype = element.getNodeName();
+    			
+    			//check that its an acceptable field
+    			if (!eleTypes.contains(elementtype)){
+    				throw new KVException(ERROR_INVALID_FORMAT);
+    	    	}
+   
+                if (elementtype.equals("Key")) {
+                	this.key = element.getTextContent();
+                }
+                else if (elementtype.equals("Value")||elementtype.equals("Message")){
+        			throw new KVException(ERROR_INVALID_FORMAT);
+                }
+    		}
+    	}
+		
+    	else if (root.getAttribute("type").equals(READY) || root.getAttribute("type").equals(ACK)){
     		this.msgType = root.getAttribute("type");
     		for (int i = 0; i < elements.getLength(); ++i) {
     			Node element = elements.item(i);
@@ -301,11 +370,14 @@ public class KVMessage implements Serializable {
                 if (elementtype.equals("Message")) {
                 	this.message = element.getTextContent();
                 }
-                else if (elementtype.equals("Value")||elementtype.equals("Key")){
+                else if (elementtype.equals("Key")) {
+                	this.key = element.getTextContent();
+                }
+                else if (elementtype.equals("Value")){
         			throw new KVException(ERROR_INVALID_FORMAT);
                 }
     		}
-    		if (this.key != null || this.value != null){
+    		if (this.value != null){
 				throw new KVException(ERROR_INVALID_FORMAT);
 			}
     	}
@@ -400,6 +472,9 @@ public class KVMessage implements Serializable {
      */
     public String toXML() throws KVException{
         // implement me
+    	if (BATCH_REQ.equals(this.msgType)) {
+    		throw new KVException(ERROR_INVALID_FORMAT); // binary only
+    	}
     	Document xmldoc;
     	DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
     	DocumentBuilder builder;
@@ -458,6 +533,11 @@ public class KVMessage implements Serializable {
 	    }
 	    
 	    else if (this.msgType.equals(REGISTER) || this.msgType.equals(ABORT)){
+	    	if (this.msgType.equals(ABORT) && this.key != null && !this.key.isEmpty()) {
+		    	Element xmlkey = xmldoc.createElement("Key");
+				xmlkey.appendChild(xmldoc.createTextNode(this.key));
+				xmlroot.appendChild(xmlkey);
+	    	}
 	    	if (this.message != null && !this.message.isEmpty()) {
 				Element xmlmsg = xmldoc.createElement("Message");
 				xmlmsg.appendChild(xmldoc.createTextNode(this.message));	
@@ -465,7 +545,15 @@ public class KVMessage implements Serializable {
 	    	}
 	    }
 	    
-	    else if (this.msgType.equals(READY) || this.msgType.equals(ABORT) || this.msgType.equals(COMMIT) || this.msgType.equals(ACK)){
+	    else if (this.msgType.equals(COMMIT)){
+	    	if (this.key != null && !this.key.isEmpty()) {
+		    	Element xmlkey = xmldoc.createElement("Key");
+				xmlkey.appendChild(xmldoc.createTextNode(this.key));
+				xmlroot.appendChild(xmlkey);
+	    	}
+	    }
+	    
+	    else if (this.msgType.equals(READY) || this.msgType.equals(ACK)){
 	    //dont need to do anything here
 	    }
 	    
@@ -516,6 +604,254 @@ public class KVMessage implements Serializable {
 		}
     }
 
+    /**
+     * Generate the compact binary representation for this message. A frame is
+     * the BINARY_MAGIC byte, the varint length of the body and the body
+     * itself: a type byte followed by the key, value and message, each as a
+     * varint of (length + 1) and the UTF-8 bytes (a length of 0 means null).
+     * The body of a BATCH_REQ goes on with the varint number of ops and the
+     * body of each op, preceded by its varint length.
+     *
+     * @return the binary frame for this KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT if the type is unknown
+     */
+    public byte[] toBinary() throws KVException {
+        byte[] body = toBinaryBody();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.length + 6);
+        frame.write(BINARY_MAGIC);
+        writeVarint(frame, body.length);
+        frame.write(body, 0, body.length);
+        return frame.toByteArray();
+    }
+
+    private byte[] toBinaryBody() throws KVException {
+        int type = binaryTypes.indexOf(msgType);
+        if (type < 0) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(type + 1);
+        writeBinaryField(body, key);
+        writeBinaryField(body, value);
+        writeBinaryField(body, message);
+        if (BATCH_REQ.equals(msgType)) {
+            writeVarint(body, ops.size());
+            for (KVMessage op : ops) {
+                byte[] opBody = op.toBinaryBody();
+                writeVarint(body, opBody.length);
+                body.write(opBody, 0, opBody.length);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Construct a KVMessage from the body of a binary frame (everything after
+     * the magic byte and length). The result is checked with the same rules
+     * applied to XML messages.
+     *
+     * @param  body the frame body
+     * @return the decoded KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT if the body is malformed
+     */
+    public static KVMessage fromBinary(byte[] body) throws KVException {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        int type = in.read() - 1;
+        if (type < 0 || type >= binaryTypes.size()) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        KVMessage kvm = new KVMessage(binaryTypes.get(type), null);
+        kvm.key = readBinaryField(in);
+        kvm.value = readBinaryField(in);
+        kvm.message = readBinaryField(in);
+        if (BATCH_REQ.equals(kvm.msgType)) {
+            kvm.ops = readBinaryOps(in);
+        }
+        if (in.available() != 0) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        kvm.checkFormat();
+        return kvm;
+    }
+
+    /**
+     * Read one binary frame from an InputStream, blocking until it has been
+     * received in full.
+     *
+     * @param  in InputStream positioned at the start of a frame
+     * @return the decoded KVMessage
+     * @throws KVException with ERROR_SOCKET_TIMEOUT, ERROR_COULD_NOT_RECEIVE_DATA
+     *         or ERROR_INVALID_FORMAT
+     */
+    public static KVMessage readBinary(InputStream in) throws KVException {
+        byte[] body;
+        try {
+            body = readFrame(in);
+        } catch (SocketTimeoutException e) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+        return fromBinary(body);
+    }
+
+    /**
+     * Read the body of one binary frame from an InputStream without decoding
+     * it. Any exception leaves the stream at an unknown position.
+     *
+     * @param  in InputStream positioned at the start of a frame
+     * @return the frame body
+     * @throws IOException if the stream fails or ends before the frame does
+     * @throws KVException with ERROR_INVALID_FORMAT if this is not a frame
+     */
+    static byte[] readFrame(InputStream in) throws IOException, KVException {
+        int magic = in.read();
+        if (magic < 0) {
+            throw new EOFException();
+        }
+        if (magic != BINARY_MAGIC) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        int length = readVarint(in);
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        byte[] body = new byte[length];
+        new DataInputStream(in).readFully(body);
+        return body;
+    }
+
+    /**
+     * Check that the fields set on this message are valid for its type. These
+     * are the same rules the XML parser enforces.
+     *
+     * @throws KVException with ERROR_INVALID_FORMAT
+     */
+    private void checkFormat() throws KVException {
+        boolean valid;
+        switch (msgType) {
+            case PUT_REQ:
+                valid = key != null && !key.isEmpty() && value != null
+                    && !value.isEmpty() && message == null;
+                break;
+            case GET_REQ:
+            case DEL_REQ:
+                valid = key != null && !key.isEmpty() && value == null && message == null;
+                break;
+            case RESP:
+                valid = (message != null) ? (key == null && value == null)
+                    : (key != null && value != null);
+                break;
+            case REGISTER:
+                valid = key == null && value == null;
+                break;
+            case ABORT:
+                // a decision may name the key of the transaction it decides
+                valid = value == null;
+                break;
+            case COMMIT:
+                valid = value == null && message == null;
+                break;
+            case BATCH_REQ:
+                valid = key == null && value == null && message == null
+                    && ops != null && !ops.isEmpty();
+                if (valid) {
+                    for (KVMessage op : ops) {
+                        valid &= PUT_REQ.equals(op.msgType) || DEL_REQ.equals(op.msgType);
+                    }
+                }
+                break;
+            default:
+                valid = key == null && value == null && message == null;
+        }
+        if (!valid) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+    }
+
+    private static ArrayList<KVMessage> readBinaryOps(ByteArrayInputStream in)
+            throws KVException {
+        try {
+            int count = readVarint(in);
+            if (count < 0 || count > in.available()) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            ArrayList<KVMessage> ops = new ArrayList<KVMessage>(count);
+            for (int i = 0; i < count; i++) {
+                int length = readVarint(in);
+                if (length < 0 || length > in.available()) {
+                    throw new KVException(ERROR_INVALID_FORMAT);
+                }
+                byte[] opBody = new byte[length];
+                in.read(opBody, 0, length);
+                ops.add(fromBinary(opBody));
+            }
+            return ops;
+        } catch (IOException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+    }
+
+    private static void writeBinaryField(ByteArrayOutputStream out, String field) {
+        if (field == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = field.getBytes(UTF8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readBinaryField(ByteArrayInputStream in) throws KVException {
+        int encoded;
+        try {
+            encoded = readVarint(in);
+        } catch (IOException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        if (encoded == 0) {
+            return null;
+        }
+        int length = encoded - 1;
+        if (encoded < 0 || length > in.available()) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        byte[] bytes = new byte[length];
+        in.read(bytes, 0, length);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Write an unsigned varint: seven bits per byte, low bits first, with the
+     * high bit set on every byte but the last.
+     */
+    static void writeVarint(OutputStream out, int n) {
+        try {
+            while ((n & ~0x7F) != 0) {
+                out.write((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            out.write(n);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+        }
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int n = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            n |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("varint too long");
+    }
+
     public String getKey() {
         return key;
     }
@@ -540,6 +876,14 @@ public class KVMessage implements Serializable {
         this.message = message;
     }
 
+    /**
+     * The PUT_REQ and DEL_REQ messages carried by a BATCH_REQ, or null for
+     * any other type.
+     */
+    public List<KVMessage> getOps() {
+        return ops;
+    }
+
     public String getMsgType() {
         return msgType;
     }
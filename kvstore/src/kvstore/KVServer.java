@@ -2,6 +2,14 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -12,8 +20,12 @@ import java.util.concurrent.locks.Lock;
  */
 public class KVServer implements KeyValueInterface {
 
-    private KVStore dataStore;
+    private StorageEngine dataStore;
     private KVCache dataCache;
+    private volatile Snapshot snapshot;
+
+    /* saved by a snapshot for a key that had no value; compared by identity */
+    private static final String ABSENT = new String("");
 
     public static final int MAX_KEY_SIZE = 256;
     public static final int MAX_VAL_SIZE = 256 * 1024;
@@ -33,8 +45,31 @@ public class KVServer implements KeyValueInterface {
      */
 
     public KVServer(int numSets, int maxElemsPerSet) {
-        this.dataCache = new KVCache(numSets, maxElemsPerSet);
-        this.dataStore = new KVStore();
+        this(numSets, maxElemsPerSet, new KVStore());
+    }
+
+    /**
+     * Constructs a KVServer backed by a KVCache and the given StorageEngine,
+     * for example a MappedStore for data sets larger than the heap.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param dataStore StorageEngine holding every key-value pair
+     */
+    public KVServer(int numSets, int maxElemsPerSet, StorageEngine dataStore) {
+        this(new KVCache(numSets, maxElemsPerSet), dataStore);
+    }
+
+    /**
+     * Constructs a KVServer with a cache configured by the caller, for
+     * example one with a budget of bytes or another EvictionPolicy.
+     *
+     * @param dataCache the cache in front of the store, used by no one else
+     * @param dataStore StorageEngine holding every key-value pair
+     */
+    public KVServer(KVCache dataCache, StorageEngine dataStore) {
+        this.dataCache = dataCache;
+        this.dataStore = dataStore;
     }
 
     public static void checkKey(String key) throws KVException {
@@ -51,6 +86,18 @@ public class KVServer implements KeyValueInterface {
     		throw OVERSIZED_VAL_RESP_EXCEPTION;
     }
     
+    /**
+     * Changes the shape of the data cache without emptying it; see
+     * KVCache.resize.
+     *
+     * @param numSets the new number of sets, a multiple of the number the
+     *        server was constructed with
+     * @param maxElemsPerSet the new size of each set
+     */
+    public void resizeCache(int numSets, int maxElemsPerSet) {
+        dataCache.resize(numSets, maxElemsPerSet);
+    }
+
     public void wipeEverything() {
     	dataCache.freshCache();
     	dataStore.resetStore();
@@ -72,6 +119,7 @@ public class KVServer implements KeyValueInterface {
     	Lock lock = dataCache.getLock(key); //Obtain appropriate lock
     	lock.lock();
     	try {
+    		preserve(key);
     		dataCache.put(key, value); //Place <key, value> in KVCache
     		dataStore.put(key, value); //Place <key, value> in KVStore
     	} finally {
@@ -81,7 +129,9 @@ public class KVServer implements KeyValueInterface {
 
     /**
      * Performs get request.
-     * Checks cache first. Updates cache if not in cache but located in store.
+     * Checks cache first, under the read lock of the key's set, so hits on
+     * the same set run in parallel. Updates cache if not in cache but
+     * located in store, under the write lock.
      *
      * @param  key String key
      * @return String value associated with key
@@ -91,15 +141,27 @@ public class KVServer implements KeyValueInterface {
     public String get(String key) throws KVException {
     	checkKey(key);
 
+    	Lock readLock = dataCache.getReadLock(key);
+    	readLock.lock();
+    	try {
+    		String value = dataCache.get(key);
+    		if (value != null) {
+    			return value;
+    		}
+    	} finally {
+    		readLock.unlock();
+    	}
+
     	Lock lock = dataCache.getLock(key); //Obtain appropriate lock
     	lock.lock();
     	try {
-	    	if (dataCache.get(key) != null) {
-	    		return dataCache.get(key);
-	    	}
-	        String value = dataStore.get(key); //Possible exception here
-	    	dataCache.put(key, value);
-	   		return dataCache.get(key);
+    		// another request may have filled the cache meanwhile
+    		String value = dataCache.get(key);
+    		if (value == null) {
+    			value = dataStore.get(key); //Possible exception here
+    			dataCache.put(key, value);
+    		}
+    		return value;
     	} finally {
     		lock.unlock();
     	}
@@ -119,6 +181,7 @@ public class KVServer implements KeyValueInterface {
     	Lock lock = dataCache.getLock(key); //Obtain appropriate lock
     	lock.lock();
     	try {
+    		preserve(key);
     		dataCache.del(key); //Delete <key, value> in KVCache
     		dataStore.del(key); //Delete <key, value> in KVStore
     	} finally {
@@ -129,17 +192,195 @@ public class KVServer implements KeyValueInterface {
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but
-     * you don't want to change the state of the cache by calling get(). You
-     * are allowed to call dataStore.get() for this method.
+     * you don't want to change the state of the cache by calling get().
      *
      * @param key key to check for membership in store
      */
     public boolean hasKey(String key) {
-        try {
-        	dataStore.get(key); //throws exception if DNE in store
-        	return true;
-        } catch (KVException e) {
-        	return false;
+        return dataStore.hasKey(key);
+    }
+
+    /**
+     * Writes the contents of the store to a file in the XML format of
+     * KVStore.dumpToFile.
+     *
+     * @param fileName the file to write
+     * @param compress whether to gzip the file
+     * @throws IOException if the file could not be written
+     */
+    public void dumpToFile(String fileName, boolean compress) throws IOException {
+        dataStore.writeToFile(fileName, compress);
+    }
+
+    /**
+     * Replaces the contents of this server with those of a file written by
+     * dumpToFile, compressed or not.
+     *
+     * @param fileName the file to read
+     */
+    public void restoreFromFile(String fileName) {
+        dataCache.freshCache();
+        dataStore.restoreFromFile(fileName);
+    }
+
+    /**
+     * Replaces the contents of this server with those of a file written by
+     * dumpToFile, as restoreFromFile does, but fails rather than leave the
+     * server holding only part of the file.
+     *
+     * @param fileName the file to read
+     * @throws IOException if the file could not be read in full; the server
+     *         may then hold any part of it
+     */
+    public void loadFromFile(String fileName) throws IOException {
+        dataCache.freshCache();
+        KVStore.readInto(fileName, dataStore);
+    }
+
+    /**
+     * Starts writing a point-in-time image of the store to a file, in the
+     * XML format of KVStore.dumpToFile, on a background thread. The image
+     * holds each key as it was when this method was called. Requests keep
+     * running meanwhile: the first write to a key during the snapshot saves
+     * the value it replaces, and the snapshot writes saved values in place
+     * of whatever it finds in the store. Only one snapshot runs at a time.
+     *
+     * wipeEverything and restoreFromFile bypass the saved values and must
+     * not be called while a snapshot runs.
+     *
+     * @param fileName the file to write
+     * @param compress whether to gzip the file
+     * @return a Future that completes once the file is written, and throws
+     *         the IOException if it could not be
+     * @throws IllegalStateException if a snapshot is already running
+     */
+    public FutureTask<Void> snapshot(final String fileName, final boolean compress) {
+        final Snapshot image = beginSnapshot();
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                image.writeTo(fileName, compress);
+                return null;
+            }
+        });
+        Thread writer = new Thread(task, "kvstore-snapshot");
+        writer.setDaemon(true);
+        writer.start();
+        return task;
+    }
+
+    /**
+     * Marks the point in time of a snapshot; it has to be written out with
+     * Snapshot.writeTo.
+     *
+     * @throws IllegalStateException if a snapshot is already running
+     */
+    synchronized Snapshot beginSnapshot() {
+        if (snapshot != null) {
+            throw new IllegalStateException("snapshot already running");
+        }
+        snapshot = new Snapshot();
+        return snapshot;
+    }
+
+    /**
+     * Saves the value of a key for a running snapshot before it is first
+     * changed. Caller holds the lock of the key's set.
+     */
+    private void preserve(String key) {
+        Snapshot current = snapshot;
+        if (current != null && !current.saved.containsKey(key)) {
+            String old;
+            try {
+                old = dataStore.get(key);
+            } catch (KVException e) {
+                old = ABSENT;
+            }
+            current.saved.put(key, old);
+        }
+    }
+
+    /**
+     * A snapshot in progress: the values, as of its start, of the keys
+     * written since. Memory use grows with the number of distinct keys
+     * written while it runs, not with the size of the store.
+     */
+    class Snapshot {
+
+        private ConcurrentHashMap<String, String> saved = new ConcurrentHashMap<String, String>();
+
+        /**
+         * Writes the image and ends the snapshot.
+         *
+         * @param fileName the file to write
+         * @param compress whether to gzip the file
+         * @throws IOException if the file could not be written
+         */
+        void writeTo(String fileName, boolean compress) throws IOException {
+            try {
+                KVStore.writeXML(pairs(), fileName, compress);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                synchronized (KVServer.this) {
+                    snapshot = null;
+                }
+            }
+        }
+
+        /**
+         * The live pairs not written since the start, then the saved ones.
+         * A live pair is checked against the saved keys only after it is
+         * read, and a key is saved before it is changed, so a live pair
+         * that passes the check still holds its value from the start. A key
+         * saved just after its live pair was read comes out twice, with the
+         * same value both times.
+         */
+        private Iterator<Map.Entry<String, String>> pairs() {
+            final Iterator<Map.Entry<String, String>> live = dataStore.entries();
+            return new Iterator<Map.Entry<String, String>>() {
+                private Iterator<Map.Entry<String, String>> savedPairs;
+                private Map.Entry<String, String> next = advance();
+
+                private Map.Entry<String, String> advance() {
+                    while (savedPairs == null && live.hasNext()) {
+                        Map.Entry<String, String> entry = live.next();
+                        if (!saved.containsKey(entry.getKey())) {
+                            return entry;
+                        }
+                    }
+                    if (savedPairs == null) {
+                        savedPairs = saved.entrySet().iterator();
+                    }
+                    while (savedPairs.hasNext()) {
+                        Map.Entry<String, String> entry = savedPairs.next();
+                        if (entry.getValue() != ABSENT) {
+                            return entry;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, String> entry = next;
+                    next = advance();
+                    return entry;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
     }
 
@@ -2,43 +2,37 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Enumeration;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import java.io.File;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.StringReader;
-import java.util.Scanner;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-import org.w3c.dom.DOMException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
  * This is a basic key-value store. Ideally this would go to disk, or some other
  * backing store.
  */
-public class KVStore implements KeyValueInterface {
+public class KVStore implements StorageEngine {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private ConcurrentHashMap<String, String> store;
 
@@ -49,6 +43,7 @@ public class KVStore implements KeyValueInterface {
         resetStore();
     }
 
+    @Override
     public void resetStore() {
         this.store = new ConcurrentHashMap<String, String>();
     }
@@ -96,54 +91,41 @@ public class KVStore implements KeyValueInterface {
         }
     }
 
+    @Override
+    public boolean hasKey(String key) {
+        return key != null && store.containsKey(key);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> entries() {
+        return store.entrySet().iterator();
+    }
+
     /**
      * Serialize this store to XML. See the spec for specific output format.
      * This method is best effort. Any exceptions that arise can be dropped.
      */
     public String toXML() {
+    	return toXML(store.entrySet().iterator());
+    }
+
+    /**
+     * Serialize key-value pairs to XML in the format of toXML, for any
+     * StorageEngine.
+     *
+     * @param entries the pairs to serialize
+     * @return the XML, or null if it could not be generated
+     */
+    static String toXML(Iterator<Map.Entry<String, String>> entries) {
+    	StringWriter xmlwriter = new StringWriter();
     	try {
-    		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    		DocumentBuilder db = dbf.newDocumentBuilder();
-    		Document xmlDoc = db.newDocument();
-    		xmlDoc.setXmlStandalone(true);
-    		
-    		Element root = xmlDoc.createElement("KVStore");
-    		for (Enumeration<String> keys = store.keys(); keys.hasMoreElements();) {
-    			String k = keys.nextElement();
-    			Element pair = xmlDoc.createElement("KVPair");
-
-    			Element key = xmlDoc.createElement("Key");
-				key.appendChild(xmlDoc.createTextNode(k));
-				Element value = xmlDoc.createElement("Value");
-				value.appendChild(xmlDoc.createTextNode(store.get(k)));
-				
-				pair.appendChild(key);
-				pair.appendChild(value);
-    			
-    			root.appendChild(pair);
-    		}
-    		xmlDoc.appendChild(root);
-    		
-    		Transformer transformer = null;
-    	    TransformerFactory transformerFactory = TransformerFactory.newInstance();
-    		try {
-    			transformer = transformerFactory.newTransformer();
-    		} catch (TransformerConfigurationException e) {
-    		}
-    		
-    		StringWriter xmlwriter = new StringWriter();
-    		DOMSource source = new DOMSource(xmlDoc);
-    		StreamResult xmlout = new StreamResult(xmlwriter);
-    		
-    		try {
-    			transformer.transform(source, xmlout);
-    		} catch (TransformerException e) {
-    		}
-    		
-    		return xmlwriter.toString();
-    	} catch (ParserConfigurationException e) {
+    		XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(xmlwriter);
+    		writeXML(entries, xml);
+    		xml.close();
+    	} catch (XMLStreamException e) {
     		return null;
     	}
+    	return xmlwriter.toString();
     }
 
     @Override
@@ -153,26 +135,32 @@ public class KVStore implements KeyValueInterface {
 
     /**
      * Serialize to XML and write to a file.
-     * This method is best effort. All exceptions that      *
+     * This method is best effort. All exceptions that arise are dropped.
+     *
      * @param fileName the file to write the serialized store
      */
     public void dumpToFile(String fileName) {
-    	File dump = new File(fileName);
     	try {
-    		
-    		if (!dump.exists()) {
-    			dump.createNewFile();
-    		}
-    		
-    		BufferedWriter bw = new BufferedWriter(new FileWriter(dump.getAbsoluteFile()));
-    		bw.write(this.toString());
-    		bw.close();
-    		
+    		writeToFile(fileName, false);
     	} catch (IOException e) {
     		System.out.println("Dump failed.");
     	}
     }
 
+    /**
+     * Serialize to XML and write to a file, as dumpToFile does, but report
+     * failure to the caller. The store is written out as it is iterated, so
+     * memory use does not grow with its size.
+     *
+     * @param fileName the file to write the serialized store
+     * @param compress whether to gzip the file
+     * @throws IOException if the file could not be written
+     */
+    @Override
+    public void writeToFile(String fileName, boolean compress) throws IOException {
+    	writeXML(store.entrySet().iterator(), fileName, compress);
+    }
+
     /**
      * Replaces the contents of the store with the contents of a file
      * written by dumpToFile; the previous contents of the store are lost.
@@ -181,36 +169,120 @@ public class KVStore implements KeyValueInterface {
      *
      * @param fileName the file containing the serialized store data
      */
+    @Override
     public void restoreFromFile(String fileName) {
-        resetStore();
-        File restore = new File(fileName);
-    	try {
-    		if (!restore.exists()) {
-    			throw new Exception();
-    		}
-    	    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    	    DocumentBuilder db = null;
-    	    try {
-    	        db = dbf.newDocumentBuilder();
-    	        try {
-    	            Document doc = db.parse(restore);
-    	            Element KVStore = doc.getDocumentElement();
-    	            NodeList kvpairs = KVStore.getChildNodes();
-    	            for (int i = 0; i < kvpairs.getLength(); i++) {
-    	            	Node KVPair = kvpairs.item(i);
-    	            	String key = KVPair.getFirstChild().getTextContent();
-    	            	String value = KVPair.getLastChild().getTextContent();
-    	            	store.put(key,  value);
-    	            }
-    	        } catch (Exception e) {
-    	        	throw new Exception();
-    	        }
-    	    } catch (Exception e) {
-    	    	throw new Exception();
-    	    }
-    	} catch (Exception e) {
-    		System.out.println("Restore failed.");
-    	}
-    	
+        restoreInto(fileName, this);
+    }
+
+    /**
+     * Streams key-value pairs to a file in the XML format of toXML, for any
+     * StorageEngine.
+     *
+     * @param entries the pairs to serialize
+     * @param fileName the file to write
+     * @param compress whether to gzip the file
+     * @throws IOException if the file could not be written
+     */
+    static void writeXML(Iterator<Map.Entry<String, String>> entries, String fileName,
+            boolean compress) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        try {
+            if (compress) {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            }
+            XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            writeXML(entries, xml);
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeXML(Iterator<Map.Entry<String, String>> entries,
+            XMLStreamWriter xml) throws XMLStreamException {
+        xml.writeStartDocument("UTF-8", "1.0");
+        xml.writeStartElement("KVStore");
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            xml.writeStartElement("KVPair");
+            xml.writeStartElement("Key");
+            xml.writeCharacters(entry.getKey());
+            xml.writeEndElement();
+            xml.writeStartElement("Value");
+            xml.writeCharacters(entry.getValue());
+            xml.writeEndElement();
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
+        xml.writeEndDocument();
+        xml.flush();
+    }
+
+    /**
+     * Replaces the contents of any StorageEngine with the contents of a
+     * file written by dumpToFile, as restoreFromFile does. The file is read
+     * one pair at a time, and may be gzipped.
+     *
+     * @param fileName the file containing the serialized store data
+     * @param into the StorageEngine to fill
+     */
+    static void restoreInto(String fileName, StorageEngine into) {
+        try {
+            readInto(fileName, into);
+        } catch (Exception e) {
+            System.out.println("Restore failed.");
+        }
+    }
+
+    /**
+     * Like restoreInto, but reports a file that cannot be read in full.
+     *
+     * @param fileName the file containing the serialized store data
+     * @param into the StorageEngine to fill
+     * @throws IOException if the file is missing, malformed, or holds a
+     *         pair the store cannot take
+     */
+    static void readInto(String fileName, StorageEngine into) throws IOException {
+        into.resetStore();
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE);
+        try {
+            in.mark(2);
+            int magic = in.read() | (in.read() << 8);
+            in.reset();
+            if (magic == GZIPInputStream.GZIP_MAGIC) {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            XMLStreamReader xml = factory.createXMLStreamReader(in);
+            String key = null, value = null;
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (xml.getLocalName().equals("Key")) {
+                        key = xml.getElementText();
+                    } else if (xml.getLocalName().equals("Value")) {
+                        value = xml.getElementText();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && xml.getLocalName().equals("KVPair")) {
+                    into.put(key, value);
+                    key = null;
+                    value = null;
+                }
+            }
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } catch (KVException e) {
+            throw new IOException(e.getKVMessage().getMessage(), e);
+        } finally {
+            in.close();
+        }
     }
 }
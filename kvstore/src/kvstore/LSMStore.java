@@ -0,0 +1,864 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A log-structured merge StorageEngine for write-heavy slaves. Writes go to
+ * an in-memory sorted memtable. A full memtable is frozen and written out
+ * by a background thread as an immutable, sorted SSTable file; once too
+ * many tables pile up, the same thread merges them into one. Reads look in
+ * the memtable, then the frozen memtables, then the tables from newest to
+ * oldest. Each table has a bloom filter, so a lookup of a missing key
+ * rarely reads from disk.
+ *
+ * The memtable has no log of its own: like MappedStore, the files are
+ * scratch space, and the TPCLog and its snapshots are what survive a
+ * restart. Leftover table files are removed when an LSMStore is created.
+ * While tables cannot be written, writes are taken until the frozen
+ * memtables are full and then fail with ERROR_STORAGE_UNAVAILABLE.
+ */
+public class LSMStore implements StorageEngine {
+
+    public static final int DEFAULT_MEMTABLE_SIZE = 4 << 20;
+
+    /* tables kept before they are merged into one */
+    private static final int MAX_TABLES = 4;
+    /* frozen memtables allowed to wait for a flush before writers wait too */
+    private static final int MAX_FROZEN = 2;
+    /* milliseconds before a failed flush or merge is tried again */
+    private static final int RETRY_INTERVAL = 1000;
+    /* a sparse index entry every this many records or bytes of a table */
+    private static final int INDEX_INTERVAL = 16;
+    private static final int INDEX_BYTES = 64 * 1024;
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HASHES = 7;
+    /* memtable bytes charged per entry besides its key and value */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final String TABLE_PREFIX = "sstable.";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* marks a deleted key; compared by identity */
+    private static final String TOMBSTONE = new String("");
+
+    private File directory;
+    private int memtableSize;
+
+    private volatile Memtable memtable;
+    /* newest first */
+    private volatile List<Memtable> frozen;
+    private volatile List<SSTable> tables;
+
+    /* writers into the memtable hold the read lock; swapping it needs the write lock */
+    private ReentrantReadWriteLock rotation;
+    /* held while the lists of frozen memtables and tables are replaced */
+    private ReentrantLock maintenance;
+    private Condition work, flushed;
+    /* only the background thread writes tables */
+    private int nextTableId;
+    private volatile boolean closed;
+    /* the last attempt to write out a frozen memtable failed */
+    private volatile boolean flushFailing;
+    private Thread compactor;
+
+    /**
+     * Constructs an empty LSMStore keeping its tables in a directory.
+     *
+     * @param directory where to create table files; created if missing
+     * @param memtableSize approximate bytes of entries in a memtable before
+     *        it is written out
+     * @throws IOException if the directory cannot be created or cleared
+     */
+    public LSMStore(File directory, int memtableSize) throws IOException {
+        if (memtableSize < 1) {
+            throw new IllegalArgumentException("memtable size must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        this.directory = directory;
+        this.memtableSize = memtableSize;
+        this.memtable = new Memtable();
+        this.frozen = Collections.emptyList();
+        this.tables = Collections.emptyList();
+        this.rotation = new ReentrantReadWriteLock();
+        this.maintenance = new ReentrantLock();
+        this.work = maintenance.newCondition();
+        this.flushed = maintenance.newCondition();
+        deleteTableFiles();
+        this.compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runMaintenance();
+            }
+        }, "kvstore-lsm-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException with ERROR_STORAGE_UNAVAILABLE if memtables cannot
+     *         be written out and there is no room for another
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        write(key, value);
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_STORAGE_UNAVAILABLE if a table cannot be read
+     */
+    @Override
+    public String get(String key) throws KVException {
+        String value;
+        try {
+            value = lookup(key);
+        } catch (IOException e) {
+            throw new KVException(ERROR_STORAGE_UNAVAILABLE);
+        }
+        if (value == null || value == TOMBSTONE) {
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        }
+        return value;
+    }
+
+    /**
+     * Delete the value corresponding to the provided key. The caller must
+     * not be writing the same key concurrently, as KVServer ensures.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_STORAGE_UNAVAILABLE as put
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if (!hasKey(key)) {
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        }
+        write(key, TOMBSTONE);
+    }
+
+    @Override
+    public boolean hasKey(String key) {
+        if (key == null) {
+            return false;
+        }
+        try {
+            String value = lookup(key);
+            return value != null && value != TOMBSTONE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void resetStore() {
+        rotation.writeLock().lock();
+        try {
+            maintenance.lock();
+            try {
+                List<SSTable> old = tables;
+                memtable = new Memtable();
+                frozen = Collections.emptyList();
+                tables = Collections.emptyList();
+                for (SSTable table : old) {
+                    table.delete();
+                }
+                flushed.signalAll();
+            } finally {
+                maintenance.unlock();
+            }
+        } finally {
+            rotation.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void writeToFile(String fileName, boolean compress) throws IOException {
+        try {
+            KVStore.writeXML(entries(), fileName, compress);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void restoreFromFile(String fileName) {
+        KVStore.restoreInto(fileName, this);
+    }
+
+    /**
+     * Stops the background thread and removes every table file.
+     */
+    public void close() {
+        maintenance.lock();
+        try {
+            closed = true;
+            work.signalAll();
+            flushed.signalAll();
+        } finally {
+            maintenance.unlock();
+        }
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            // ignore and clean up anyway
+        }
+        resetStore();
+    }
+
+    /**
+     * Number of SSTables currently holding data.
+     */
+    public int getTableCount() {
+        return tables.size();
+    }
+
+    /**
+     * Number of frozen memtables waiting to be written out.
+     */
+    public int getFrozenCount() {
+        return frozen.size();
+    }
+
+    /**
+     * The live pairs in the store, in key order.
+     */
+    @Override
+    public Iterator<Map.Entry<String, String>> entries() {
+        // read in the same order as lookup so nothing is missed mid-flush
+        Memtable current = memtable;
+        List<Memtable> frozenNow = frozen;
+        List<SSTable> tablesNow = tables;
+        List<Iterator<Map.Entry<String, String>>> sources =
+            new ArrayList<Iterator<Map.Entry<String, String>>>();
+        sources.add(current.map.entrySet().iterator());
+        for (Memtable m : frozenNow) {
+            sources.add(m.map.entrySet().iterator());
+        }
+        for (SSTable table : tablesNow) {
+            sources.add(table.scan());
+        }
+        return new MergeIterator(sources, true);
+    }
+
+    /**
+     * Finds the newest value of a key.
+     *
+     * @return the value, TOMBSTONE if it was deleted, or null if the store
+     *         has never seen it
+     */
+    private String lookup(String key) throws IOException {
+        while (true) {
+            String value = memtable.map.get(key);
+            if (value != null) {
+                return value;
+            }
+            for (Memtable m : frozen) {
+                value = m.map.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            try {
+                for (SSTable table : tables) {
+                    value = table.find(key);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+                return null;
+            } catch (ClosedChannelException e) {
+                // the table was merged away while we read it; look again
+            }
+        }
+    }
+
+    private void write(String key, String value) throws KVException {
+        Memtable current = memtable;
+        // a memtable left full by a rotation that found no room
+        if (current.bytes.get() >= memtableSize && !rotate(current)) {
+            throw new KVException(ERROR_STORAGE_UNAVAILABLE);
+        }
+        Memtable target;
+        long size;
+        rotation.readLock().lock();
+        try {
+            target = memtable;
+            target.map.put(key, value);
+            size = target.bytes.addAndGet(2 * (key.length() + value.length()) + ENTRY_OVERHEAD);
+        } finally {
+            rotation.readLock().unlock();
+        }
+        if (size >= memtableSize) {
+            rotate(target);
+        }
+    }
+
+    /**
+     * Freezes a full memtable and hands it to the background thread. Waits
+     * while too many frozen memtables are already waiting to be written,
+     * unless writing them out is failing.
+     *
+     * @return false if the memtable was left in place because there is no
+     *         room for it and the last flush failed
+     */
+    private boolean rotate(Memtable full) {
+        rotation.writeLock().lock();
+        try {
+            if (memtable != full) {
+                return true; // another writer got here first
+            }
+            maintenance.lock();
+            try {
+                while (frozen.size() >= MAX_FROZEN && !closed) {
+                    if (flushFailing) {
+                        return false;
+                    }
+                    flushed.awaitUninterruptibly();
+                }
+                List<Memtable> next = new ArrayList<Memtable>(frozen.size() + 1);
+                next.add(full);
+                next.addAll(frozen);
+                frozen = Collections.unmodifiableList(next);
+                memtable = new Memtable();
+                work.signalAll();
+                return true;
+            } finally {
+                maintenance.unlock();
+            }
+        } finally {
+            rotation.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Body of the background thread: writes out frozen memtables, oldest
+     * first, and merges the tables once there are too many. The maintenance
+     * lock is only taken to pick the work and to publish its result, so
+     * writers and resetStore are not held up by table I/O.
+     */
+    private void runMaintenance() {
+        while (true) {
+            Memtable oldest = null;
+            List<SSTable> merging = null;
+            maintenance.lock();
+            try {
+                while (!closed && frozen.isEmpty() && tables.size() <= MAX_TABLES) {
+                    work.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                if (!frozen.isEmpty()) {
+                    oldest = frozen.get(frozen.size() - 1);
+                } else {
+                    merging = tables;
+                }
+            } finally {
+                maintenance.unlock();
+            }
+            try {
+                if (oldest != null) {
+                    flush(oldest);
+                } else {
+                    compact(merging);
+                }
+            } catch (IOException e) {
+                maintenance.lock();
+                try {
+                    if (oldest != null) {
+                        flushFailing = true;
+                        flushed.signalAll();
+                    }
+                    if (!closed) {
+                        work.await(RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException ie) {
+                    // try again now
+                } finally {
+                    maintenance.unlock();
+                }
+            }
+        }
+    }
+
+    /* called by the background thread without the maintenance lock */
+    private void flush(Memtable oldest) throws IOException {
+        SSTable table = writeTable(oldest.map.entrySet().iterator(), oldest.map.size(), false);
+        maintenance.lock();
+        try {
+            int at = frozen.indexOf(oldest);
+            if (at < 0) {
+                table.delete(); // the store was reset meanwhile
+                return;
+            }
+            List<SSTable> nextTables = new ArrayList<SSTable>(tables.size() + 1);
+            nextTables.add(table);
+            nextTables.addAll(tables);
+            // publish the table before dropping the memtable, as lookup
+            // reads the memtables first
+            tables = Collections.unmodifiableList(nextTables);
+            List<Memtable> nextFrozen = new ArrayList<Memtable>(frozen);
+            nextFrozen.remove(at);
+            frozen = Collections.unmodifiableList(nextFrozen);
+            flushFailing = false;
+            flushed.signalAll();
+        } finally {
+            maintenance.unlock();
+        }
+    }
+
+    /**
+     * Merges the given tables, which were every table when the merge began,
+     * into one. As no older table is left, deleted keys can be dropped
+     * entirely. Only the background thread adds tables, so they are still
+     * every table when the merge is published unless the store was reset.
+     */
+    private void compact(List<SSTable> old) throws IOException {
+        List<Iterator<Map.Entry<String, String>>> sources =
+            new ArrayList<Iterator<Map.Entry<String, String>>>();
+        int keys = 0;
+        for (SSTable table : old) {
+            sources.add(table.scan());
+            keys += table.keyCount;
+        }
+        SSTable merged;
+        try {
+            merged = writeTable(new MergeIterator(sources, true), keys, true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        maintenance.lock();
+        try {
+            if (tables != old) {
+                merged.delete();
+                return;
+            }
+            tables = Collections.singletonList(merged);
+        } finally {
+            maintenance.unlock();
+        }
+        for (SSTable table : old) {
+            table.delete();
+        }
+    }
+
+    /**
+     * Writes sorted entries out as a new table.
+     *
+     * @param entries entries in key order
+     * @param expectedKeys about how many entries there are, to size the
+     *        bloom filter
+     * @param dropTombstones whether deleted keys can be left out
+     */
+    private SSTable writeTable(Iterator<Map.Entry<String, String>> entries, int expectedKeys,
+            boolean dropTombstones) throws IOException {
+        File file = new File(directory, TABLE_PREFIX + nextTableId++);
+        BloomFilter bloom = new BloomFilter(expectedKeys);
+        ArrayList<String> indexKeys = new ArrayList<String>();
+        ArrayList<Long> indexOffsets = new ArrayList<Long>();
+        int keyCount = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file)));
+        boolean written = false;
+        try {
+            long offset = 0;
+            long lastIndexed = -INDEX_BYTES;
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                String value = entry.getValue();
+                if (dropTombstones && value == TOMBSTONE) {
+                    continue;
+                }
+                if (keyCount % INDEX_INTERVAL == 0 || offset - lastIndexed >= INDEX_BYTES) {
+                    indexKeys.add(entry.getKey());
+                    indexOffsets.add(offset);
+                    lastIndexed = offset;
+                }
+                byte[] keyBytes = entry.getKey().getBytes(UTF8);
+                out.writeInt(keyBytes.length);
+                out.write(keyBytes);
+                offset += 4 + keyBytes.length;
+                if (value == TOMBSTONE) {
+                    out.writeInt(-1);
+                    offset += 4;
+                } else {
+                    byte[] valueBytes = value.getBytes(UTF8);
+                    out.writeInt(valueBytes.length);
+                    out.write(valueBytes);
+                    offset += 4 + valueBytes.length;
+                }
+                bloom.add(entry.getKey());
+                keyCount++;
+            }
+            out.close();
+            written = true;
+        } finally {
+            if (!written) {
+                out.close();
+                file.delete(); // a failed write is tried again in a new file
+            }
+        }
+        long[] offsets = new long[indexOffsets.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = indexOffsets.get(i);
+        }
+        return new SSTable(file, indexKeys.toArray(new String[indexKeys.size()]),
+            offsets, bloom, keyCount);
+    }
+
+    private void deleteTableFiles() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(TABLE_PREFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * A sorted in-memory table of the latest writes.
+     */
+    private static class Memtable {
+
+        private ConcurrentSkipListMap<String, String> map =
+            new ConcurrentSkipListMap<String, String>();
+        private AtomicLong bytes = new AtomicLong();
+    }
+
+    /**
+     * An immutable, sorted table file. Each record is the key length, the
+     * key, the value length (-1 for a deleted key) and the value. The
+     * sparse index of every INDEX_INTERVAL-th key and the bloom filter are
+     * kept in memory.
+     */
+    private static class SSTable {
+
+        private File file;
+        private FileChannel channel;
+        private long length;
+        private String[] indexKeys;
+        private long[] indexOffsets;
+        private BloomFilter bloom;
+        private int keyCount;
+
+        public SSTable(File file, String[] indexKeys, long[] indexOffsets,
+                BloomFilter bloom, int keyCount) throws IOException {
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+            this.length = channel.size();
+            this.indexKeys = indexKeys;
+            this.indexOffsets = indexOffsets;
+            this.bloom = bloom;
+            this.keyCount = keyCount;
+        }
+
+        /**
+         * @return the value of the key, TOMBSTONE, or null if this table
+         *         does not have the key
+         */
+        public String find(String key) throws IOException {
+            if (!bloom.mightContain(key)) {
+                return null;
+            }
+            int lo = 0, hi = indexKeys.length - 1, block = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexKeys[mid].compareTo(key) <= 0) {
+                    block = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (block < 0) {
+                return null;
+            }
+            long start = indexOffsets[block];
+            long end = (block + 1 < indexOffsets.length) ? indexOffsets[block + 1] : length;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte[] keyBytes = new byte[buffer.getInt()];
+                buffer.get(keyBytes);
+                int cmp = new String(keyBytes, UTF8).compareTo(key);
+                int valueLength = buffer.getInt();
+                if (cmp == 0) {
+                    if (valueLength < 0) {
+                        return TOMBSTONE;
+                    }
+                    byte[] valueBytes = new byte[valueLength];
+                    buffer.get(valueBytes);
+                    return new String(valueBytes, UTF8);
+                }
+                if (cmp > 0) {
+                    return null;
+                }
+                if (valueLength > 0) {
+                    buffer.position(buffer.position() + valueLength);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads the whole table in order. Read errors surface as
+         * UncheckedIOException.
+         */
+        public Iterator<Map.Entry<String, String>> scan() {
+            final DataInputStream in;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new Iterator<Map.Entry<String, String>>() {
+                private int remaining = keyCount;
+
+                @Override
+                public boolean hasNext() {
+                    if (remaining == 0) {
+                        close(in);
+                    }
+                    return remaining > 0;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (remaining == 0) {
+                        throw new NoSuchElementException();
+                    }
+                    try {
+                        byte[] keyBytes = new byte[in.readInt()];
+                        in.readFully(keyBytes);
+                        int valueLength = in.readInt();
+                        String value = TOMBSTONE;
+                        if (valueLength >= 0) {
+                            byte[] valueBytes = new byte[valueLength];
+                            in.readFully(valueBytes);
+                            value = new String(valueBytes, UTF8);
+                        }
+                        remaining--;
+                        return new AbstractMap.SimpleImmutableEntry<String, String>(
+                            new String(keyBytes, UTF8), value);
+                    } catch (IOException e) {
+                        close(in);
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        public void delete() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore error
+            }
+            file.delete();
+        }
+
+        private static void close(DataInputStream in) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore error
+            }
+        }
+    }
+
+    /**
+     * Merges sorted sources, the newest first, into one sorted sequence in
+     * which each key appears once with its newest value.
+     */
+    private static class MergeIterator implements Iterator<Map.Entry<String, String>> {
+
+        private PriorityQueue<Head> heads;
+        private boolean dropTombstones;
+        private Map.Entry<String, String> next;
+
+        public MergeIterator(List<Iterator<Map.Entry<String, String>>> sources,
+                boolean dropTombstones) {
+            this.dropTombstones = dropTombstones;
+            this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+                @Override
+                public int compare(Head a, Head b) {
+                    int cmp = a.entry.getKey().compareTo(b.entry.getKey());
+                    return (cmp != 0) ? cmp : a.rank - b.rank;
+                }
+            });
+            for (int i = 0; i < sources.size(); i++) {
+                Head head = new Head(sources.get(i), i);
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            }
+            next = advance();
+        }
+
+        private Map.Entry<String, String> advance() {
+            while (!heads.isEmpty()) {
+                Head newest = heads.poll();
+                Map.Entry<String, String> entry = newest.entry;
+                if (newest.advance()) {
+                    heads.add(newest);
+                }
+                // older values of the same key are shadowed
+                while (!heads.isEmpty() && heads.peek().entry.getKey().equals(entry.getKey())) {
+                    Head older = heads.poll();
+                    if (older.advance()) {
+                        heads.add(older);
+                    }
+                }
+                if (!dropTombstones || entry.getValue() != TOMBSTONE) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = next;
+            next = advance();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private static class Head {
+
+            private Iterator<Map.Entry<String, String>> source;
+            private int rank;
+            private Map.Entry<String, String> entry;
+
+            public Head(Iterator<Map.Entry<String, String>> source, int rank) {
+                this.source = source;
+                this.rank = rank;
+            }
+
+            public boolean advance() {
+                if (!source.hasNext()) {
+                    return false;
+                }
+                entry = source.next();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A bloom filter over the keys of one table, with BLOOM_BITS_PER_KEY
+     * bits per key and BLOOM_HASHES probes derived from one 64-bit hash.
+     */
+    static class BloomFilter {
+
+        private long[] bits;
+        private int numBits;
+
+        public BloomFilter(int expectedKeys) {
+            numBits = Math.max(64, expectedKeys * BLOOM_BITS_PER_KEY);
+            bits = new long[(numBits + 63) / 64];
+        }
+
+        public void add(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash, h2 = (int) (hash >>> 32);
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        public boolean mightContain(String key) {
+            long hash = hash(key);
+            int h1 = (int) hash, h2 = (int) (hash >>> 32);
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long hash(String key) {
+            // TPCMaster.hashTo64bit spread with the MurmurHash3 finalizer
+            long h = TPCMaster.hashTo64bit(key);
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+}
@@ -0,0 +1,349 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A StorageEngine that keeps values out of the heap, in memory-mapped
+ * segment files. Each put appends a record (key length, value length, key,
+ * value) to the active segment; only the index of key to (segment, offset)
+ * lives on the heap. Segments are filled one after another. Once overwrites
+ * and deletes leave a full segment mostly dead, its live records are copied
+ * to the active segment and the file is removed.
+ *
+ * The segments are scratch space rather than a durable copy: the TPCLog and
+ * its snapshots are what survive a restart, so leftover segment files are
+ * removed when a MappedStore is created.
+ *
+ * Writes are serialized on the store; reads go straight to the mappings and
+ * run concurrently with writes and with each other.
+ */
+public class MappedStore implements StorageEngine {
+
+    /** Smallest segment size, enough for any key and value KVServer allows. */
+    public static final int MIN_SEGMENT_SIZE = 1 << 20;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "segment.";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File directory;
+    private int segmentSize;
+
+    /* key -> segment id << 32 | offset of its record */
+    private ConcurrentHashMap<String, Long> index;
+    private ConcurrentHashMap<Integer, Segment> segments;
+    private Segment active;
+    private int nextSegmentId;
+
+    /**
+     * Constructs an empty MappedStore keeping its segments in a directory.
+     *
+     * @param directory where to create segment files; created if missing
+     * @param segmentSize size of each segment file in bytes, at least
+     *        MIN_SEGMENT_SIZE
+     * @throws IOException if the directory cannot be created or cleared
+     */
+    public MappedStore(File directory, int segmentSize) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segment size below " + MIN_SEGMENT_SIZE);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.index = new ConcurrentHashMap<String, Long>();
+        this.segments = new ConcurrentHashMap<Integer, Segment>();
+        deleteSegmentFiles();
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException with ERROR_OVERSIZED_VALUE if the record would not
+     *         fit in a segment, or ERROR_STORAGE_UNAVAILABLE if a new segment
+     *         could not be created
+     */
+    @Override
+    public synchronized void put(String key, String value) throws KVException {
+        byte[] keyBytes = key.getBytes(UTF8);
+        byte[] valueBytes = value.getBytes(UTF8);
+        int size = RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length;
+        if (size > segmentSize) {
+            throw new KVException(ERROR_OVERSIZED_VALUE);
+        }
+        long location = append(keyBytes, valueBytes, size);
+        Long old = index.put(key, location);
+        if (old != null) {
+            release(old);
+        }
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        while (true) {
+            Long location = index.get(key);
+            if (location == null) {
+                throw new KVException(ERROR_NO_SUCH_KEY);
+            }
+            Segment segment = segments.get(segmentId(location));
+            if (segment != null) {
+                return segment.readValue(offset(location));
+            }
+            // the record moved while its segment was compacted; look again
+        }
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public synchronized void del(String key) throws KVException {
+        Long location = index.remove(key);
+        if (location == null) {
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        }
+        release(location);
+    }
+
+    @Override
+    public boolean hasKey(String key) {
+        return key != null && index.containsKey(key);
+    }
+
+    @Override
+    public synchronized void resetStore() {
+        index.clear();
+        segments.clear();
+        active = null;
+        deleteSegmentFiles();
+    }
+
+    @Override
+    public void writeToFile(String fileName, boolean compress) throws IOException {
+        KVStore.writeXML(entries(), fileName, compress);
+    }
+
+    @Override
+    public void restoreFromFile(String fileName) {
+        KVStore.restoreInto(fileName, this);
+    }
+
+    /**
+     * Number of segment files currently in use.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * The pairs in the store, each value read from its segment as the
+     * iterator reaches it.
+     */
+    @Override
+    public Iterator<Map.Entry<String, String>> entries() {
+        final Iterator<String> keys = index.keySet().iterator();
+        return new Iterator<Map.Entry<String, String>>() {
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    try {
+                        return new AbstractMap.SimpleImmutableEntry<String, String>(key, get(key));
+                    } catch (KVException e) {
+                        // deleted since we started; skip it
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                Map.Entry<String, String> entry = next;
+                next = advance();
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new segment if it
+     * does not fit. Caller holds the store lock.
+     *
+     * @return location of the record
+     */
+    private long append(byte[] keyBytes, byte[] valueBytes, int size) throws KVException {
+        if (active == null || active.end + size > segmentSize) {
+            roll();
+        }
+        int offset = active.end;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(valueBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        active.end += size;
+        active.live += size;
+        return location(active.id, offset);
+    }
+
+    /**
+     * Opens a new active segment.
+     *
+     * @throws KVException with ERROR_STORAGE_UNAVAILABLE if the segment file
+     *         could not be created and mapped
+     */
+    private void roll() throws KVException {
+        int id = nextSegmentId++;
+        File file = new File(directory, SEGMENT_PREFIX + id);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                active = new Segment(id, file, buffer);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new KVException(ERROR_STORAGE_UNAVAILABLE);
+        }
+        segments.put(id, active);
+    }
+
+    /**
+     * Accounts for a record that is no longer live, compacting its segment
+     * once less than a quarter of it is. Caller holds the store lock.
+     */
+    private void release(long location) throws KVException {
+        Segment segment = segments.get(segmentId(location));
+        segment.live -= segment.recordSize(offset(location));
+        if (segment != active && segment.live < segmentSize / 4) {
+            compact(segment);
+        }
+    }
+
+    /**
+     * Copies the live records of a full segment to the active segment, then
+     * removes it. Caller holds the store lock.
+     */
+    private void compact(Segment segment) throws KVException {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset < segment.end) {
+            buffer.position(offset);
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            int size = RECORD_HEADER_SIZE + keyLength + valueLength;
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            String key = new String(keyBytes, UTF8);
+            Long location = index.get(key);
+            if (location != null && location == location(segment.id, offset)) {
+                byte[] valueBytes = new byte[valueLength];
+                buffer.get(valueBytes);
+                index.put(key, append(keyBytes, valueBytes, size));
+            }
+            offset += size;
+        }
+        segments.remove(segment.id);
+        // readers still holding the mapping keep it alive after the delete
+        segment.file.delete();
+    }
+
+    private void deleteSegmentFiles() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(SEGMENT_PREFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static long location(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    /**
+     * One mapped segment file. end and live are only touched under the
+     * store lock; records below end are never modified.
+     */
+    private static class Segment {
+
+        private int id;
+        private File file;
+        private MappedByteBuffer buffer;
+        private int end;
+        private int live;
+
+        public Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        public String readValue(int offset) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset);
+            int keyLength = record.getInt();
+            byte[] value = new byte[record.getInt()];
+            record.position(offset + RECORD_HEADER_SIZE + keyLength);
+            record.get(value);
+            return new String(value, UTF8);
+        }
+
+        public int recordSize(int offset) {
+            return RECORD_HEADER_SIZE + buffer.getInt(offset) + buffer.getInt(offset + 4);
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package kvstore;
+
+/**
+ * Interface for the request logic behind a NetworkHandler. Keeping it apart
+ * from how a request arrives lets one connection carry many requests.
+ */
+public interface MessageHandler {
+
+    /**
+     * Services a single request and builds the response to send back.
+     *
+     * @param request KVMessage received from the other endpoint
+     * @return KVMessage to send back
+     * @throws KVException if the request fails; its KVMessage is sent back
+     */
+    public KVMessage process(KVMessage request) throws KVException;
+
+}
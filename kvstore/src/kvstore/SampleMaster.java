@@ -31,7 +31,9 @@ public class SampleMaster {
 
         Thread.sleep(100);
         clientSocketServer = new SocketServer(hostname, 8080);
-        NetworkHandler clientHandler = new TPCClientHandler(tpcMaster);
+        // requests block on slaves, so give each one its own (virtual) thread
+        NetworkHandler clientHandler = new TPCClientHandler(tpcMaster,
+            TaskExecutors.virtualThreadPerTask());
         clientSocketServer.addHandler(clientHandler);
         clientSocketServer.connect();
 
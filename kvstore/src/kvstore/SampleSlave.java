@@ -35,9 +35,11 @@ public class SampleSlave {
         keyServer = new KVServer(100, 10);
         logPath = "bin/log." + slaveID + "@" + server.getHostname();
         log = new TPCLog(logPath, keyServer);
+        log.setCheckpointInterval(1000);
 
         server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
-        TPCMasterHandler handler = new TPCMasterHandler(slaveID, keyServer, log);
+        TPCMasterHandler handler = new TPCMasterHandler(slaveID, keyServer, log,
+            TaskExecutors.virtualThreadPerTask());
         server.addHandler(handler);
         server.connect();
 
@@ -3,15 +3,17 @@ package kvstore;
 import static kvstore.KVConstants.*;
 
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of the methods are blocking.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements FrameHandler, MessageHandler {
 
     private KVServer kvServer;
-    private ThreadPool threadPool;
+    private Executor executor;
 
     /**
      * Constructs a ServerClientHandler with ThreadPool of a single thread.
@@ -32,25 +34,101 @@ public class ServerClientHandler implements NetworkHandler {
     public ServerClientHandler(KVServer kvServer, int connections) {
         // implement me
         this.kvServer = kvServer;
-        threadPool = new ThreadPool(connections);
+        executor = new ThreadPool(connections);
+    }
+
+    /**
+     * Constructs a ServerClientHandler that services requests with the given
+     * Executor, for example a ThreadPool with a bounded queue or
+     * TaskExecutors.virtualThreadPerTask().
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param executor Executor to service requests
+     */
+    public ServerClientHandler(KVServer kvServer, Executor executor) {
+        this.kvServer = kvServer;
+        this.executor = executor;
     }
 
     /**
      * Creates a job to service the request for a socket and enqueues that job
-     * in the thread pool. Ignore any InterruptedExceptions.
+     * in the executor. Ignore any InterruptedExceptions. If the executor turns
+     * the job away, the client is refused or dropped as its policy says.
      *
      * @param client Socket connected to the client with the request
      */
     @Override
     public void handle(Socket client) {
         // implement me
-        threadPool.addJob(new ClientHandler(client));
+        try {
+            executor.execute(new ClientHandler(client));
+        } catch (RejectedExecutionException e) {
+            KVConnection connection = new KVConnection(client);
+            if (ThreadPool.dropsRejected(executor)) {
+                connection.close();
+            } else {
+                connection.refuse();
+            }
+        }
+    }
+
+    /**
+     * Creates a job to service a request already read by an event loop and
+     * enqueues that job in the executor. If the executor turns the job away,
+     * the client is answered with ERROR_SERVER_BUSY or dropped as its policy
+     * says.
+     *
+     * @param request request from the client
+     * @param responder where to send the response
+     */
+    @Override
+    public void handle(KVMessage request, Responder responder) {
+        try {
+            executor.execute(new FrameJob(request, responder));
+        } catch (RejectedExecutionException e) {
+            if (ThreadPool.dropsRejected(executor)) {
+                responder.close();
+            } else {
+                responder.respond(new KVMessage(RESP, ERROR_SERVER_BUSY));
+            }
+        }
+    }
+
+    /**
+     * Processes a single request from the client and returns the response
+     * with the result.
+     *
+     * @param mess request from the client
+     * @return response to send back to the client
+     * @throws KVException if the request fails
+     */
+    @Override
+    public KVMessage process(KVMessage mess) throws KVException {
+        KVMessage response;
+        switch (mess.getMsgType()) {
+            case PUT_REQ:
+                response = new KVMessage(RESP, SUCCESS);
+                kvServer.put(mess.getKey(), mess.getValue());
+                break;
+            case DEL_REQ:
+                response = new KVMessage(RESP, SUCCESS);
+                kvServer.del(mess.getKey());
+                break;
+            case GET_REQ:
+                response = new KVMessage(RESP);
+                response.setValue(kvServer.get(mess.getKey()));
+                response.setKey(mess.getKey());
+                break;
+            default: //should never happen, but in case a client were to send another message
+                throw new KVException(ERROR_INVALID_REQUEST);
+        }
+        return response;
     }
 
     /**
      * Runnable class containing routine to service a request from the client.
      */
-    private class ClientHandler implements Runnable {
+    private class ClientHandler implements ThreadPool.ConnectionJob {
 
         private Socket client;
 
@@ -64,41 +142,48 @@ public class ServerClientHandler implements NetworkHandler {
         }
 
         /**
-         * Processes request from client and sends back a response with the
-         * result. The delivery of the response is best-effort. If we are
-         * unable to return any response, there is nothing else we can do.
+         * Services requests from the client until it is done with the
+         * connection. An XML client sends a single request; a binary client
+         * may keep the connection open and send many. Each response is sent
+         * in whichever wire format the client used. The delivery of the
+         * response is best-effort. If we are unable to return any response,
+         * there is nothing else we can do.
          */
         @Override
         public void run() {
             // implement me
+            new KVConnection(client).serve(ServerClientHandler.this);
+        }
+    }
+
+    /**
+     * Runnable class containing routine to service a single decoded request.
+     */
+    private class FrameJob implements Runnable {
+
+        private KVMessage request;
+        private Responder responder;
+
+        /**
+         * Construct a FrameJob.
+         *
+         * @param request request from the client
+         * @param responder where to send the response
+         */
+        public FrameJob(KVMessage request, Responder responder) {
+            this.request = request;
+            this.responder = responder;
+        }
+
+        @Override
+        public void run() {
             KVMessage response;
             try {
-                KVMessage mess = new KVMessage(client);
-                switch (mess.getMsgType()) {
-                    case PUT_REQ:
-                        response = new KVMessage(RESP, SUCCESS);
-                        kvServer.put(mess.getKey(), mess.getValue());
-                        break;
-                    case DEL_REQ:
-                        response = new KVMessage(RESP, SUCCESS);
-                        kvServer.del(mess.getKey());
-                        break;
-                    case GET_REQ:
-                        response = new KVMessage(RESP);
-                        response.setValue(kvServer.get(mess.getKey()));
-                        response.setKey(mess.getKey());
-                        break;
-                    default: //should never happen, but in case a client were to send another message
-                        throw new KVException(ERROR_INVALID_REQUEST);
-                }
+                response = process(request);
             } catch (KVException kve) {
                 response = kve.getKVMessage();
             }
-            try {
-                response.sendMessage(client);
-            } catch (KVException kve) {
-                // do nothing (no way to report to client that sending a message to it failed)
-            }
+            responder.respond(response);
         }
     }
 
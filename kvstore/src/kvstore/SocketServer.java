@@ -1,16 +1,27 @@
 package kvstore;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * This is a generic class that should handle all TCP network connections
  * arriving on a unique (hostname, port) pair. Ensure that this class
  * remains generic by providing the connection handling logic in a
  * NetworkHandler.
+ *
+ * By default every connection is handed to the NetworkHandler as a blocking
+ * Socket. A SocketServer constructed with a number of event loops instead
+ * accepts and reads connections with NIO selectors; if its handler is a
+ * FrameHandler, only fully decoded requests are passed on to it, so idle
+ * connections do not tie up any threads.
  */
 public class SocketServer {
 
@@ -18,7 +29,9 @@ public class SocketServer {
     private int port;
     private ServerSocket server;
     private NetworkHandler handler;
-    private boolean stopped = false;
+    private volatile boolean stopped = false;
+    private int eventLoops;
+    private ServerSocketChannel serverChannel;
 
     private static final int TIMEOUT = 100;
 
@@ -36,8 +49,24 @@ public class SocketServer {
      * @param port port on which to listen for connections
      */
     public SocketServer(String hostname, int port) {
+        this(hostname, port, 0);
+    }
+
+    /**
+     * Construct a SocketServer listening on the port given that services
+     * connections with a number of NIO event loop threads.
+     *
+     * @param port port on which to listen for connections
+     * @param eventLoops number of event loop threads, or 0 to hand every
+     *        connection to the NetworkHandler as a blocking Socket
+     */
+    public SocketServer(String hostname, int port, int eventLoops) {
+        if (eventLoops < 0) {
+            throw new IllegalArgumentException("negative number of event loops");
+        }
         this.hostname = hostname;
         this.port = port;
+        this.eventLoops = eventLoops;
     }
 
     public String getHostname() {
@@ -66,7 +95,14 @@ public class SocketServer {
      */
     public void connect() throws IOException {
         // implement me
-        server = new ServerSocket(port);
+        if (eventLoops > 0) {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            server = serverChannel.socket();
+        } else {
+            server = new ServerSocket(port);
+        }
         if (port == 0) port = server.getLocalPort();
     }
 
@@ -80,6 +116,10 @@ public class SocketServer {
      */
     public void start() throws IOException {
         // implement me
+        if (serverChannel != null) {
+            startEventLoops();
+            return;
+        }
         try {
             server.setSoTimeout(SocketServer.TIMEOUT);
         } catch (SocketException se) {
@@ -103,6 +143,67 @@ public class SocketServer {
         }
     }
 
+    /**
+     * Accept connections with a selector and pass them round-robin to the
+     * event loops, or directly to the handler as blocking sockets if it is
+     * not a FrameHandler. A call to stop() results in the closing of the
+     * server and of every connection held by the event loops within TIMEOUT
+     * milliseconds.
+     *
+     * @throws IOException if there is an unexpected network error while
+     *         listening for requests
+     */
+    private void startEventLoops() throws IOException {
+        EventLoop[] loops = new EventLoop[0];
+        if (handler instanceof FrameHandler) {
+            loops = new EventLoop[eventLoops];
+        }
+        Selector selector = null;
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop((FrameHandler) handler);
+                Thread thread = new Thread(loops[i], "kvstore-eventloop-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            int next = 0;
+            while (!stopped) {
+                selector.select(TIMEOUT);
+                selector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    if (loops.length > 0) {
+                        loops[next].register(channel);
+                        next = (next + 1) % loops.length;
+                    } else {
+                        channel.configureBlocking(true);
+                        handler.handle(channel.socket());
+                    }
+                }
+            }
+        } finally {
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.stop();
+                }
+            }
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore error
+                }
+            }
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // ignore error
+            }
+        }
+    }
+
     /**
      * Stops the ServerSocket cleanly (do not force an exception to be thrown).
      * A call to stop() will result in the closing of the server no more than
@@ -0,0 +1,54 @@
+package kvstore;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The storage behind a KVServer. Besides the KeyValueInterface operations an
+ * engine can be emptied, checked for a key without reading its value, and
+ * written to and restored from a file in the XML format of KVStore.
+ */
+public interface StorageEngine extends KeyValueInterface {
+
+    /**
+     * Check whether the store has a value for a key, without fetching it.
+     *
+     * @param key is the object used to index into the store
+     * @return true if the key is present
+     */
+    public boolean hasKey(String key);
+
+    /**
+     * Remove every entry from the store.
+     */
+    public void resetStore();
+
+    /**
+     * Iterate over the pairs in the store. The iteration is weakly
+     * consistent: it runs alongside writes, and a pair written meanwhile may
+     * or may not be seen. An engine whose files cannot be read may throw
+     * UncheckedIOException from the iterator.
+     *
+     * @return the pairs in the store
+     */
+    public Iterator<Map.Entry<String, String>> entries();
+
+    /**
+     * Serialize the store to XML and write it to a file as it is iterated.
+     *
+     * @param fileName the file to write the serialized store
+     * @param compress whether to gzip the file
+     * @throws IOException if the file could not be written
+     */
+    public void writeToFile(String fileName, boolean compress) throws IOException;
+
+    /**
+     * Replace the contents of the store with the contents of a file written
+     * by writeToFile, compressed or not. This method is best effort.
+     *
+     * @param fileName the file containing the serialized store data
+     */
+    public void restoreFromFile(String fileName);
+
+}
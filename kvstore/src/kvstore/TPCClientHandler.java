@@ -4,15 +4,17 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadPool to ensure that none of it's methods are blocking.
  */
-public class TPCClientHandler implements NetworkHandler {
+public class TPCClientHandler implements FrameHandler, MessageHandler {
 
     private TPCMaster tpcMaster;
-    private ThreadPool threadPool;
+    private Executor executor;
 
     /**
      * Constructs a TPCClientHandler with ThreadPool of a single thread.
@@ -32,25 +34,116 @@ public class TPCClientHandler implements NetworkHandler {
     public TPCClientHandler(TPCMaster tpcMaster, int connections) {
         // implement me
     	this.tpcMaster = tpcMaster;
-    	threadPool = new ThreadPool(connections);
+    	executor = new ThreadPool(connections);
+    }
+
+    /**
+     * Constructs a TPCClientHandler that services requests with the given
+     * Executor, for example a ThreadPool with a bounded queue or
+     * TaskExecutors.virtualThreadPerTask().
+     *
+     * @param tpcMaster TPCMaster to carry out requests
+     * @param executor Executor to service requests
+     */
+    public TPCClientHandler(TPCMaster tpcMaster, Executor executor) {
+        this.tpcMaster = tpcMaster;
+        this.executor = executor;
     }
 
     /**
      * Creates a job to service the request on a socket and enqueues that job
-     * in the thread pool. Ignore InterruptedExceptions.
+     * in the executor. Ignore InterruptedExceptions. If the executor turns
+     * the job away, the client is refused or dropped as its policy says.
      *
      * @param client Socket connected to the client with the request
      */
     @Override
     public void handle(Socket client) {
         // implement me
-    	threadPool.addJob(new ClientHandler(client));
+        try {
+            executor.execute(new ClientHandler(client));
+        } catch (RejectedExecutionException e) {
+            KVConnection connection = new KVConnection(client);
+            if (ThreadPool.dropsRejected(executor)) {
+                connection.close();
+            } else {
+                connection.refuse();
+            }
+        }
+    }
+
+    /**
+     * Creates a job to service a request already read by an event loop and
+     * enqueues that job in the executor. If the executor turns the job away,
+     * the client is answered with ERROR_SERVER_BUSY or dropped as its policy
+     * says.
+     *
+     * @param request request from the client
+     * @param responder where to send the response
+     */
+    @Override
+    public void handle(KVMessage request, Responder responder) {
+        try {
+            executor.execute(new FrameJob(request, responder));
+        } catch (RejectedExecutionException e) {
+            if (ThreadPool.dropsRejected(executor)) {
+                responder.close();
+            } else {
+                responder.respond(new KVMessage(RESP, ERROR_SERVER_BUSY));
+            }
+        }
+    }
+
+    /**
+     * Processes a single request from the client and returns the response
+     * with the result.
+     *
+     * @param request request from the client
+     * @return response to send back to the client
+     * @throws KVException if the request fails
+     */
+    @Override
+    public KVMessage process(KVMessage request) throws KVException {
+        KVMessage response;
+        switch (request.getMsgType()) {
+            case GET_REQ:
+                response = new KVMessage(RESP);
+                response.setKey(request.getKey());
+                response.setValue(tpcMaster.handleGet(request));
+                break;
+            case PUT_REQ:
+                tpcMaster.handleTPCRequest(request, true);
+                response = new KVMessage(RESP, SUCCESS);
+                break;
+            case DEL_REQ:
+                tpcMaster.handleTPCRequest(request, false);
+                response = new KVMessage(RESP, SUCCESS);
+                break;
+            default: // should never happen, but in case a client were to send some other message
+                response = new KVMessage(RESP, ERROR_INVALID_REQUEST);
+        }
+        return response;
+    }
+
+    /**
+     * Blocks until the TPCMaster has all of its slaves registered.
+     */
+    private void awaitReady() {
+        synchronized (tpcMaster) {
+            while (!tpcMaster.ready()) {
+                try {
+                    tpcMaster.wait();
+                } catch (InterruptedException ie) {
+                    // ignore and try waiting
+                }
+            }
+        }
     }
 
     /**
      * Runnable class containing routine to service a request from the client.
      */
-    private class ClientHandler implements Runnable {
+    private class ClientHandler implements ThreadPool.ConnectionJob {
 
         private Socket client = null;
 
@@ -64,48 +157,50 @@ public class TPCClientHandler implements NetworkHandler {
         }
 
         /**
-         * Processes request from client and sends back a response with the
-         * result. The delivery of the response is best-effort. If we are
-         * unable to return any response, there is nothing else we can do.
+         * Services requests from the client until it is done with the
+         * connection. An XML client sends a single request; a binary client
+         * may keep the connection open and send many. Each response is sent
+         * in whichever wire format the client used. The delivery of the
+         * response is best-effort. If we are unable to return any response,
+         * there is nothing else we can do.
          */
         @Override
         public void run() {
             // implement me
-            while (!tpcMaster.ready()) {
-                try {
-                    tpcMaster.wait();
-                } catch (InterruptedException ie) {
-                    // ignore and try waiting
-                }
+            awaitReady();
+            new KVConnection(client).serve(TPCClientHandler.this);
+        }
+    }
+
+    /**
+     * Runnable class containing routine to service a single decoded request.
+     */
+    private class FrameJob implements Runnable {
+
+        private KVMessage request;
+        private Responder responder;
+
+        /**
+         * Construct a FrameJob.
+         *
+         * @param request request from the client
+         * @param responder where to send the response
+         */
+        public FrameJob(KVMessage request, Responder responder) {
+            this.request = request;
+            this.responder = responder;
+        }
+
+        @Override
+        public void run() {
+            awaitReady();
+            KVMessage response;
+            try {
+                response = process(request);
+            } catch (KVException kve) {
+                response = kve.getKVMessage();
             }
-        	KVMessage response;
-        	try {
-        		KVMessage request = new KVMessage(client);
-                switch (request.getMsgType()) {
-                    case GET_REQ:
-                        response = new KVMessage(RESP);
-                        response.setKey(request.getKey());
-                        response.setValue(tpcMaster.handleGet(request));
-                        break;
-                    case PUT_REQ:
-                        tpcMaster.handleTPCRequest(request, true);
-        		    	response = new KVMessage(RESP, SUCCESS);
-                        break;
-                    case DEL_REQ:
-                        tpcMaster.handleTPCRequest(request, false);
-                        response = new KVMessage(RESP, SUCCESS);
-                        break;
-                    default: // should never happen, but in case a client were to send some other message
-                        response = new KVMessage(RESP, ERROR_INVALID_REQUEST);
-                }
-        	} catch (KVException kve) {
-        		response = kve.getKVMessage();
-        	}
-    		try {
-    			response.sendMessage(client);
-    		} catch (KVException kve) {
-    			//best effort response (can't do anything)
-    		}
+            responder.respond(response);
         }
     }
 
@@ -2,27 +2,80 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+/**
+ * Write-ahead log of a slave. The file is a short header followed by one
+ * record per entry, appended as entries arrive: the length of the entry, a
+ * CRC32 of it and the entry itself in the binary KVMessage format. A record
+ * cut short by a crash, or one that fails its checksum, ends the log and is
+ * cut off when the log is next loaded.
+ *
+ * Every record has a log sequence number (LSN), counting up from the LSN of
+ * the first record in the file, which the header holds. A checkpoint writes
+ * a snapshot of the KVServer to logPath.snapshot.LSN, covering every record
+ * before that LSN, and then drops the records it covers from the front of
+ * the log. Requests still waiting for a decision are kept, along with
+ * everything after them. Recovery loads the latest snapshot and replays the
+ * rest of the log.
+ */
+public class TPCLog {
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Element;
+    /* "KVWL" */
+    static final int LOG_MAGIC = 0x4B56574C;
+    static final int LOG_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int V1_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
 
-public class TPCLog {
+    /* leading bytes of a log written by ObjectOutputStream */
+    private static final int LEGACY_MAGIC = 0xACED0005;
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot.";
 
     private String logPath;
     private KVServer kvServer;
-    private ArrayList<KVMessage> entries;
+    private FileChannel channel;
+    private KVMessage lastEntry;
+
+    /* LSN of the first record in the file and of the next one appended */
+    private long baseLsn, nextLsn;
+    /* records before this LSN are covered by the latest snapshot */
+    private long snapshotLsn;
+    /* records between automatic checkpoints, 0 for none */
+    private int checkpointInterval;
+
+    /* undecided requests by key, and where each one was logged */
+    private LinkedHashMap<String, KVMessage> pending;
+    private IdentityHashMap<KVMessage, Position> positions;
+
+    /* checkpoint whose snapshot is being written, or null */
+    private Checkpoint running;
 
     /**
      * Constructs a TPCLog to log KVMessages from the master.
@@ -33,19 +86,85 @@ public class TPCLog {
     public TPCLog(String logPath, KVServer kvServer) throws KVException {
         this.logPath = logPath;
         this.kvServer = kvServer;
-        this.entries = new ArrayList<KVMessage>();
         rebuildServer();
     }
 
     /**
-     * Add an entry to the log and flush the entire log to disk.
-     * You do not have to efficiently append entries onto the log stored on disk.
+     * Append an entry to the log and force it to disk. Only the new record
+     * is written. If a checkpoint is due, its snapshot is started first and
+     * written in the background; the log is cut at a later append, once the
+     * snapshot is complete. A checkpoint that fails is left for a later
+     * append to retry. If the record
+     * cannot be written in full and forced out, whatever part of it reached
+     * the file is cut off again, so the next entry is not logged behind a
+     * torn record.
      *
      * @param entry KVMessage to write to the log
+     * @throws KVException with ERROR_STORAGE_UNAVAILABLE if the entry is not
+     *         durable, in which case it is not in the log
      */
-    public void appendAndFlush(KVMessage entry) {
-        entries.add(entry);
-        flushToDisk();
+    public synchronized void appendAndFlush(KVMessage entry) throws KVException {
+        if (channel != null) {
+            try {
+                finishCheckpoint(false);
+                if (running == null && checkpointInterval > 0
+                        && nextLsn - snapshotLsn >= checkpointInterval) {
+                    beginCheckpoint();
+                }
+            } catch (IOException e) {
+                // the log still holds everything; try again on a later append
+                e.printStackTrace();
+            }
+        }
+        if (channel == null) {
+            throw new KVException(ERROR_STORAGE_UNAVAILABLE);
+        }
+        long offset;
+        try {
+            offset = channel.position();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new KVException(ERROR_STORAGE_UNAVAILABLE);
+        }
+        try {
+            writeRecord(entry);
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            discardFrom(offset);
+            throw new KVException(ERROR_STORAGE_UNAVAILABLE);
+        }
+        track(entry, nextLsn++, offset);
+        lastEntry = entry;
+    }
+
+    /**
+     * Cuts the log back to the given offset after a failed append. If even
+     * that fails the log is closed, and every later append fails until it is
+     * loaded again, which truncates the torn record.
+     */
+    private void discardFrom(long offset) {
+        try {
+            channel.truncate(offset);
+            channel.position(offset);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeChannel();
+        }
+    }
+
+    private void writeRecord(KVMessage entry) throws IOException, KVException {
+        byte[] payload = entry.toBinary();
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
     }
 
     /**
@@ -53,99 +172,635 @@ public class TPCLog {
      *
      * @return last entry put into the log
      */
-    public KVMessage getLastEntry() {
-        if (entries.size() > 0) {
-            return entries.get(entries.size() - 1);
+    public synchronized KVMessage getLastEntry() {
+        return lastEntry;
+    }
+
+    /**
+     * Checkpoint automatically once the given number of records has been
+     * appended since the last one. Checkpoints are started just before an
+     * entry is appended, so by then every decision already in the log must
+     * have been carried out on the KVServer. The snapshot is written with
+     * KVServer.snapshot, so appends go on while it is written.
+     *
+     * @param records records between checkpoints, 0 to turn them off
+     */
+    public synchronized void setCheckpointInterval(int records) {
+        if (records < 0) {
+            throw new IllegalArgumentException("negative checkpoint interval");
         }
-        return null;
+        checkpointInterval = records;
+    }
+
+    /**
+     * Writes a snapshot of the KVServer covering every record logged so far,
+     * then cuts the covered records from the front of the log, keeping the
+     * oldest request still waiting for a decision and all that follows it.
+     * Every decision in the log must already have been carried out on the
+     * KVServer. Unlike an automatic checkpoint, this waits for the snapshot.
+     *
+     * @throws IOException if the snapshot or the shortened log could not be
+     *         written; the log is left as it was
+     */
+    public synchronized void checkpoint() throws IOException {
+        finishCheckpoint(true);
+        beginCheckpoint();
+        finishCheckpoint(true);
     }
 
     /**
-     * Load log from persistent storage at logPath.
+     * Starts writing the snapshot of a checkpoint, and notes which records
+     * it covers and which of them have to stay in the log: those from the
+     * oldest request still waiting for a decision on.
+     *
+     * @throws IOException if the KVServer is already writing a snapshot
      */
-    @SuppressWarnings("unchecked")
-    public void loadFromDisk() {
-        ObjectInputStream inputStream = null;
+    private void beginCheckpoint() throws IOException {
+        Checkpoint next = new Checkpoint();
+        next.lsn = nextLsn;
+        next.keepLsn = nextLsn;
+        next.keepOffset = channel.position();
+        for (KVMessage request : pending.values()) {
+            Position position = positions.get(request);
+            if (position.lsn < next.keepLsn) {
+                next.keepLsn = position.lsn;
+                next.keepOffset = position.offset;
+            }
+        }
+        next.snapshot = snapshotFile(next.lsn);
+        next.partial = new File(next.snapshot.getPath() + ".tmp");
+        try {
+            next.image = kvServer.snapshot(next.partial.getPath(), false);
+        } catch (IllegalStateException e) {
+            throw new IOException(e);
+        }
+        running = next;
+    }
 
+    /**
+     * Completes the running checkpoint once its snapshot is written:
+     * installs the snapshot and cuts the covered records from the log.
+     *
+     * @param wait whether to wait for the snapshot rather than leave a
+     *        checkpoint still being written for later
+     * @throws IOException if the snapshot or the shortened log could not be
+     *         written; the checkpoint is dropped and the log left as it was
+     */
+    private void finishCheckpoint(boolean wait) throws IOException {
+        Checkpoint done = running;
+        if (done == null || (!wait && !done.image.isDone())) {
+            return;
+        }
+        running = null;
         try {
-            inputStream = new ObjectInputStream(new FileInputStream(logPath));
-            entries = (ArrayList<KVMessage>) inputStream.readObject();
-        } catch (Exception e) {
+            awaitSnapshot(done.image);
+        } catch (IOException e) {
+            done.partial.delete();
+            throw e;
+        }
+        if (channel == null) {
+            done.partial.delete(); // nothing left to cut
+            return;
+        }
+        FileChannel written = FileChannel.open(done.partial.toPath(), StandardOpenOption.WRITE);
+        try {
+            written.force(true);
         } finally {
-            // if log did not exist, creating empty entries list
-            if (entries == null) {
-                entries = new ArrayList<KVMessage>();
+            written.close();
+        }
+        Files.move(done.partial.toPath(), done.snapshot.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // every request pending now was logged at or after keepLsn
+        IdentityHashMap<KVMessage, Position> kept = new IdentityHashMap<KVMessage, Position>();
+        for (KVMessage request : pending.values()) {
+            kept.put(request, positions.get(request));
+        }
+        rewriteFrom(done.keepOffset, done.keepLsn);
+        for (Position position : kept.values()) {
+            position.offset += HEADER_SIZE - done.keepOffset;
+        }
+        positions = kept;
+        snapshotLsn = done.lsn;
+
+        for (File old : snapshotFiles()) {
+            if (snapshotLsn(old) < snapshotLsn) {
+                old.delete();
             }
+        }
+    }
 
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
+    /**
+     * Waits for a snapshot to be written, even if interrupted.
+     *
+     * @throws IOException if it could not be written
+     */
+    private static void awaitSnapshot(FutureTask<Void> image) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    image.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
         }
     }
 
     /**
-     * Writes the log to persistent storage at logPath.
+     * Open the log at logPath, creating it if it does not exist, and read
+     * back which requests are waiting for a decision. A log in the old
+     * format, a serialized list of entries, is rewritten in the record
+     * format first. A torn or corrupt record at the tail is cut off so
+     * that new entries follow the last intact one.
      */
-    public void flushToDisk() {
-        ObjectOutputStream outputStream = null;
+    public synchronized void loadFromDisk() {
+        try {
+            recover(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Forces every appended entry out to persistent storage at logPath.
+     */
+    public synchronized void flushToDisk() {
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Closes the log file, after completing a checkpoint whose snapshot is
+     * still being written. Loading the log again reopens it.
+     */
+    public synchronized void close() {
         try {
-            outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
-            outputStream.writeObject(entries);
-        } catch (Exception e) {
+            finishCheckpoint(true);
+        } catch (IOException e) {
             e.printStackTrace();
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore error
+        }
+        channel = null;
+    }
+
+    /**
+     * Load log and rebuild KVServer from the latest snapshot and the records
+     * after it. You do not need to restore the previous cache state (i.e.
+     * ignore GETS).
+     *
+     * Decisions name the key of the request they decide, so requests on
+     * different keys may be interleaved in the log. A decision without a
+     * key decides the most recent undecided request, and a decision on any
+     * key of a BATCH_REQ decides the whole batch. An entry that cannot be
+     * applied is skipped rather than ending the rebuild.
+     *
+     * @throws KVException with ERROR_STORAGE_UNAVAILABLE if the snapshot or
+     *         the log cannot be read, in which case the KVServer must not
+     *         be used
+     */
+    public synchronized void rebuildServer() throws KVException {
+        // implement me
+        try {
+            recover(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new KVException(ERROR_STORAGE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Requests in the log that were voted on but never decided, in the
+     * order they were logged.
+     *
+     * @return map from key to the undecided PUT, DEL or BATCH request on it
+     */
+    public synchronized Map<String, KVMessage> getPendingRequests() {
+        return new LinkedHashMap<String, KVMessage>(pending);
+    }
+
+    /**
+     * Opens the log and reads it through, optionally rebuilding the
+     * KVServer from the latest snapshot on the way.
+     *
+     * @param apply whether to rebuild the KVServer
+     * @throws IOException if the snapshot cannot be read, or the log cannot
+     *         be read or repaired
+     */
+    private void recover(boolean apply) throws IOException {
+        close();
+        lastEntry = null;
+        pending = new LinkedHashMap<String, KVMessage>();
+        positions = new IdentityHashMap<KVMessage, Position>();
+        snapshotLsn = 0;
+        File snapshot = null;
+        for (File file : snapshotFiles()) {
+            if (snapshot == null || snapshotLsn(file) > snapshotLsn) {
+                snapshot = file;
+                snapshotLsn = snapshotLsn(file);
+            }
+        }
+        if (apply) {
+            kvServer.wipeEverything();
+            if (snapshot != null) {
+                // older snapshots may already be gone and the log cut short,
+                // so without this one there is nothing to recover from
+                kvServer.loadFromFile(snapshot.getPath());
+            }
+        }
+
+        if (isLegacyLog()) {
+            migrateLegacyLog();
+        }
+        channel = FileChannel.open(Paths.get(logPath), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int version = readHeader();
+        if (version == 1) {
+            rewriteFrom(V1_HEADER_SIZE, 0);
+        } else if (version != LOG_VERSION) {
+            // nothing we can read; start over after the snapshot
+            channel.truncate(0);
+            writeHeader(channel, snapshotLsn);
+            baseLsn = snapshotLsn;
+        }
+        long end = replay(apply);
+        if (end < channel.size()) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+    }
+
+    private boolean isLegacyLog() throws IOException {
+        File file = new File(logPath);
+        if (file.length() < 4) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == LEGACY_MAGIC;
         } finally {
-            try {
-                if (outputStream != null) {
-                    outputStream.flush();
-                    outputStream.close();
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the header of the open log, setting baseLsn.
+     *
+     * @return the version of the log format, or 0 if there is no header
+     */
+    private int readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+        header.flip();
+        if (header.remaining() < V1_HEADER_SIZE || header.getInt() != LOG_MAGIC) {
+            return 0;
+        }
+        int version = header.getInt();
+        if (version == 1) {
+            baseLsn = 0;
+        } else if (version == LOG_VERSION && header.remaining() == 8) {
+            baseLsn = header.getLong();
+        } else {
+            return 0;
+        }
+        return version;
+    }
+
+    private static void writeHeader(FileChannel channel, long baseLsn) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(LOG_MAGIC);
+        header.putInt(LOG_VERSION);
+        header.putLong(baseLsn);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Replaces the log with one holding the records from offset onwards,
+     * the first of which has the given LSN. The new log replaces the old
+     * one only once it is complete.
+     *
+     * @param offset file offset of the first record to keep
+     * @param lsn LSN of that record
+     * @throws IOException if the new log could not be written
+     */
+    private void rewriteFrom(long offset, long lsn) throws IOException {
+        Path target = Paths.get(logPath);
+        Path rewritten = Paths.get(logPath + ".compacting");
+        FileChannel out = FileChannel.open(rewritten, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            writeHeader(out, lsn);
+            long end = channel.size();
+            while (offset < end) {
+                offset += channel.transferTo(offset, end - offset, out);
+            }
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        closeChannel();
+        Files.move(rewritten, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        baseLsn = lsn;
+    }
+
+    /**
+     * Rewrites a log kept as a serialized ArrayList of entries in the record
+     * format. The new log replaces the old one only once it is complete.
+     */
+    @SuppressWarnings("unchecked")
+    private void migrateLegacyLog() throws IOException {
+        ArrayList<KVMessage> entries;
+        ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(logPath));
+        try {
+            entries = (ArrayList<KVMessage>) inputStream.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            inputStream.close();
+        }
+        Path target = Paths.get(logPath);
+        Path migrated = Paths.get(logPath + ".migrating");
+        channel = FileChannel.open(migrated, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            writeHeader(channel, 0);
+            for (KVMessage entry : entries) {
+                try {
+                    writeRecord(entry);
+                } catch (KVException e) {
+                    // an entry that cannot be encoded could not be replayed either
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+            channel.force(true);
+        } finally {
+            closeChannel();
         }
+        Files.move(migrated, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
     }
 
     /**
-     * Load log and rebuild KVServer by iterating over log entries. You do not
-     * need to restore the previous cache state (i.e. ignore GETS).
+     * Reads the log one record at a time, pairing every decision with the
+     * request it decides. Reading stops at the first record that is cut
+     * short or fails its checksum. A record that passes its checksum but
+     * cannot be decoded is skipped.
      *
-     * @throws KVException if an error occurs in KVServer (though we expect none)
+     * @param apply whether to carry out requests committed after the
+     *        snapshot on the KVServer
+     * @return offset just past the last intact record
+     * @throws IOException if the log cannot be read
      */
-    public void rebuildServer() throws KVException {
-        // implement me
-    	try {
-    		loadFromDisk();
-    		kvServer.wipeEverything();
-    		KVMessage request = null;
-    		for (KVMessage log: entries) {
-    			if (log.getMsgType().equals(PUT_REQ) || log.getMsgType().equals(DEL_REQ)) {
-    				request = log;
-    			} else if (log.getMsgType().equals(COMMIT)) {
-    				if (request == null) {
-    					//Do nothing. If reached here, repeated COMMIT
-    					continue;
-    				} else if (request.getMsgType().equals(PUT_REQ)) {
-    					kvServer.put(request.getKey(), request.getValue());
-    				} else if (request.getMsgType().equals(DEL_REQ)) {
-    					kvServer.del(request.getKey());
-    				}
-    			} else if (log.getMsgType().equals(ABORT)) {
-    				request = null;
-    			}
-    		}
-    	} catch (Exception e) {
-    		//throw new KVException("Error: Rebuild failed");
-    	} 
-    	
-    }
-    
+    private long replay(boolean apply) throws IOException {
+        long size = channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(logPath)));
+        try {
+            long end = HEADER_SIZE;
+            nextLsn = baseLsn;
+            in.skipBytes(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length, checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || length > size - end - RECORD_HEADER_SIZE) {
+                        break; // torn record
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                long offset = end;
+                long lsn = nextLsn++;
+                end += RECORD_HEADER_SIZE + length;
+                KVMessage log;
+                try {
+                    log = KVMessage.readBinary(new ByteArrayInputStream(payload));
+                } catch (KVException e) {
+                    continue;
+                }
+                lastEntry = log;
+                KVMessage request = track(log, lsn, offset);
+                if (apply && request != null && lsn >= snapshotLsn
+                        && log.getMsgType().equals(COMMIT)) {
+                    try {
+                        apply(kvServer, request);
+                    } catch (KVException e) {
+                        // skip the entry, the rest of the log still applies
+                    }
+                }
+            }
+            return end;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Updates the undecided requests with an entry.
+     *
+     * @param log entry just logged or read back
+     * @param lsn LSN of its record
+     * @param offset file offset of its record
+     * @return the request decided by the entry, or null if it is not a
+     *         decision or there is no such request
+     */
+    private KVMessage track(KVMessage log, long lsn, long offset) {
+        String type = log.getMsgType();
+        if (type.equals(PUT_REQ) || type.equals(DEL_REQ) || type.equals(BATCH_REQ)) {
+            addPending(pending, log);
+            positions.put(log, new Position(lsn, offset));
+        } else if (type.equals(COMMIT) || type.equals(ABORT)) {
+            KVMessage request = takePending(pending, log.getKey());
+            if (request != null) {
+                positions.remove(request);
+            }
+            return request;
+        }
+        return null;
+    }
+
+    private File[] snapshotFiles() {
+        final File log = new File(logPath).getAbsoluteFile();
+        File[] files = log.getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(log.getName() + SNAPSHOT_SUFFIX)
+                    && snapshotLsn(file) >= 0;
+            }
+        });
+        return (files == null) ? new File[0] : files;
+    }
+
+    private File snapshotFile(long lsn) {
+        return new File(logPath + SNAPSHOT_SUFFIX + lsn);
+    }
+
+    /**
+     * @return the LSN covered by a snapshot file, or -1 if it is not one
+     */
+    private static long snapshotLsn(File snapshot) {
+        String name = snapshot.getName();
+        try {
+            return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Remembers a request that has been voted on. A BATCH_REQ is
+     * remembered under the key of every op it carries, as a decision may
+     * name any one of them.
+     *
+     * @param pending undecided requests by key, in the order they arrived
+     * @param request PUT, DEL or BATCH request
+     */
+    static void addPending(Map<String, KVMessage> pending, KVMessage request) {
+        List<KVMessage> ops = request.getOps();
+        if (ops == null) {
+            pending.remove(request.getKey());
+            pending.put(request.getKey(), request);
+            return;
+        }
+        for (KVMessage op : ops) {
+            pending.remove(op.getKey());
+            pending.put(op.getKey(), request);
+        }
+    }
+
+    /**
+     * Removes and returns the undecided request a decision is for. A
+     * BATCH_REQ is removed under all of its keys.
+     *
+     * @param pending undecided requests by key, in the order they arrived
+     * @param key key named by the decision, or null for the most recent
+     * @return the request, or null if there is none
+     */
+    static KVMessage takePending(Map<String, KVMessage> pending, String key) {
+        KVMessage request = null;
+        if (key != null) {
+            request = pending.get(key);
+        } else {
+            Iterator<KVMessage> iter = pending.values().iterator();
+            while (iter.hasNext()) {
+                request = iter.next();
+            }
+        }
+        if (request != null) {
+            pending.values().removeAll(Collections.singleton(request));
+        }
+        return request;
+    }
+
+    /**
+     * Carries out a committed PUT, DEL or BATCH request on a KVServer. The
+     * ops of a batch are applied in order; one that fails does not stop
+     * the rest.
+     *
+     * @param kvServer KVServer to update
+     * @param request the committed request
+     * @throws KVException the first error raised by the KVServer
+     */
+    static void apply(KVServer kvServer, KVMessage request) throws KVException {
+        List<KVMessage> ops = request.getOps();
+        if (ops == null) {
+            ops = Collections.singletonList(request);
+        }
+        KVException error = null;
+        for (KVMessage op : ops) {
+            try {
+                if (op.getMsgType().equals(PUT_REQ)) {
+                    kvServer.put(op.getKey(), op.getValue());
+                } else {
+                    kvServer.del(op.getKey());
+                }
+            } catch (KVException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
     public KVServer getServer() {
     	return kvServer;
     }
 
+    /**
+     * Where a record was logged.
+     */
+    private static class Position {
+
+        private long lsn;
+        private long offset;
+
+        public Position(long lsn, long offset) {
+            this.lsn = lsn;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * A checkpoint from the start of its snapshot until the log is cut.
+     */
+    private static class Checkpoint {
+
+        /* LSN of the first record the snapshot does not cover */
+        private long lsn;
+        /* the first record that stays in the log, and where it is */
+        private long keepLsn;
+        private long keepOffset;
+        private File snapshot;
+        private File partial;
+        private FutureTask<Void> image;
+    }
+
 }
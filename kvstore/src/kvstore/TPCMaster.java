@@ -6,17 +6,46 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 public class TPCMaster {
 
     private int numSlaves;
+    private int replicationFactor;
     private KVCache masterCache;
     
     public ArrayList<TPCSlaveInfo> slaveList;
 
+    /* built from slaveList on every change; read without locking */
+    private volatile Ring ring = new Ring(new ArrayList<TPCSlaveInfo>(), 1);
+    private int virtualNodes = 1;
+
     public static final int TIMEOUT = 3000;
 
+    /* write batching, off while maxBatchOps is 1 */
+    private int maxBatchOps = 1;
+    private int batchWindow = 0;
+    private HashMap<Long, Batch> openBatches = new HashMap<Long, Batch>();
+
+    /* hedged GETs, off while hedgePercentile is 0 */
+    private volatile int hedgePercentile = 95;
+    private LatencySamples getLatencies = new LatencySamples(256);
+    private AtomicLong slaveGets = new AtomicLong();
+    private AtomicLong hedgedGets = new AtomicLong();
+
+    /*
+     * runs the requests a caller hands off to be sent alongside its own:
+     * hedged GETs, and phase-1 requests to all replicas but the last
+     */
+    private Executor requestExecutor;
+    private static final int REQUEST_THREADS = 16;
+    /* fires the hedges of every master */
+    private static final Timer HEDGE_TIMER = new Timer("kvstore-hedge-timer", true);
+
     /**
      * Creates TPCMaster, expecting numSlaves slave servers to eventually register
      *
@@ -24,7 +53,28 @@ public class TPCMaster {
      * @param cache KVCache to cache results on master
      */
     public TPCMaster(int numSlaves, KVCache cache) {
+        this(numSlaves, cache, 2);
+    }
+
+    /**
+     * Creates TPCMaster that keeps every key on replicationFactor slaves:
+     * its first replica and the successors after it. Writes go to all of
+     * them in one 2PC round; a GET may be served by any of them, so more
+     * replicas carry more reads.
+     *
+     * @param numSlaves number of slave servers expected to register
+     * @param cache KVCache to cache results on master
+     * @param replicationFactor number of slaves holding each key
+     * @throws IllegalArgumentException if replicationFactor is less than 1
+     *         or more than numSlaves
+     */
+    public TPCMaster(int numSlaves, KVCache cache, int replicationFactor) {
+        if (replicationFactor < 1 || replicationFactor > numSlaves) {
+            throw new IllegalArgumentException("replication factor must be between 1 and "
+                + numSlaves);
+        }
         this.numSlaves = numSlaves;
+        this.replicationFactor = replicationFactor;
         this.masterCache = cache;
         // implement me
         slaveList = new ArrayList<TPCSlaveInfo>();
@@ -61,13 +111,95 @@ public class TPCMaster {
     	} else {
     		for (int i = 0; i < slaveList.size(); i++) {
 	    		if (slaveList.get(i).getSlaveID() == slave.getSlaveID()) {
-	    			slaveList.set(i, slave);
+	    			TPCSlaveInfo previous = slaveList.set(i, slave);
+	    			// its pooled connections lead to the server before the restart
+	    			if (previous != slave) previous.closeConnections();
 	    		}
 	    	}
     	}
+    	ring = new Ring(slaveList, virtualNodes);
         if (ready()) this.notifyAll();
     }
 
+    /**
+     * Gives each slave more points on the ring, so keys spread evenly over
+     * slaves whatever their IDs. The first point of a slave is its slaveID,
+     * so with one point, the default, keys map to slaves as they always
+     * have. With more, key hashes are also mixed before they are placed:
+     * hashTo64bit gives similar keys nearby hashes, which would otherwise
+     * bunch up between a few points. Changing this moves keys between
+     * slaves: set it before any data is stored, and keep it the same when
+     * the master restarts.
+     *
+     * @param count points on the ring per slave, at least 1
+     */
+    public synchronized void setVirtualNodes(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("need at least one virtual node");
+        }
+        virtualNodes = count;
+        ring = new Ring(slaveList, virtualNodes);
+    }
+
+    /**
+     * Turns on group commit. PUT and DEL requests whose keys have the same
+     * replicas are then collected for up to windowMillis, or until maxOps
+     * have arrived, and carried out together in a single 2PC round.
+     *
+     * @param maxOps most requests in one batch, 1 to turn batching off
+     * @param windowMillis how long the first request of a batch waits for
+     *        others to join it
+     */
+    public void setBatching(int maxOps, int windowMillis) {
+        if (maxOps < 1 || windowMillis < 0) {
+            throw new IllegalArgumentException("invalid batch size or window");
+        }
+        synchronized (openBatches) {
+            maxBatchOps = maxOps;
+            batchWindow = windowMillis;
+        }
+    }
+
+    /**
+     * Sets how long a GET waits for a replica before it asks the next one
+     * as well: the given percentile of the latencies of recent GETs from
+     * slaves. The first answer wins and the other requests are cancelled.
+     * Until enough GETs have been timed, the wait is TIMEOUT / 10.
+     *
+     * @param percentile 1 to 99, or 0 to ask one replica at a time and
+     *        move on only when it fails
+     */
+    public void setHedging(int percentile) {
+        if (percentile < 0 || percentile > 99) {
+            throw new IllegalArgumentException("invalid hedge percentile");
+        }
+        hedgePercentile = percentile;
+    }
+
+    /**
+     * The fraction of GETs sent to slaves so far that were also sent to
+     * another replica because the first was slow to answer.
+     *
+     * @return hedged GETs over all GETs that missed the master cache
+     */
+    public double getHedgeRate() {
+        long gets = slaveGets.get();
+        return gets == 0 ? 0 : (double) hedgedGets.get() / gets;
+    }
+
+    /**
+     * How long a GET currently waits for a replica before hedging.
+     *
+     * @return the hedge delay in milliseconds
+     */
+    public long getHedgeDelay() {
+        long nanos = getLatencies.percentile(hedgePercentile);
+        if (nanos < 0) {
+            return TIMEOUT / 10;
+        }
+        return Math.max(1, (nanos + 999999) / 1000000);
+    }
+
     public boolean ready() {
     	return slaveList.size() == numSlaves;
     }
@@ -113,54 +245,161 @@ public class TPCMaster {
     }
 
     /**
-     * Find primary replica for a given key.
+     * Find primary replica for a given key: the slave owning the first
+     * point on the ring at or after the key's hash, mixed if there are
+     * virtual nodes.
      *
      * @param key String to map to a slave server replica
      * @return SlaveInfo of first replica
      */
     public TPCSlaveInfo findFirstReplica(String key) {
-        // implement me
     	if (key == null) {return null;}
-    	long keyID = TPCMaster.hashTo64bit(key);
-    	
-    	boolean x = TPCMaster.isLessThanEqualUnsigned(keyID, slaveList.get(0).getSlaveID());
-    	
-    	int n = 0;
-    	
-    	for (int i = 1; i < slaveList.size(); i++) {
-    		boolean y = TPCMaster.isLessThanEqualUnsigned(keyID, slaveList.get(i).getSlaveID());
-    		if (x != y) {
-    			n = i;
-    			break;
-    		}
-    	}
-    	
-        return slaveList.get(n);
+    	return ring.owner(TPCMaster.hashTo64bit(key));
     }
 
     /**
-     * Find the successor of firstReplica.
+     * Find the successor of firstReplica: the next slave by slaveID,
+     * wrapping around. Each slave is the successor of exactly one other, so
+     * second replicas are spread as evenly as first ones.
      *
      * @param firstReplica SlaveInfo of primary replica
-     * @return SlaveInfo of successor replica
+     * @return SlaveInfo of successor replica, or null if it is not registered
      */
     public TPCSlaveInfo findSuccessor(TPCSlaveInfo firstReplica) {
-        // implement me
         if (firstReplica == null) {return null;}
-        
-        int n = -1;
-        for (int i = 0; i < slaveList.size(); i++) {
-    		if (slaveList.get(i).getSlaveID() == firstReplica.getSlaveID()) {
-    			if (i != slaveList.size() - 1) {
-    				n = i + 1;
-    			} else {
-    				n = 0;
-    			}
-    		}
-    	}
-        
-        if (n == -1) {return null;}
-        return slaveList.get(n);
+        return ring.successor(firstReplica.getSlaveID());
+    }
+
+    /**
+     * Find the slaves holding a key: its first replica and the successors
+     * after it, each slave at most once.
+     *
+     * @param key String to map to slave server replicas
+     * @param count number of replicas wanted
+     * @return SlaveInfo of up to count distinct replicas, fewer if fewer
+     *         slaves are registered
+     */
+    public TPCSlaveInfo[] findReplicas(String key, int count) {
+        ArrayList<TPCSlaveInfo> replicas = new ArrayList<TPCSlaveInfo>(count);
+        TPCSlaveInfo replica = findFirstReplica(key);
+        while (replica != null && replicas.size() < count && !replicas.contains(replica)) {
+            replicas.add(replica);
+            replica = findSuccessor(replica);
+        }
+        return replicas.toArray(new TPCSlaveInfo[replicas.size()]);
+    }
+
+    /**
+     * Find all replicationFactor replicas of a key.
+     *
+     * @param key String to map to slave server replicas
+     * @return SlaveInfo of each replica, first replica first
+     * @throws KVException with ERROR_NOT_ENOUGH_SLAVES if too few slaves
+     *         have registered to hold them
+     */
+    private TPCSlaveInfo[] replicasOf(String key) throws KVException {
+        TPCSlaveInfo[] replicas = findReplicas(key, replicationFactor);
+        if (replicas.length < replicationFactor) {
+            throw new KVException(ERROR_NOT_ENOUGH_SLAVES);
+        }
+        return replicas;
+    }
+
+    /**
+     * An immutable copy of the ring: the points of every slave, sorted as
+     * unsigned longs, for lookups by binary search.
+     */
+    private static class Ring {
+
+        private long[] points;
+        private TPCSlaveInfo[] owners;
+        private boolean mixKeys;
+        /* slaveList, sorted by slaveID */
+        private long[] slaveIDs;
+        private TPCSlaveInfo[] slaves;
+
+        public Ring(List<TPCSlaveInfo> slaveList, int virtualNodes) {
+            mixKeys = virtualNodes > 1;
+            TreeMap<Long, TPCSlaveInfo> byPoint = new TreeMap<Long, TPCSlaveInfo>(UNSIGNED);
+            for (TPCSlaveInfo slave : slaveList) {
+                for (int vnode = 0; vnode < virtualNodes; vnode++) {
+                    byPoint.put(point(slave.getSlaveID(), vnode), slave);
+                }
+            }
+            points = new long[byPoint.size()];
+            owners = new TPCSlaveInfo[byPoint.size()];
+            int i = 0;
+            for (Map.Entry<Long, TPCSlaveInfo> entry : byPoint.entrySet()) {
+                points[i] = entry.getKey();
+                owners[i++] = entry.getValue();
+            }
+            slaveIDs = new long[slaveList.size()];
+            slaves = slaveList.toArray(new TPCSlaveInfo[slaveList.size()]);
+            for (i = 0; i < slaves.length; i++) {
+                slaveIDs[i] = slaves[i].getSlaveID();
+            }
+        }
+
+        public TPCSlaveInfo owner(long hash) {
+            if (points.length == 0) {
+                return null;
+            }
+            int i = ceiling(points, mixKeys ? mix(hash) : hash);
+            return owners[i == points.length ? 0 : i];
+        }
+
+        public TPCSlaveInfo successor(long slaveID) {
+            int i = ceiling(slaveIDs, slaveID);
+            if (i == slaveIDs.length || slaveIDs[i] != slaveID) {
+                return null;
+            }
+            return slaves[i + 1 == slaves.length ? 0 : i + 1];
+        }
+
+        /**
+         * The index of the first of the sorted values not less than value,
+         * as unsigned longs, or values.length if there is none.
+         */
+        private static int ceiling(long[] values, long value) {
+            int low = 0, high = values.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (isLessThanUnsigned(values[mid], value)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * The place on the ring of one of a slave's points: its slaveID for
+         * the first, and for the others the slaveID and index mixed by the
+         * SplitMix64 finalizer.
+         */
+        private static long point(long slaveID, int vnode) {
+            if (vnode == 0) {
+                return slaveID;
+            }
+            return mix(slaveID + vnode * 0x9E3779B97F4A7C15L);
+        }
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        private static final Comparator<Long> UNSIGNED = new Comparator<Long>() {
+            @Override
+            public int compare(Long n1, Long n2) {
+                if (n1.longValue() == n2.longValue()) {
+                    return 0;
+                }
+                return isLessThanUnsigned(n1, n2) ? -1 : 1;
+            }
+        };
     }
 
     /**
@@ -168,104 +407,515 @@ public class TPCMaster {
      * contains the bulk of the two-phase commit logic. It performs phase 1
      * and phase 2 with appropriate timeouts and retries.
      *
+     * Every replica is sent each phase before any is waited on, so a phase
+     * takes one round trip to the slowest replica rather than one to each
+     * in turn. Each replica is contacted over a single binary
+     * connection that carries both phases of the transaction.
+     *
+     * Transactions are ordered by the master cache set lock of their key:
+     * those on keys in different sets run concurrently, while those on one
+     * key are carried out one at a time, in a single order on every replica.
+     * The decision names the key so a slave can tell its transactions apart.
+     *
+     * With batching turned on (see setBatching), the request may instead be
+     * carried out in one transaction together with others for the same
+     * replicas.
+     *
      * See the spec for details on the expected behavior.
      *
      * @param msg KVMessage corresponding to the transaction for this TPC request
      * @param isPutReq boolean to distinguish put and del requests
      * @throws KVException if the operation cannot be carried out for any reason
      */
-    public synchronized void handleTPCRequest(KVMessage msg, boolean isPutReq) throws KVException {
+    public void handleTPCRequest(KVMessage msg, boolean isPutReq) throws KVException {
         // implement me
         String key = msg.getKey();
         KVServer.checkKey(key); // pass exception on to caller
         if (isPutReq) KVServer.checkValue(msg.getValue()); //pass exception to caller
 
+        if (maxBatchOps > 1) {
+            KVMessage op = new KVMessage(isPutReq ? PUT_REQ : DEL_REQ);
+            op.setKey(key);
+            if (isPutReq) op.setValue(msg.getValue());
+            handleBatched(op);
+            return;
+        }
+
         // lock the master cache set for this key to block GET requests
         Lock setLock = masterCache.getLock(key);
         setLock.lock();
 
-        TPCSlaveInfo firstSlave = findFirstReplica(key);
-        TPCSlaveInfo secondSlave = findSuccessor(firstSlave);
-        Socket firstSocket = null, secondSocket = null;
         try {
-            firstSocket = firstSlave.connectHost(TIMEOUT);
-            secondSocket = secondSlave.connectHost(TIMEOUT);
-
-            // phase-1
-            String firstResponse = doTPCPhase1(msg, firstSocket);
-            String secondResponse = doTPCPhase1(msg, secondSocket);
-            boolean ready = firstResponse.equals(READY) && secondResponse.equals(READY); // handle case where can't send to either slave.
-
-            // phase-2
-            firstSocket = firstSlave.connectHost(TIMEOUT);
-            secondSocket = secondSlave.connectHost(TIMEOUT);
-            String value = msg.getValue();
-            msg = new KVMessage(ready ? COMMIT : ABORT);
-            doTPCPhase2(msg, firstSocket);
-            doTPCPhase2(msg, secondSocket); // handle case where
+            runTransaction(msg, key, replicasOf(key));
 
             // put/del from master cache upon success
-            if (isPutReq) masterCache.put(key, value);
+            if (isPutReq) masterCache.put(key, msg.getValue());
             else masterCache.del(key);
 
         } finally {
             setLock.unlock();
-            if (firstSocket != null) firstSlave.closeHost(firstSocket);
-            if (secondSocket != null) secondSlave.closeHost(secondSocket);
         }
     }
 
-    private String doTPCPhase1(KVMessage msg, Socket slaveSocket) throws KVException {
-        msg.sendMessage(slaveSocket);
+    /**
+     * Runs both phases of one transaction against the replicas. The caller
+     * holds the master cache set locks of every key involved.
+     *
+     * @param request PUT, DEL or BATCH request to carry out
+     * @param key key named by the decision
+     * @param replicas replicas of the key
+     * @throws KVException with the reason given by a replica if it aborted
+     */
+    private void runTransaction(KVMessage request, String key, TPCSlaveInfo[] replicas)
+            throws KVException {
+        KVConnection[] connections = new KVConnection[replicas.length];
         try {
-            msg = new KVMessage(slaveSocket, TIMEOUT);
-            return msg.getMsgType();
-        } catch (KVException kve) { //timeout or other error
-            return ABORT;
+            // phase-1
+            KVMessage[] votes = doTPCPhase1(request, replicas, connections);
+            String abortReason = null;
+            for (KVMessage vote : votes) {
+                if (!READY.equals(vote.getMsgType()) && abortReason == null) {
+                    abortReason = (vote.getMessage() != null)
+                        ? vote.getMessage() : ERROR_INVALID_FORMAT;
+                }
+            }
+
+            // phase-2
+            KVMessage decision = new KVMessage(abortReason == null ? COMMIT : ABORT);
+            decision.setKey(key);
+            doTPCPhase2(decision, replicas, connections);
+            if (abortReason != null) {
+                throw new KVException(abortReason);
+            }
+        } finally {
+            for (int i = 0; i < replicas.length; i++) {
+                if (connections[i] != null) {
+                    // every response on it has been read unless it broke
+                    replicas[i].releaseConnection(connections[i], !connections[i].isBroken());
+                }
+            }
         }
     }
 
-    private void doTPCPhase2(KVMessage msg, Socket slaveSocket) throws KVException {
-        boolean sent = false;
-        while (!sent) {
-            msg.sendMessage(slaveSocket);
+    /**
+     * Adds a request to the open batch for its replicas and waits for the
+     * batch to be carried out. The request that opens a batch leads it: it
+     * waits out the batch window, or until the batch is full, and then runs
+     * the 2PC round for everyone in it.
+     *
+     * @param op PUT or DEL request, already checked
+     * @throws KVException if this request could not be carried out
+     */
+    private void handleBatched(KVMessage op) throws KVException {
+        TPCSlaveInfo[] replicas = replicasOf(op.getKey());
+        Long pair = replicas[0].getSlaveID();
+        Batch batch;
+        int index;
+        boolean leader;
+        synchronized (openBatches) {
+            batch = openBatches.get(pair);
+            leader = (batch == null);
+            if (leader) {
+                batch = new Batch(replicas);
+                openBatches.put(pair, batch);
+            }
+            index = batch.ops.size();
+            batch.ops.add(op);
+            if (batch.ops.size() >= maxBatchOps) {
+                closeBatch(pair, batch);
+            }
+            if (leader) {
+                long deadline = System.currentTimeMillis() + batchWindow;
+                long left;
+                while (!batch.closed && (left = deadline - System.currentTimeMillis()) > 0) {
+                    waitOnBatches(left);
+                }
+                closeBatch(pair, batch);
+            } else {
+                while (!batch.done) {
+                    waitOnBatches(0);
+                }
+            }
+        }
+        if (leader) {
             try {
-                msg = new KVMessage(slaveSocket, TIMEOUT);
-                sent = true;
+                runBatch(batch);
+            } finally {
+                synchronized (openBatches) {
+                    batch.done = true;
+                    openBatches.notifyAll();
+                }
+            }
+        }
+        if (batch.errors[index] != null) {
+            throw batch.errors[index];
+        }
+    }
+
+    /**
+     * Carries out a closed batch and records the outcome of each request in
+     * it. The master cache locks of all its keys are taken in order of lock id,
+     * so leaders of batches that share sets cannot deadlock. If a replica
+     * votes against the batch because one of its keys is missing, each
+     * request is retried on its own so only the failing ones fail. Should
+     * the batch fail unexpectedly, every request in it that was not carried
+     * out yet fails with ERROR_BATCH_FAILED, and the exception is passed on
+     * to the leader.
+     *
+     * @param batch the batch to run
+     */
+    private void runBatch(Batch batch) {
+        ArrayList<KVMessage> ops = batch.ops;
+        batch.errors = new KVException[ops.size()];
+        boolean[] succeeded = new boolean[ops.size()];
+        try {
+            TreeMap<Integer, Lock> setLocks = new TreeMap<Integer, Lock>();
+            for (KVMessage op : ops) {
+                setLocks.put(masterCache.getLockId(op.getKey()), masterCache.getLock(op.getKey()));
+            }
+            for (Lock setLock : setLocks.values()) {
+                setLock.lock();
+            }
+            try {
+                KVMessage request = (ops.size() == 1) ? ops.get(0) : new KVMessage(ops);
+                try {
+                    runTransaction(request, ops.get(0).getKey(), batch.replicas);
+                    for (int i = 0; i < ops.size(); i++) {
+                        updateCache(ops.get(i));
+                        succeeded[i] = true;
+                    }
+                } catch (KVException kve) {
+                    boolean retry = ops.size() > 1
+                        && ERROR_NO_SUCH_KEY.equals(kve.getKVMessage().getMessage());
+                    for (int i = 0; i < ops.size(); i++) {
+                        if (!retry) {
+                            batch.errors[i] = kve;
+                            continue;
+                        }
+                        try {
+                            runTransaction(ops.get(i), ops.get(i).getKey(), batch.replicas);
+                            updateCache(ops.get(i));
+                            succeeded[i] = true;
+                        } catch (KVException opError) {
+                            batch.errors[i] = opError;
+                        }
+                    }
+                }
+            } finally {
+                for (Lock setLock : setLocks.descendingMap().values()) {
+                    setLock.unlock();
+                }
+            }
+        } catch (RuntimeException e) {
+            // the requests not settled yet must not be taken for done
+            for (int i = 0; i < ops.size(); i++) {
+                if (!succeeded[i] && batch.errors[i] == null) {
+                    batch.errors[i] = new KVException(ERROR_BATCH_FAILED);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void updateCache(KVMessage op) {
+        if (PUT_REQ.equals(op.getMsgType())) masterCache.put(op.getKey(), op.getValue());
+        else masterCache.del(op.getKey());
+    }
+
+    /* caller holds the openBatches monitor */
+    private void closeBatch(Long pair, Batch batch) {
+        if (!batch.closed) {
+            batch.closed = true;
+            openBatches.remove(pair, batch);
+            openBatches.notifyAll();
+        }
+    }
+
+    /* caller holds the openBatches monitor */
+    private void waitOnBatches(long millis) {
+        try {
+            openBatches.wait(millis);
+        } catch (InterruptedException ie) {
+            // ignore and check again
+        }
+    }
+
+    /**
+     * PUT and DEL requests for one group of replicas, carried out together.
+     * Guarded by the openBatches monitor, apart from the errors filled in
+     * by the leader before it marks the batch done.
+     */
+    private static class Batch {
+
+        private TPCSlaveInfo[] replicas;
+        private ArrayList<KVMessage> ops = new ArrayList<KVMessage>();
+        private boolean closed, done;
+        private KVException[] errors;
+
+        public Batch(TPCSlaveInfo[] replicas) {
+            this.replicas = replicas;
+        }
+    }
+
+    /**
+     * Sends the request to every replica, then collects their votes. All
+     * votes must arrive within TIMEOUT of the start. The replicas are
+     * connected to and sent the request in parallel, the last on the
+     * calling thread and the others on the request executor, so a replica
+     * that is slow to connect to does not hold up the rest. A replica that
+     * cannot be reached or does not answer in time votes ABORT.
+     *
+     * A pooled connection may turn out to have been closed by the slave,
+     * for example because it restarted. The request is then sent once more
+     * on a new connection. Should the slave have read it the first time,
+     * voting on it again is harmless: a slave keeps one pending request
+     * per key.
+     *
+     * @param msg request to vote on
+     * @param replicas replicas of the key
+     * @param connections filled in with an open connection to each replica
+     *        that could be reached
+     * @return the vote of each replica, READY or ABORT
+     */
+    private KVMessage[] doTPCPhase1(final KVMessage msg, final TPCSlaveInfo[] replicas,
+            final KVConnection[] connections) {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        final KVMessage[] votes = new KVMessage[replicas.length];
+        int last = replicas.length - 1;
+        final CountDownLatch sent = new CountDownLatch(last);
+        for (int i = 0; i < last; i++) {
+            final int index = i;
+            requestExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sendForVote(msg, replicas, connections, votes, index, deadline);
+                    } finally {
+                        sent.countDown();
+                    }
+                }
+            });
+        }
+        sendForVote(msg, replicas, connections, votes, last, deadline);
+        // each send gives up at the deadline
+        while (true) {
+            try {
+                sent.await();
+                break;
+            } catch (InterruptedException ie) {
+                // ignore and wait again
+            }
+        }
+        for (int i = 0; i < replicas.length; i++) {
+            if (votes[i] != null) {
+                continue;
+            }
+            try { //timeout or other error
+                try {
+                    votes[i] = receiveBefore(connections[i], deadline);
+                } catch (KVException kve) {
+                    if (!closedBySlave(kve)) {
+                        throw kve;
+                    }
+                    reset(replicas, connections, i);
+                    connections[i] = openConnection(replicas[i], true, deadline);
+                    connections[i].send(msg);
+                    votes[i] = receiveBefore(connections[i], deadline);
+                }
+            } catch (KVException kve) {
+                votes[i] = new KVMessage(ABORT, kve.getKVMessage().getMessage());
+                // a late vote must not be taken for the answer to the decision
+                reset(replicas, connections, i);
+            }
+        }
+        return votes;
+    }
+
+    /**
+     * Connects to one replica and sends it the request, no later than
+     * deadline. If that fails, the replica's vote is set to ABORT.
+     */
+    private void sendForVote(KVMessage msg, TPCSlaveInfo[] replicas,
+            KVConnection[] connections, KVMessage[] votes, int i, long deadline) {
+        try {
+            connections[i] = openConnection(replicas[i], false, deadline);
+            try {
+                connections[i].send(msg);
             } catch (KVException kve) {
-                //timeout, repeat loop
+                reset(replicas, connections, i);
+                connections[i] = openConnection(replicas[i], true, deadline);
+                connections[i].send(msg);
+            }
+        } catch (KVException kve) {
+            votes[i] = new KVMessage(ABORT, kve.getKVMessage().getMessage());
+            reset(replicas, connections, i);
+        }
+    }
+
+    /**
+     * Sends the decision to every replica, then collects their ACKs. A
+     * replica that cannot be reached or does not ACK within TIMEOUT is sent
+     * the decision again on a new connection until it does, after a pause
+     * so a replica that drops connections at once is not hammered.
+     *
+     * @param decision COMMIT or ABORT
+     * @param replicas replicas of the key
+     * @param connections open connection to each replica, or null; replaced
+     *        as replicas are reconnected
+     * @throws KVException with ERROR_INVALID_FORMAT if a replica answers
+     *         with anything besides an ACK
+     */
+    private void doTPCPhase2(KVMessage decision, TPCSlaveInfo[] replicas,
+            KVConnection[] connections) throws KVException {
+        boolean[] acked = new boolean[replicas.length];
+        boolean invalid = false;
+        int remaining = replicas.length;
+        while (remaining > 0) {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            for (int i = 0; i < replicas.length; i++) {
+                if (acked[i]) {
+                    continue;
+                }
+                try {
+                    if (connections[i] == null) {
+                        connections[i] = openConnection(replicas[i], false);
+                    }
+                    connections[i].send(decision);
+                } catch (KVException kve) {
+                    reset(replicas, connections, i);
+                }
+            }
+            for (int i = 0; i < replicas.length; i++) {
+                if (acked[i] || connections[i] == null) {
+                    continue;
+                }
+                try {
+                    KVMessage response = receiveBefore(connections[i], deadline);
+                    acked[i] = true;
+                    remaining--;
+                    if (!ACK.equals(response.getMsgType())) {
+                        invalid = true;
+                    }
+                } catch (KVException kve) {
+                    //timeout, repeat loop
+                    reset(replicas, connections, i);
+                }
+            }
+            if (remaining > 0) {
+                pause(); // some replica is unreachable or failing right now
             }
         }
-        if (!msg.getMsgType().equals(ACK))
+        if (invalid)
             throw new KVException(ERROR_INVALID_FORMAT);
     }
 
+    /**
+     * Borrows a connection to a slave from its pool.
+     *
+     * @param fresh true to open a new connection rather than reuse one
+     */
+    private KVConnection openConnection(TPCSlaveInfo slave, boolean fresh) throws KVException {
+        return slave.borrowConnection(TIMEOUT, fresh);
+    }
+
+    /**
+     * Borrows a connection to a slave from its pool, giving up at deadline.
+     *
+     * @param fresh true to open a new connection rather than reuse one
+     * @throws KVException with ERROR_SOCKET_TIMEOUT if the deadline has
+     *         passed, or as TPCSlaveInfo.borrowConnection
+     */
+    private KVConnection openConnection(TPCSlaveInfo slave, boolean fresh, long deadline)
+            throws KVException {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        }
+        return slave.borrowConnection((int) left, fresh);
+    }
+
+    /**
+     * Whether a send or receive failed because the connection was closed
+     * or reset, rather than because the slave was slow or answered
+     * garbage. On a pooled connection this usually means the slave closed
+     * it while it sat idle.
+     */
+    private static boolean closedBySlave(KVException kve) {
+        String reason = kve.getKVMessage().getMessage();
+        return ERROR_COULD_NOT_SEND_DATA.equals(reason)
+            || ERROR_COULD_NOT_RECEIVE_DATA.equals(reason);
+    }
+
+    /**
+     * Receives a message on a connection, waiting no later than deadline.
+     *
+     * @throws KVException with ERROR_SOCKET_TIMEOUT if the deadline has
+     *         passed, or as KVConnection.receive
+     */
+    private KVMessage receiveBefore(KVConnection connection, long deadline)
+            throws KVException {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) {
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        }
+        return connection.receive((int) left);
+    }
+
+    private void reset(TPCSlaveInfo[] replicas, KVConnection[] connections, int i) {
+        if (connections[i] != null) {
+            replicas[i].releaseConnection(connections[i], false);
+            connections[i] = null;
+        }
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(TIMEOUT / 10);
+        } catch (InterruptedException ie) {
+            // ignore and try again
+        }
+    }
+
     /**
      * Perform GET operation in the following manner:
      * - Try to GET from cache, return immediately if found
-     * - Try to GET from first/primary replica
-     * - If primary succeeded, return value
-     * - If primary failed, try to GET from the other replica
-     * - If secondary succeeded, return value
-     * - If secondary failed, return KVException from second replica
+     * - Try to GET from the replica expected to answer soonest (see
+     *   pickReplica), so reads of a key are shared by all of its replicas
+     * - If it succeeded, return value
+     * - If it failed or is slow (see setHedging), try the replicas after it
+     * - If every replica failed, throw ERROR_NO_SUCH_KEY
+     *
+     * Writes hold the master cache set lock until every replica has
+     * committed, and so does this method on a cache miss, so any replica
+     * has the latest value.
      *
      * @param msg KVMessage containing key to get
      * @return value corresponding to the Key
      * @throws KVException with ERROR_NO_SUCH_KEY if unable to get
-     *         the value from both slaves for any reason
+     *         the value from every slave for any reason
      */
     public String handleGet(KVMessage msg) throws KVException {
         // implement me
         String key = msg.getKey();
         KVServer.checkKey(key); // pass exception on to caller
 
+        // cache hits only need the read lock of the set, so they run in parallel
+        Lock readLock = masterCache.getReadLock(key);
+        readLock.lock();
+        try {
+            String val = masterCache.get(key);
+            if (val != null) return val;
+        } finally {
+            readLock.unlock();
+        }
+
         // get the lock for this set and acquire (lock) it. any keys in the set protected by the
         //  lock cannot be accessed or updated while this critical section executes
         Lock lock = masterCache.getLock(key);
         lock.lock();
 
         try {
-            // attempt to get from the master cache
+            // attempt to get from the master cache, which may have been filled meanwhile
             String val = masterCache.get(key);
             if (val != null) return val;
             // attempt to get from the replicas
@@ -278,31 +928,330 @@ public class TPCMaster {
     }
 
     private String doGet(KVMessage msg) throws KVException {
-        TPCSlaveInfo slave = findFirstReplica(msg.getKey());
-        try { // attempt to get first replica
-            return getFromSlave(msg, slave);
-        } catch (KVException firstReplicaNoSuccess) {
-            try { // retry with second
-                return getFromSlave(msg, findSuccessor(slave));
+        TPCSlaveInfo[] replicas = replicasOf(msg.getKey());
+        int start = pickReplica(replicas);
+        TPCSlaveInfo[] order = new TPCSlaveInfo[replicas.length];
+        for (int i = 0; i < replicas.length; i++) {
+            order[i] = replicas[(start + i) % replicas.length];
+        }
+        slaveGets.incrementAndGet();
+        if (hedgePercentile > 0) {
+            return hedgedGet(msg, order);
+        }
+        for (TPCSlaveInfo slave : order) {
+            try {
+                return getFromSlave(msg, slave, null);
             } catch (KVException noSuccess) {
-                throw new KVException(ERROR_NO_SUCH_KEY);
+                // try the next replica
+            }
+        }
+        throw new KVException(ERROR_NO_SUCH_KEY);
+    }
+
+    /**
+     * Picks the replica to read from first, by TPCSlaveInfo.getReadScore:
+     * the better of two, chosen at random if there are more (power of two
+     * choices), so no replica is flooded by every reader at once. Ties are
+     * broken at random.
+     *
+     * @param replicas replicas of a key
+     * @return the index of the replica to ask first
+     */
+    private int pickReplica(TPCSlaveInfo[] replicas) {
+        if (replicas.length == 1) {
+            return 0;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = 0, b = 1;
+        if (replicas.length > 2) {
+            a = random.nextInt(replicas.length);
+            b = random.nextInt(replicas.length - 1);
+            if (b >= a) b++;
+        }
+        double scoreA = replicas[a].getReadScore();
+        double scoreB = replicas[b].getReadScore();
+        if (scoreA == scoreB) {
+            return random.nextBoolean() ? a : b;
+        }
+        return scoreA < scoreB ? a : b;
+    }
+
+    /**
+     * Asks the replicas in order for the first value to arrive. The first
+     * replica is asked on the calling thread. Each time the hedge delay
+     * passes without an answer, the next replica is asked as well, on a
+     * thread of the request executor; once every replica asked has failed,
+     * the next one is asked straight away. Requests still running when a
+     * value arrives are cancelled by closing their sockets.
+     *
+     * @param msg GET request
+     * @param order replicas of the key, in the order to ask them
+     * @return value corresponding to the key
+     * @throws KVException with ERROR_NO_SUCH_KEY if every replica failed
+     */
+    private String hedgedGet(KVMessage msg, TPCSlaveInfo[] order) throws KVException {
+        final HedgedGet race = new HedgedGet(msg, order);
+        TimerTask hedge = null;
+        if (order.length > 1) {
+            long delay = getHedgeDelay();
+            hedge = new TimerTask() {
+                @Override
+                public void run() {
+                    if (race.sendNext()) {
+                        hedgedGets.incrementAndGet();
+                    } else {
+                        cancel();
+                    }
+                }
+            };
+            HEDGE_TIMER.schedule(hedge, delay, delay);
+        }
+        try {
+            String value = race.askFirst();
+            if (value != null) {
+                return value;
             }
+            synchronized (race) {
+                while (race.value == null) {
+                    if (race.pending == 0 && !race.sendNext()) {
+                        throw new KVException(ERROR_NO_SUCH_KEY);
+                    }
+                    try {
+                        race.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore and check again
+                    }
+                }
+                return race.value;
+            }
+        } finally {
+            if (hedge != null) hedge.cancel();
+            race.cancel();
+        }
+    }
+
+    private synchronized Executor requestExecutor() {
+        if (requestExecutor == null) {
+            requestExecutor = new ThreadPool(REQUEST_THREADS);
         }
+        return requestExecutor;
     }
 
-    private String getFromSlave(KVMessage msg, TPCSlaveInfo slave) throws KVException {
-        Socket slaveSocket = null;
+    /**
+     * Gets a value from one slave over a pooled connection. If the slave
+     * turns out to have closed that connection, the GET is sent once more
+     * on a new one. The latency of every successful GET is recorded for the
+     * hedge delay, and that of every GET for the slave's read score. A
+     * slave that could not be reached or did not answer is charged TIMEOUT;
+     * a request cancelled by a hedge, the time it ran.
+     *
+     * @param race the hedged GET this request belongs to, to register its
+     *        socket with for cancellation, or null
+     */
+    private String getFromSlave(KVMessage msg, TPCSlaveInfo slave, HedgedGet race)
+            throws KVException {
+        long start = System.nanoTime();
+        long latency = -1;
+        KVConnection connection = null;
+        slave.startRead();
         try {
-            slaveSocket = slave.connectHost(TIMEOUT);
-            msg.sendMessage(slaveSocket);
-            KVMessage response = new KVMessage(slaveSocket);
+            KVMessage response;
+            for (boolean fresh = false; ; fresh = true) {
+                connection = slave.borrowConnection(TIMEOUT, fresh);
+                if (race != null && !race.register(connection.getSocket())) {
+                    throw new KVException(ERROR_COULD_NOT_CONNECT); // already answered
+                }
+                try {
+                    connection.send(msg);
+                    response = connection.receive(TIMEOUT);
+                    break;
+                } catch (KVException kve) {
+                    if (fresh || !closedBySlave(kve) || (race != null && race.isFinished())) {
+                        throw kve;
+                    }
+                    release(slave, connection, race);
+                    connection = null;
+                }
+            }
+            latency = System.nanoTime() - start;
             if (response.getMessage() != null) {
                 throw new KVException(response.getMessage());
             }
             //assert response.getKey().equals(msg.getKey());
+            getLatencies.add(latency);
             return response.getValue();
         } finally {
-            if (slaveSocket != null) slave.closeHost(slaveSocket);
+            if (latency < 0) {
+                latency = (race != null && race.isFinished())
+                    ? System.nanoTime() - start : TIMEOUT * 1000000L;
+            }
+            slave.finishRead(latency);
+            if (connection != null) release(slave, connection, race);
+        }
+    }
+
+    private void release(TPCSlaveInfo slave, KVConnection connection, HedgedGet race) {
+        if (race != null) race.unregister(connection.getSocket());
+        slave.releaseConnection(connection, !connection.isBroken());
+    }
+
+    /**
+     * The state of one hedged GET, shared by the requester, the hedge timer
+     * and the threads asking the other replicas. Guarded by its own monitor.
+     */
+    private class HedgedGet {
+
+        private KVMessage msg;
+        private TPCSlaveInfo[] order;
+        /* index in order of the next replica to ask */
+        private int next;
+        private String value;
+        private int pending;
+        private boolean finished;
+        private ArrayList<Socket> sockets = new ArrayList<Socket>();
+
+        public HedgedGet(KVMessage msg, TPCSlaveInfo[] order) {
+            this.msg = msg;
+            this.order = order;
+        }
+
+        /**
+         * Asks the first replica on the calling thread.
+         *
+         * @return its value, or null if it failed or was cancelled
+         */
+        public String askFirst() {
+            synchronized (this) {
+                next = 1;
+                pending++;
+            }
+            String result = null;
+            try {
+                result = getFromSlave(msg, order[0], this);
+            } catch (KVException kve) {
+                // another replica may still answer
+            }
+            synchronized (this) {
+                pending--;
+                if (value == null) value = result;
+                notifyAll();
+            }
+            return result;
+        }
+
+        /**
+         * Asks the next replica not yet asked, on the request executor.
+         *
+         * @return false if the GET is over or every replica has been asked
+         */
+        public synchronized boolean sendNext() {
+            if (finished || value != null || next == order.length) {
+                return false;
+            }
+            final TPCSlaveInfo slave = order[next++];
+            pending++;
+            requestExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    String result = null;
+                    try {
+                        result = getFromSlave(msg, slave, HedgedGet.this);
+                    } catch (KVException kve) {
+                        // another replica may still answer
+                    }
+                    synchronized (HedgedGet.this) {
+                        pending--;
+                        if (value == null) value = result;
+                        HedgedGet.this.notifyAll();
+                    }
+                    if (result != null) {
+                        // the requester may be blocked on a slower replica
+                        cancel();
+                    }
+                }
+            });
+            return true;
+        }
+
+        public synchronized void unregister(Socket socket) {
+            sockets.remove(socket);
+        }
+
+        /**
+         * Records the socket of a request so it can be cancelled.
+         *
+         * @return false if the GET is already over and the socket is not
+         *         needed
+         */
+        public synchronized boolean register(Socket socket) {
+            if (finished) {
+                return false;
+            }
+            sockets.add(socket);
+            return true;
+        }
+
+        public synchronized boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * Ends the GET, closing the sockets of the requests still running.
+         */
+        public synchronized void cancel() {
+            finished = true;
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // best effort
+                }
+            }
+            sockets.clear();
+        }
+    }
+
+    /**
+     * The latencies of the most recent GETs from slaves, for percentiles.
+     * The sorted samples are cached until a sixteenth of them have been
+     * replaced.
+     */
+    private static class LatencySamples {
+
+        private static final int MIN_SAMPLES = 16;
+
+        private long[] samples;
+        private int count;
+        private int next;
+        private long[] sorted;
+        private int added;
+
+        public LatencySamples(int size) {
+            samples = new long[size];
+        }
+
+        public synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+            added++;
+        }
+
+        /**
+         * @param percentile 0 to 99
+         * @return the latency in nanoseconds below which percentile
+         *         percent of the samples fall, or -1 if there are too few
+         */
+        public synchronized long percentile(int percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            if (sorted == null || added >= Math.max(1, samples.length / 16)) {
+                sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                added = 0;
+            }
+            return sorted[sorted.length * percentile / 100];
         }
     }
 
@@ -4,6 +4,12 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 /**
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
@@ -13,26 +19,35 @@ public class TPCMasterHandler implements NetworkHandler {
     private long slaveID;
     private KVServer kvServer;
     private TPCLog tpcLog;
-    private ThreadPool threadpool;
-    private int phase;
+    private Executor executor;
+
+    /* requests voted READY on and awaiting a decision, by key */
+    private Map<String, KVMessage> pending;
     
     private String masterHostname;
     private SocketServer ss;
 
     /**
-     * Constructs a TPCMasterHandler with one connection in its ThreadPool
+     * Constructs a TPCMasterHandler that serves every connection from the
+     * master on a thread of its own, with TaskExecutors.virtualThreadPerTask().
+     * A binary connection keeps its thread until the master closes it, and
+     * the master holds one to each replica for every transaction in
+     * progress, so a fixed number of threads could leave transactions
+     * waiting on each other until they time out.
      *
      * @param slaveID the ID for this slave server
      * @param kvServer KVServer for this slave
      * @param log the log for this slave
      */
     public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log) {
-        this(slaveID, kvServer, log, 1);
+        this(slaveID, kvServer, log, TaskExecutors.virtualThreadPerTask());
     }
 
     /**
      * Constructs a TPCMasterHandler with a variable number of connections
-     * in its ThreadPool
+     * in its ThreadPool. The pool gets at least TPCSlaveInfo.MAX_CONNECTIONS
+     * threads, one for every connection the master may hold open to this
+     * slave, since each open connection keeps its thread.
      *
      * @param slaveID the ID for this slave server
      * @param kvServer KVServer for this slave
@@ -40,10 +55,25 @@ public class TPCMasterHandler implements NetworkHandler {
      * @param connections the number of connections in this slave's ThreadPool
      */
     public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, int connections) {
+        this(slaveID, kvServer, log,
+            new ThreadPool(Math.max(connections, TPCSlaveInfo.MAX_CONNECTIONS)));
+    }
+
+    /**
+     * Constructs a TPCMasterHandler that services requests with the given
+     * Executor, for example TaskExecutors.virtualThreadPerTask().
+     *
+     * @param slaveID the ID for this slave server
+     * @param kvServer KVServer for this slave
+     * @param log the log for this slave
+     * @param executor Executor to service requests from the master
+     */
+    public TPCMasterHandler(long slaveID, KVServer kvServer, TPCLog log, Executor executor) {
         this.slaveID = slaveID;
         this.kvServer = kvServer;
         this.tpcLog = log;
-        this.threadpool = new ThreadPool(connections);
+        this.executor = executor;
+        this.pending = log.getPendingRequests();
     }
 
     /**
@@ -86,26 +116,39 @@ public class TPCMasterHandler implements NetworkHandler {
     private void reRegister() {
         try {
             tpcLog.rebuildServer();
+            synchronized (this) {
+                pending = tpcLog.getPendingRequests();
+            }
             registerWithMaster(masterHostname, ss);
         } catch (KVException kve) {}
     }
 
     /**
      * Creates a job to service the request on a socket and enqueues that job
-     * in the thread pool. Ignore any InterruptedExceptions.
+     * in the executor. Ignore any InterruptedExceptions. If the executor
+     * turns the job away, the master is refused or dropped as its policy says.
      *
      * @param master Socket connected to the master with the request
      */
     @Override
     public void handle(Socket master) {
         Runnable r = new MasterHandler(master);
-        threadpool.addJob(r);
+        try {
+            executor.execute(r);
+        } catch (RejectedExecutionException e) {
+            KVConnection connection = new KVConnection(master);
+            if (ThreadPool.dropsRejected(executor)) {
+                connection.close();
+            } else {
+                connection.refuse();
+            }
+        }
     }
 
     /**
      * Runnable class containing routine to service a message from the master.
      */
-    private class MasterHandler implements Runnable {
+    private class MasterHandler implements ThreadPool.ConnectionJob, MessageHandler {
 
         private Socket master;
 
@@ -119,231 +162,149 @@ public class TPCMasterHandler implements NetworkHandler {
         }
 
         /**
-         * Processes request from master and sends back a response with the
-         * result. This method needs to handle both phase1 and phase2 messages
-         * from the master. The delivery of the response is best-effort. If
+         * Services messages from the master until it is done with the
+         * connection. This method needs to handle both phase1 and phase2
+         * messages from the master, which may arrive on the same binary
+         * connection. The delivery of the response is best-effort. If
          * we are unable to return any response, there is nothing else we can do.
          */
         @Override
         public void run() {
+            new KVConnection(master).serve(this);
+        }
+
+        /**
+         * Processes a single message from the master and returns the response.
+         * Transactions on different keys may be in progress at the same time;
+         * the master never starts a second transaction on a key before the
+         * first is decided, and names the key in its decision.
+         *
+         * @param request message from the master
+         * @return response to send back to the master
+         * @throws KVException if the message cannot be handled
+         */
+        @Override
+        public KVMessage process(KVMessage request) throws KVException {
             // implement me
-        	phase = 0;
-        	KVMessage message = null;
-        	KVMessage request = null;
-        	KVMessage response = null;
-        	try {
-        		request = new KVMessage(master);
-                switch (request.getMsgType()) {
-                	case GET_REQ:
-                		
-                		response = handleGet(request);
-                		break;
-                	case PUT_REQ:
-                		
-                		response = handlePut(request);
-                		break;
-                		
-                	case DEL_REQ:
-                		
-                		response = handleDel(request);
-                		break;
-                		
-                    case COMMIT:
-                    	
-                		response = handleCommit(request);
-                        break;
-                        
-                    case ABORT:
-                    	
-                		response = handleAbort(request);
-                    	break;
-                    
-                    default: // should never happen, but in case a client were to send some other message
-                        response = new KVMessage(RESP, ERROR_INVALID_REQUEST);
-                }
-        	} catch (KVException kve) {
-        		response = kve.getKVMessage();
-        	}
+            switch (request.getMsgType()) {
+                case GET_REQ:
+                    return handleGet(request);
+                case PUT_REQ:
+                case DEL_REQ:
+                case BATCH_REQ:
+                    return handleVote(request);
+                case COMMIT:
+                    return handleDecision(request, true);
+                case ABORT:
+                    return handleDecision(request, false);
+                default: // should never happen, but in case a client were to send some other message
+                    return new KVMessage(RESP, ERROR_INVALID_REQUEST);
+            }
+        }
 
-    		try {
-    			response.sendMessage(master);
-    		} catch (KVException e) {
-                KVMessage ErrorResponse = e.getKVMessage();
+        /**
+         * Phase 1: votes on a PUT, DEL or BATCH request. A request that can
+         * be carried out is logged and remembered until its decision
+         * arrives. A batch is voted on as a whole and logged as one entry,
+         * so it is either carried out entirely or not at all.
+         *
+         * @param request PUT, DEL or BATCH request from the master
+         * @return READY, or ABORT with the reason the request cannot be done
+         * @throws KVException if the response cannot be constructed
+         */
+        private KVMessage handleVote(KVMessage request) throws KVException {
+            List<KVMessage> ops = request.getOps();
+            if (ops == null) {
+                ops = Collections.singletonList(request);
+            }
+            try {
+                // whether each key exists once the ops before have run
+                Map<String, Boolean> exists = new HashMap<String, Boolean>();
+                for (KVMessage op : ops) {
+                    KVServer.checkKey(op.getKey());
+                    if (op.getMsgType().equals(PUT_REQ)) {
+                        KVServer.checkValue(op.getValue());
+                        exists.put(op.getKey(), true);
+                        continue;
+                    }
+                    Boolean present = exists.get(op.getKey());
+                    if (present == null) {
+                        present = kvServer.hasKey(op.getKey());
+                    }
+                    if (!present) {
+                        throw new KVException(ERROR_NO_SUCH_KEY);
+                    }
+                    exists.put(op.getKey(), false);
+                }
+            } catch (KVException e) {
+                return new KVMessage(ABORT, e.getKVMessage().getMessage());
+            }
+            synchronized (TPCMasterHandler.this) {
                 try {
-					ErrorResponse.sendMessage(master);
-				} catch (KVException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				}
-    		}
-        	
-        	
-        	
-        	tpcLog.appendAndFlush(message);
+                    tpcLog.appendAndFlush(request);
+                } catch (KVException e) {
+                    // not durable, so this slave cannot promise to commit it
+                    return new KVMessage(ABORT, e.getKVMessage().getMessage());
+                }
+                TPCLog.addPending(pending, request);
+            }
+            return new KVMessage(READY);
         }
 
-		private KVMessage handleAbort(KVMessage request){
-			// TODO Auto-generated method stub
-			try {
-				KVMessage lastMessage = tpcLog.getLastEntry();
-				if (lastMessage.getMsgType() == DEL_REQ || lastMessage.getMsgType() == PUT_REQ){
-		            tpcLog.appendAndFlush(request);
-		            phase = 0;
-				}
-				KVMessage response = new KVMessage(ACK);
-				return response;
-				
-			} catch (KVException e) {
-                KVMessage ErrorResponse = e.getKVMessage();
-                return ErrorResponse;
-			}
-
-		}
-
-		private KVMessage handleCommit(KVMessage request) throws KVException {
-			// TODO Auto-generated method stub
-			// state2 is if commit was received but action has not made yet
-			if(phase == 1 || phase == 2){
-				phase = 2;
-				KVMessage lastMessage = tpcLog.getLastEntry();
-				if (lastMessage.getMsgType() == DEL_REQ){
-					handleDel(lastMessage);
-				}
-				else if (lastMessage.getMsgType() == PUT_REQ){
-					handlePut(lastMessage);
-				}				
-				tpcLog.appendAndFlush(request);
-			try {
-				KVMessage response = new KVMessage(ACK);
-				return response;
-			} catch (KVException e) {
-                KVMessage ErrorResponse = new KVMessage(ABORT);
-                ErrorResponse.setMessage(e.getKVMessage().getMessage());
-                return ErrorResponse;
-			}
-			
-			}
-			
-			if(phase == 0){
-			try {
-				KVMessage response = new KVMessage(ACK);
-				return response;
-			} catch (KVException e) {
-                KVMessage ErrorResponse = new KVMessage(ABORT);
-                ErrorResponse.setMessage(e.getKVMessage().getMessage());
-                return ErrorResponse;
-			}
-		}
-			//should never get here
-			return request;
-		}
-
-		private KVMessage handlePut(KVMessage request) {//throws KVException {
-			// TODO Auto-generated method stub
-			if(phase == 0){
-				try {
-					KVServer.checkKey(request.getKey());
-				} catch (KVException e) {
-					try {
-		                KVMessage ErrorResponse = new KVMessage(ABORT);
-		                ErrorResponse.setMessage(e.getKVMessage().getMessage());
-						return ErrorResponse;
-					} catch (KVException kve) {
-						//Best effort abort
-					}
-				}
-				tpcLog.appendAndFlush(request);
-				phase ++;
-				try {
-					KVMessage response = new KVMessage(READY);
-					return response;
-				} catch (KVException e) {
-					try {
-		                KVMessage ErrorResponse = new KVMessage(ABORT);
-		                ErrorResponse.setMessage(e.getKVMessage().getMessage());
-						return ErrorResponse;
-					} catch (KVException kve) {
-						//Best effort abort
-					}
-				}
-			}
-			
-			else if (phase == 2){
-		        try {
-		        	KVServer.checkKey(request.getKey());
-		            kvServer.put(request.getKey(), request.getValue());
-		            phase = 0;
-		            KVMessage response = new KVMessage(ACK);
-		            return response;
-		        } catch (KVException e) {
-		        	try {
-		                KVMessage ErrorResponse = new KVMessage(ABORT);
-		                ErrorResponse.setMessage(e.getKVMessage().getMessage());
-						return ErrorResponse;
-					} catch (KVException kve) {
-						//Best effort abort
-					}
-				}      	
-		    }
-			//should never get here
-			return request;
-		}
-
-		private KVMessage handleGet(KVMessage request) {
-			if (kvServer.hasKey(request.getKey())){
-				try {
-					KVServer.checkKey(request.getKey());
-					KVMessage response = new KVMessage(RESP);
-					response.setKey(request.getKey());
-					response.setValue(kvServer.get(request.getKey()));
-					return response;
-				} catch (KVException e) {
-	                KVMessage ErrorResponse = e.getKVMessage();
-	                return ErrorResponse;
-				}
-			}
-			else {
-				KVMessage response = new KVMessage(RESP, ERROR_NO_SUCH_KEY);
-				return response;
+        /**
+         * Phase 2: carries out or discards the pending request the decision
+         * is for, then acknowledges it. A decision without a key is for the
+         * most recent pending request, as sent by masters that only ever
+         * had one transaction in progress. A decision naming any key of a
+         * batch decides the whole batch. A repeated decision is simply
+         * acknowledged again.
+         *
+         * @param decision COMMIT or ABORT from the master
+         * @param commit true for COMMIT
+         * @return ACK, or ABORT if the committed request cannot be applied
+         * @throws KVException with ERROR_STORAGE_UNAVAILABLE if the decision
+         *         cannot be logged, or if the response cannot be constructed
+         */
+        private KVMessage handleDecision(KVMessage decision, boolean commit)
+                throws KVException {
+            // carried out before the next entry is logged, so a checkpoint
+            // taken by the log reflects every decision before it
+            synchronized (TPCMasterHandler.this) {
+                KVMessage request = TPCLog.takePending(pending, decision.getKey());
+                if (request == null) {
+                    return new KVMessage(ACK);
+                }
+                KVMessage entry = new KVMessage(decision.getMsgType());
+                entry.setKey(decision.getKey() != null
+                    ? decision.getKey() : request.getKey());
+                try {
+                    tpcLog.appendAndFlush(entry);
+                } catch (KVException e) {
+                    // still undecided here; the master resends the decision
+                    TPCLog.addPending(pending, request);
+                    throw e;
+                }
+                if (commit) {
+                    try {
+                        TPCLog.apply(kvServer, request);
+                    } catch (KVException e) {
+                        return new KVMessage(ABORT, e.getKVMessage().getMessage());
+                    }
+                }
             }
-		}
-			
-
-		private KVMessage handleDel(KVMessage request) throws KVException {
-			// TODO Auto-generated method stub
-			if(phase == 0){
-				KVServer.checkKey(request.getKey());
-				tpcLog.appendAndFlush(request);
-				phase ++;
-				try {
-					KVMessage response = new KVMessage(READY);
-					return response;
-				} catch (KVException e) {
-	                KVMessage ErrorResponse = new KVMessage(ABORT);
-	                ErrorResponse.setMessage(e.getKVMessage().getMessage());
-					return ErrorResponse;
-				}
-
-			}
-			
-			else if (phase == 2){
-		        try {
-		        	KVServer.checkKey(request.getKey());
-		            kvServer.del(request.getKey());
-		            phase = 0;
-		            KVMessage response = new KVMessage(ACK);
-		            return response;
-		        } catch (KVException e) {
-	                KVMessage ErrorResponse = new KVMessage(ABORT);
-	                ErrorResponse.setMessage(e.getKVMessage().getMessage());
-						return ErrorResponse;
-		            }
-			}
-			//should never get here;
-			return request;
-
-			
-		}
+            return new KVMessage(ACK);
+        }
 
+        private KVMessage handleGet(KVMessage request) {
+            try {
+                KVMessage response = new KVMessage(RESP);
+                response.setKey(request.getKey());
+                response.setValue(kvServer.get(request.getKey()));
+                return response;
+            } catch (KVException e) {
+                return e.getKVMessage();
+            }
+        }
     }
-}
\ No newline at end of file
+
+}
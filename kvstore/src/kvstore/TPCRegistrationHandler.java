@@ -4,6 +4,8 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
@@ -11,7 +13,7 @@ import java.net.Socket;
  */
 public class TPCRegistrationHandler implements NetworkHandler {
 
-    private ThreadPool threadpool;
+    private Executor executor;
     private TPCMaster master;
 
     /**
@@ -31,19 +33,40 @@ public class TPCRegistrationHandler implements NetworkHandler {
      * @param connections number of threads in threadPool to service requests
      */
     public TPCRegistrationHandler(TPCMaster master, int connections) {
-        this.threadpool = new ThreadPool(connections);
+        this(master, new ThreadPool(connections));
+    }
+
+    /**
+     * Constructs a TPCRegistrationHandler that services requests with the
+     * given Executor.
+     *
+     * @param master TPCMaster to carry out requests
+     * @param executor Executor to service requests
+     */
+    public TPCRegistrationHandler(TPCMaster master, Executor executor) {
+        this.executor = executor;
         this.master = master;
     }
 
     /**
      * Creates a job to service the request on a socket and enqueues that job
-     * in the thread pool. Ignore any InterruptedExceptions.
+     * in the executor. Ignore any InterruptedExceptions. If the executor
+     * turns the job away, the slave is refused or dropped as its policy says.
      *
      * @param slave Socket connected to the slave with the request
      */
     @Override
     public void handle(Socket slave) {
-        this.threadpool.addJob(new RegistrationHandler(slave));
+        try {
+            this.executor.execute(new RegistrationHandler(slave));
+        } catch (RejectedExecutionException e) {
+            KVConnection connection = new KVConnection(slave);
+            if (ThreadPool.dropsRejected(executor)) {
+                connection.close();
+            } else {
+                connection.refuse();
+            }
+        }
     }
 
     /**
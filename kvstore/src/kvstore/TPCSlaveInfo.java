@@ -4,6 +4,7 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.*;
 
 /**
@@ -15,6 +16,23 @@ public class TPCSlaveInfo {
     private String hostname;
     private int port;
 
+    /**
+     * Most connections the master keeps open to one slave. A slave serves
+     * each open connection on a worker of its own, so it should have at
+     * least this many, or give every connection a thread as
+     * TaskExecutors.virtualThreadPerTask() does.
+     */
+    public static final int MAX_CONNECTIONS = 4;
+
+    /* connections from the master, opened as they are needed */
+    private ExclusiveConnectionPool connections;
+
+    /* reads from this slave, kept by TPCMaster to choose between replicas */
+    private static final double LATENCY_WEIGHT = 0.3;
+    private AtomicInteger readsInFlight = new AtomicInteger();
+    private double readLatency; // EWMA in nanoseconds, guarded by this
+    private long lastRead; // guarded by this
+
     /**
      * Construct a TPCSlaveInfo to represent a slave server.
      *
@@ -109,7 +127,58 @@ public class TPCSlaveInfo {
     }
 
     /**
-     * Create and connect a socket within a certain timeout.
+     * Notes that a read from this slave has started.
+     */
+    public void startRead() {
+        readsInFlight.incrementAndGet();
+    }
+
+    /**
+     * Notes that a read from this slave has ended, and folds its latency
+     * into the moving average.
+     *
+     * @param nanos how long the read took, or a penalty if it failed
+     */
+    public void finishRead(long nanos) {
+        readsInFlight.decrementAndGet();
+        synchronized (this) {
+            if (lastRead == 0) {
+                readLatency = nanos;
+            } else {
+                readLatency += LATENCY_WEIGHT * (nanos - readLatency);
+            }
+            lastRead = System.nanoTime();
+        }
+    }
+
+    public int getReadsInFlight() {
+        return readsInFlight.get();
+    }
+
+    /**
+     * Rates how soon this slave can be expected to answer a read, lower
+     * being better: the moving average of its read latency, times one more
+     * than the reads it is already serving. The average halves for every
+     * second without reads, so a slave that was slow once is tried again
+     * later rather than shunned for good.
+     *
+     * @return expected wait in nanoseconds, 0 before the first read
+     */
+    public double getReadScore() {
+        double latency;
+        synchronized (this) {
+            if (lastRead == 0) {
+                return 0;
+            }
+            double idleSeconds = (System.nanoTime() - lastRead) / 1e9;
+            latency = readLatency * Math.pow(0.5, idleSeconds);
+        }
+        return latency * (readsInFlight.get() + 1);
+    }
+
+    /**
+     * Create and connect a socket to hostname and port within a certain
+     * timeout.
      *
      * @return Socket object connected to SlaveServer, with timeout set
      * @throws KVException ERROR_SOCKET_TIMEOUT, ERROR_COULD_NOT_CREATE_SOCKET,
@@ -120,7 +189,7 @@ public class TPCSlaveInfo {
     	Socket sock = new Socket();
     	
     	try {
-    		sock.connect(new InetSocketAddress(getPort()), timeout);
+    		sock.connect(new InetSocketAddress(getHostname(), getPort()), timeout);
     	} catch (SocketTimeoutException ste) {
     		throw new KVException(ERROR_SOCKET_TIMEOUT);
     	} catch (IOException ioe) {
@@ -129,6 +198,64 @@ public class TPCSlaveInfo {
         return sock;
     }
 
+    /**
+     * Lends a binary connection to this slave, reusing one the master has
+     * used before if it is still open, or connecting with connectHost.
+     * Give it back with releaseConnection.
+     *
+     * @param timeout how long to wait for a free connection and to connect
+     * @param fresh true to open a new connection rather than reuse one
+     * @return a connection no one else is using
+     * @throws KVException as connectHost, or ERROR_SOCKET_TIMEOUT if all
+     *         MAX_CONNECTIONS stayed in use
+     */
+    public KVConnection borrowConnection(int timeout, boolean fresh) throws KVException {
+        return connectionPool().borrow(timeout, fresh);
+    }
+
+    /**
+     * Gives back a connection from borrowConnection.
+     *
+     * @param connection the connection
+     * @param reusable whether every response on it has been read, so the
+     *        next borrower can use it; false closes it
+     */
+    public void releaseConnection(KVConnection connection, boolean reusable) {
+        if (reusable) {
+            connectionPool().giveBack(connection);
+        } else {
+            connectionPool().discard(connection);
+        }
+    }
+
+    /**
+     * Closes the idle connections to this slave, for example once it has
+     * re-registered and they lead to a server that is gone.
+     */
+    public void closeConnections() {
+        connectionPool().close();
+    }
+
+    /**
+     * Number of connections the master has open to this slave, in use or
+     * idle.
+     */
+    public int getOpenConnections() {
+        return connectionPool().size();
+    }
+
+    private synchronized ExclusiveConnectionPool connectionPool() {
+        if (connections == null) {
+            connections = new ExclusiveConnectionPool(MAX_CONNECTIONS) {
+                @Override
+                protected KVConnection openConnection(int timeout) throws KVException {
+                    return new KVConnection(connectHost(timeout), true);
+                }
+            };
+        }
+        return connections;
+    }
+
     /**
      * Closes a socket.
      * Best effort, ignores error since the response has already been received.
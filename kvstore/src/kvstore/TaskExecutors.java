@@ -0,0 +1,68 @@
+package kvstore;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+
+/**
+ * Factory methods for the Executors that NetworkHandlers run their jobs on,
+ * besides a ThreadPool of fixed size.
+ */
+public class TaskExecutors {
+
+    private static final Executor VIRTUAL = lookupVirtualThreadExecutor();
+
+    private TaskExecutors() {
+    }
+
+    /**
+     * Returns an Executor that runs every job on a new virtual thread, so
+     * jobs that block on the network are not capped by any pool size. On a
+     * JDK without virtual threads this falls back to threadPerTask().
+     *
+     * @return Executor starting one virtual thread per job
+     */
+    public static Executor virtualThreadPerTask() {
+        if (VIRTUAL != null) {
+            return VIRTUAL;
+        }
+        return threadPerTask();
+    }
+
+    /**
+     * Whether the running JDK supports virtual threads.
+     */
+    public static boolean virtualThreadsAvailable() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * Returns an Executor that runs every job on a new platform thread.
+     *
+     * @return Executor starting one thread per job
+     */
+    public static Executor threadPerTask() {
+        return new Executor() {
+            @Override
+            public void execute(Runnable job) {
+                new Thread(job).start();
+            }
+        };
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() reflectively, so
+     * this class still compiles and runs on JDKs that predate it.
+     *
+     * @return the virtual thread executor, or null if there is none
+     */
+    private static Executor lookupVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+}
@@ -1,34 +1,86 @@
 package kvstore;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 
-public class ThreadPool {
+public class ThreadPool implements Executor {
+
+    /**
+     * What addJob does with a job that arrives while the queue is full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * Run the job on the thread calling addJob. A ConnectionJob is
+         * refused instead, as if the policy were REJECT.
+         */
+        CALLER_RUNS,
+        /** Discard the job; the caller should close its connection. */
+        DROP,
+        /** Discard the job; the caller should answer with ERROR_SERVER_BUSY. */
+        REJECT
+    }
+
+    /**
+     * A job that serves a connection until the other end closes it, as
+     * KVConnection.serve does. It is never run on the thread calling
+     * addJob, which is usually one accepting connections or running an
+     * event loop and would stop doing so for as long as the connection
+     * stays open.
+     */
+    public interface ConnectionJob extends Runnable {
+    }
 
     /* Array of threads in the pool */
     private Thread threads[];
 
     /* the queue of jobs waiting to be executed by the worker threads in the pool */
-    private LinkedList<Runnable> jobQueue;
+    private ArrayDeque<Runnable> jobQueue;
+    private int capacity;
+    private RejectionPolicy policy;
 
     /* lock & condition for the jobQueue */
     private ReentrantLock jobsLock;
     private Condition jobsCondition;
 
+    /* number of workers currently running a job */
+    private AtomicInteger activeWorkers;
+
 
     /**
-     * Constructs a Threadpool with a starting number of threads.
+     * Constructs a Threadpool with a starting number of threads and a queue
+     * of unbounded length.
      *
      * @param size number of threads in the thread pool
      */
     public ThreadPool(int size) {
+        this(size, Integer.MAX_VALUE, RejectionPolicy.CALLER_RUNS);
+    }
+
+    /**
+     * Constructs a Threadpool with a starting number of threads and a queue
+     * holding at most capacity jobs waiting for a free thread.
+     *
+     * @param size number of threads in the thread pool
+     * @param capacity most jobs that may wait in the queue
+     * @param policy what to do with a job when the queue is full
+     */
+    public ThreadPool(int size, int capacity, RejectionPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("queue capacity must be positive");
+        }
         threads = new Thread[size];
         // implement me
-        jobQueue = new LinkedList<Runnable>();
+        jobQueue = new ArrayDeque<Runnable>(Math.min(capacity, 16));
+        this.capacity = capacity;
+        this.policy = policy;
         jobsLock = new ReentrantLock();
         jobsCondition = jobsLock.newCondition();
+        activeWorkers = new AtomicInteger();
         for (int i = 0; i < size; i++) {
             threads[i] = new WorkerThread(this);
             threads[i].start();
@@ -38,18 +90,59 @@ public class ThreadPool {
     /**
      * Add a job to the queue of jobs that have to be executed. As soon as a
      * thread is free, the thread will retrieve a job from this queue if
-     * if one exists and start processing it.
+     * if one exists and start processing it. If the queue is full the job
+     * is handled according to the RejectionPolicy of this pool.
      *
      * @param r job that has to be executed
+     * @return true if the job was queued or has already been run, false if
+     *         it was discarded because the queue is full, which under
+     *         CALLER_RUNS only happens to a ConnectionJob
      * (does not throw) InterruptedException if thread is interrupted while in blocked
      *         state. Your implementation may or may not actually throw this.
      */
-    public void addJob(Runnable r) {//} throws InterruptedException {
+    public boolean addJob(Runnable r) {//} throws InterruptedException {
         // implement me
         jobsLock.lock();
-        jobQueue.addLast(r);
-        jobsCondition.signal();
-        jobsLock.unlock();
+        try {
+            if (jobQueue.size() < capacity) {
+                jobQueue.addLast(r);
+                jobsCondition.signal();
+                return true;
+            }
+        } finally {
+            jobsLock.unlock();
+        }
+        if (policy != RejectionPolicy.CALLER_RUNS || r instanceof ConnectionJob) {
+            return false;
+        }
+        runJob(r);
+        return true;
+    }
+
+    /**
+     * Executor view of addJob.
+     *
+     * @param r job that has to be executed
+     * @throws RejectedExecutionException if the job was discarded because
+     *         the queue is full
+     */
+    @Override
+    public void execute(Runnable r) {
+        if (!addJob(r)) {
+            throw new RejectedExecutionException("job queue is full");
+        }
+    }
+
+    /**
+     * Whether jobs turned away by the given Executor should be dropped
+     * without any response, rather than answered with ERROR_SERVER_BUSY.
+     *
+     * @param executor Executor that rejected a job
+     * @return true for a ThreadPool with RejectionPolicy.DROP
+     */
+    public static boolean dropsRejected(Executor executor) {
+        return executor instanceof ThreadPool
+            && ((ThreadPool) executor).policy == RejectionPolicy.DROP;
     }
 
     /**
@@ -62,12 +155,55 @@ public class ThreadPool {
     private Runnable getJob() {//throws InterruptedException {
         // implement me
         jobsLock.lock();
-        while (jobQueue.isEmpty()) {
-            jobsCondition.awaitUninterruptibly();
+        try {
+            while (jobQueue.isEmpty()) {
+                jobsCondition.awaitUninterruptibly();
+            }
+            return jobQueue.removeFirst();
+        } finally {
+            jobsLock.unlock();
         }
-        Runnable job = jobQueue.removeFirst();
-        jobsLock.unlock();
-        return job;
+    }
+
+    /**
+     * Runs a job on the current thread. A job that throws does not take the
+     * thread down with it.
+     *
+     * @param job the job to run
+     */
+    private void runJob(Runnable job) {
+        activeWorkers.incrementAndGet();
+        try {
+            job.run();
+        } catch (RuntimeException e) {
+            // the job failed, but the thread can go on to the next one
+        } finally {
+            activeWorkers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of jobs waiting in the queue for a free thread.
+     */
+    public int getQueueDepth() {
+        jobsLock.lock();
+        try {
+            return jobQueue.size();
+        } finally {
+            jobsLock.unlock();
+        }
+    }
+
+    /**
+     * Number of threads currently running a job, including callers running
+     * a job themselves under RejectionPolicy.CALLER_RUNS.
+     */
+    public int getActiveWorkers() {
+        return activeWorkers.get();
+    }
+
+    public RejectionPolicy getRejectionPolicy() {
+        return policy;
     }
 
     /**
@@ -87,34 +223,16 @@ public class ThreadPool {
         }
 
         /**
-         * Scan for and execute tasks.
+         * Scan for and execute tasks, one after another on this thread.
          */
         @Override
         public void run() {
             // implement me
-            Thread job;
             while (true) {
-                // get a job (unless blocked) and execute it
-                job = new Thread(threadPool.getJob()); //change to below line to run ThreadPoolTest
-                // job = (Thread) threadPool.getJob();
-                job.start();
-                // wait for job to finish before fetching a new one
-                try {
-                    job.join();
-                } catch (InterruptedException e) {}
-                // if the thread was interrupted, just get the next one
+                threadPool.runJob(threadPool.getJob());
             }
         }
 
     }
 
-    /*public void startThreads() {
-        for (Thread worker : threads)
-            worker.start();
-    }
-    public void interruptThreads() {
-        for (Thread worker : threads)
-            worker.interrupt();
-    }*/
-
 }
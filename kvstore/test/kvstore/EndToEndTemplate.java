@@ -7,12 +7,13 @@ import org.junit.*;
 
 public class EndToEndTemplate {
 
+    String hostname;
     KVClient client;
     ServerRunner serverRunner;
 
     @Before
     public void setUp() throws IOException, InterruptedException {
-        String hostname = InetAddress.getLocalHost().getHostAddress();
+        hostname = InetAddress.getLocalHost().getHostAddress();
 
         SocketServer ss = new SocketServer(hostname, 8080);
         ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
@@ -1,6 +1,9 @@
 package kvstore;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -27,4 +30,54 @@ public class EndToEndTest extends EndToEndTemplate {
         assertEquals(client.get("foo"), "blah");
     }
 
+    @Test
+    public void testBinaryClient() throws KVException {
+        KVClient binaryClient = new KVClient(hostname, 8080, true);
+        binaryClient.put("foo", "bar");
+        assertEquals("bar", binaryClient.get("foo"));
+        assertEquals("bar", client.get("foo"));
+        binaryClient.del("foo");
+        try {
+            binaryClient.get("foo");
+            fail("get after del should error");
+        } catch (KVException kve) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, kve.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testKeepAliveClient() throws Exception {
+        // one pooled connection: concurrent requests are pipelined over it
+        final KVClient keepAliveClient = new KVClient(hostname, 8080, 1);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String prefix = "thread" + t + "-";
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 25; i++) {
+                            keepAliveClient.put(prefix + i, "value" + i);
+                            if (!("value" + i).equals(keepAliveClient.get(prefix + i))) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (KVException kve) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        keepAliveClient.del("thread0-0");
+        // the server has a single worker, held by the open connection
+        keepAliveClient.close();
+        assertEquals("value1", client.get("thread0-1"));
+    }
+
 }
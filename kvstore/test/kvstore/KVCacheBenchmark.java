@@ -0,0 +1,113 @@
+package kvstore;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays key traces against KVCache under each EvictionPolicy and prints
+ * the hit ratios. Not a unit test; run it by hand:
+ *
+ *     java -cp bin/src:bin/test kvstore.KVCacheBenchmark [sets] [size] [trace ...]
+ *
+ * A trace file has one key per line, in the order the keys were read. Every
+ * read that misses is followed by a put, as KVServer.get does. Without
+ * trace files a skewed trace interrupted by scans is generated.
+ */
+public class KVCacheBenchmark {
+
+    private static final String[] POLICIES = {"second-chance", "lru", "w-tinylfu"};
+
+    public static void main(String[] args) throws IOException {
+        int numSets = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int maxElemsPerSet = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        if (args.length > 2) {
+            for (int i = 2; i < args.length; i++) {
+                run(args[i], readTrace(args[i]), numSets, maxElemsPerSet);
+            }
+        } else {
+            run("zipf with scans", skewedWithScans(new Random(162)), numSets, maxElemsPerSet);
+        }
+    }
+
+    private static void run(String name, List<String> trace, int numSets, int maxElemsPerSet) {
+        System.out.println(name + ": " + trace.size() + " reads, " + numSets + " sets of "
+            + maxElemsPerSet);
+        for (String policy : POLICIES) {
+            KVCache cache = new KVCache(numSets, maxElemsPerSet, policy(policy));
+            int hits = 0;
+            for (String key : trace) {
+                if (cache.get(key) != null) {
+                    hits++;
+                } else {
+                    cache.put(key, key);
+                }
+            }
+            System.out.printf("  %-14s hit ratio %.4f%n", policy, (double) hits / trace.size());
+        }
+    }
+
+    private static EvictionPolicy policy(String name) {
+        if (name.equals("lru")) {
+            return EvictionPolicy.lru();
+        } else if (name.equals("w-tinylfu")) {
+            return EvictionPolicy.tinyLfu();
+        }
+        return EvictionPolicy.secondChance();
+    }
+
+    private static List<String> readTrace(String fileName) throws IOException {
+        List<String> trace = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    trace.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return trace;
+    }
+
+    /**
+     * Zipf-distributed reads of 50000 keys, with a scan of 5000 keys never
+     * read again after every 50000 reads.
+     */
+    private static List<String> skewedWithScans(Random random) {
+        int keys = 50000;
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        List<String> trace = new ArrayList<String>();
+        int scanned = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50000; i++) {
+                double target = random.nextDouble() * sum;
+                int low = 0, high = keys - 1;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (cumulative[mid] < target) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                trace.add("key" + low);
+            }
+            for (int i = 0; i < 5000; i++) {
+                trace.add("scan" + scanned++);
+            }
+        }
+        return trace;
+    }
+
+}
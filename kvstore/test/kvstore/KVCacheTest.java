@@ -2,6 +2,8 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.util.concurrent.locks.Lock;
+
 import org.junit.*;
 
 public class KVCacheTest {
@@ -127,4 +129,214 @@ public class KVCacheTest {
     	System.out.println("Test6 Success");
     }
     
+    /**
+     * Readers of a set share its read lock, and getLock excludes them.
+     */
+    @Test
+    public void readersShareASet() throws InterruptedException {
+        final KVCache cache = new KVCache(1, 4);
+        cache.put("hello", "world");
+        Lock read = cache.getReadLock("hello");
+        read.lock();
+        try {
+            final boolean[] result = new boolean[2];
+            Thread other = new Thread() {
+                @Override
+                public void run() {
+                    Lock otherRead = cache.getReadLock("hello");
+                    result[0] = otherRead.tryLock();
+                    if (result[0]) {
+                        result[1] = "world".equals(cache.get("hello"));
+                        otherRead.unlock();
+                    }
+                }
+            };
+            other.start();
+            other.join();
+            assertTrue(result[0]);
+            assertTrue(result[1]);
+            assertFalse(cache.getLock("world").tryLock());
+        } finally {
+            read.unlock();
+        }
+        assertEquals(1, cache.getReference("hello"));
+    }
+
+    /**
+     * Deleting from the middle of a set keeps the order the clock hand
+     * visits the remaining entries in.
+     */
+    @Test
+    public void deleteKeepsEvictionOrder() {
+        KVCache cache = new KVCache(1, 3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.del("b");
+        cache.put("d", "4");
+        cache.put("e", "5");
+        assertEquals(-1, cache.getReference("c"));
+        assertEquals(0, cache.getReference("a"));
+        assertEquals(0, cache.getReference("d"));
+        assertEquals(0, cache.getReference("e"));
+        String xml = cache.toXML();
+        assertTrue(xml.indexOf("<Key>d</Key>") < xml.indexOf("<Key>a</Key>"));
+        assertTrue(xml.indexOf("<Key>a</Key>") < xml.indexOf("<Key>e</Key>"));
+    }
+
+    @Test
+    public void lruEvictsLeastRecentlyUsed() throws InterruptedException {
+        KVCache cache = new KVCache(1, 3, EvictionPolicy.lru());
+        for (String key : new String[] {"a", "b", "c"}) {
+            cache.put(key, key);
+            Thread.sleep(1);
+        }
+        cache.get("a");
+        Thread.sleep(1);
+        cache.put("d", "d");
+        assertNull(cache.get("b"));
+        assertEquals("a", cache.get("a"));
+        assertEquals("c", cache.get("c"));
+        assertEquals("d", cache.get("d"));
+    }
+
+    /**
+     * A scan of keys used once does not push frequently used keys out.
+     */
+    @Test
+    public void tinyLfuResistsScans() {
+        KVCache cache = new KVCache(1, 4, EvictionPolicy.tinyLfu());
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 3; i++) {
+                if (cache.get("hot" + i) == null) {
+                    cache.put("hot" + i, "h");
+                }
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            cache.put("scan" + i, "s");
+            if (i % 10 == 9) {
+                for (int j = 0; j < 3; j++) {
+                    assertEquals("h", cache.get("hot" + j));
+                }
+            }
+        }
+        // the newest key of the scan is still admitted
+        assertEquals("s", cache.get("scan99"));
+    }
+
+    @Test
+    public void frequencySketchCounts() {
+        EvictionPolicy.FrequencySketch sketch = new EvictionPolicy.FrequencySketch(64);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("often");
+        }
+        sketch.increment("once");
+        assertEquals(15, sketch.frequency("often"));
+        assertEquals(1, sketch.frequency("once"));
+        assertEquals(0, sketch.frequency("never"));
+        // counting ten times the capacity halves everything
+        for (int i = 0; i < 640; i++) {
+            sketch.increment("filler" + i);
+        }
+        assertTrue(sketch.frequency("often") <= 8);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void policyBelongsToOneCache() {
+        EvictionPolicy policy = EvictionPolicy.tinyLfu();
+        new KVCache(1, 4, policy);
+        new KVCache(1, 4, policy);
+    }
+
+    @Test
+    public void byteBudgetEvictsByWeight() {
+        // one set of 100 bytes; each character weighs two
+        KVCache cache = new KVCache(1, 10, 100, EvictionPolicy.secondChance());
+        cache.put("a", "0123456789");
+        cache.put("b", "0123456789");
+        cache.put("c", "0123456789");
+        cache.put("d", "0123456789");
+        assertEquals(88, cache.getSizeInBytes());
+        // 42 more bytes push out the two oldest entries
+        cache.put("e", "01234567890123456789");
+        assertEquals(-1, cache.getReference("a"));
+        assertEquals(-1, cache.getReference("b"));
+        assertEquals("0123456789", cache.get("c"));
+        assertEquals(86, cache.getSizeInBytes());
+        // too heavy to cache at all
+        cache.put("huge", "0123456789012345678901234567890123456789012345678901234567890");
+        assertNull(cache.get("huge"));
+        // growing an entry evicts others to make room for it
+        cache.put("c", "01234567890123456789012345678901234567890123");
+        assertEquals(90, cache.getSizeInBytes());
+        assertNotNull(cache.get("c"));
+        cache.del("c");
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void offHeapValues() {
+        // one set with a 64 byte slab
+        KVCache cache = new KVCache(1, 4, 64, EvictionPolicy.secondChance(), true);
+        cache.put("a", "caf\u00e9");
+        assertEquals("caf\u00e9", cache.get("a"));
+        assertEquals(7, cache.getSizeInBytes());
+        cache.put("b", "0123456789");
+        cache.put("c", "0123456789");
+        cache.put("a", "0123456789012345");
+        assertEquals(1, cache.getReference("a"));
+        cache.del("c");
+        cache.put("d", "01234567890123456789");
+        assertEquals("0123456789012345", cache.get("a"));
+        assertEquals("01234567890123456789", cache.get("d"));
+        // e evicts b and then a, and the slab is compacted to fit it after d
+        cache.put("e", "0123456789012345678901234567");
+        assertNull(cache.get("b"));
+        assertNull(cache.get("a"));
+        assertEquals("01234567890123456789", cache.get("d"));
+        assertEquals("0123456789012345678901234567", cache.get("e"));
+        assertTrue(cache.getSizeInBytes() <= 64);
+    }
+
+    @Test
+    public void resizeKeepsEntries() {
+        KVCache cache = new KVCache(2, 2);
+        Lock lock = cache.getLock("k0");
+        for (int i = 0; i < 4; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        cache.get("k1");
+        cache.resize(6, 3);
+        assertSame(lock, cache.getLock("k0"));
+        for (int i = 0; i < 4; i++) {
+            assertEquals("v" + i, cache.get("k" + i));
+        }
+        assertEquals(1, cache.getReference("k1"));
+        for (int i = 4; i < 12; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        // six sets of three now hold all twelve keys
+        for (int i = 0; i < 12; i++) {
+            assertEquals("v" + i, cache.get("k" + i));
+        }
+        cache.resize(2, 1);
+        int cached = 0;
+        for (int i = 0; i < 12; i++) {
+            if (cache.get("k" + i) != null) {
+                cached++;
+            }
+        }
+        assertEquals(2, cached);
+        cache.freshCache();
+        assertSame(lock, cache.getLock("k0"));
+        assertNull(cache.get("k0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resizeNeedsMultipleOfLocks() {
+        new KVCache(2, 2).resize(3, 2);
+    }
+
 }
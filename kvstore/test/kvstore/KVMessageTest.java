@@ -173,6 +173,114 @@ public class KVMessageTest {
         assertEquals(xmlout, sampleXML);
     }
  
+    @Test
+    public void binaryRoundTripPutReq() throws KVException {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("key");
+        kvm.setValue("v\u00e4lue");
+        byte[] frame = kvm.toBinary();
+        assertEquals(KVMessage.BINARY_MAGIC, frame[0] & 0xFF);
+
+        KVMessage decoded = KVMessage.readBinary(new ByteArrayInputStream(frame));
+        assertEquals(PUT_REQ, decoded.getMsgType());
+        assertEquals("key", decoded.getKey());
+        assertEquals("v\u00e4lue", decoded.getValue());
+        assertNull(decoded.getMessage());
+    }
+
+    @Test
+    public void binaryRoundTripResp() throws KVException {
+        KVMessage kvm = new KVMessage(RESP, SUCCESS);
+        KVMessage decoded = KVMessage.readBinary(new ByteArrayInputStream(kvm.toBinary()));
+        assertEquals(RESP, decoded.getMsgType());
+        assertEquals(SUCCESS, decoded.getMessage());
+        assertNull(decoded.getKey());
+        assertNull(decoded.getValue());
+    }
+
+    @Test
+    public void decisionsCarryKey() throws KVException, UnsupportedEncodingException {
+        KVMessage commit = new KVMessage(COMMIT);
+        commit.setKey("foo");
+        KVMessage abort = new KVMessage(ABORT, ERROR_NO_SUCH_KEY);
+        abort.setKey("foo");
+        for (KVMessage kvm : new KVMessage[] { commit, abort }) {
+            KVMessage fromXML = new KVMessage(
+                new ByteArrayInputStream(kvm.toXML().getBytes("UTF-8")));
+            KVMessage fromBinary = KVMessage.readBinary(
+                new ByteArrayInputStream(kvm.toBinary()));
+            for (KVMessage decoded : new KVMessage[] { fromXML, fromBinary }) {
+                assertEquals(kvm.getMsgType(), decoded.getMsgType());
+                assertEquals("foo", decoded.getKey());
+                assertEquals(kvm.getMessage(), decoded.getMessage());
+                assertNull(decoded.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void binaryRoundTripBatch() throws KVException {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("a");
+        put.setValue("1");
+        KVMessage del = new KVMessage(DEL_REQ);
+        del.setKey("b");
+        KVMessage batch = new KVMessage(Arrays.asList(put, del));
+        KVMessage decoded = KVMessage.readBinary(new ByteArrayInputStream(batch.toBinary()));
+        assertEquals(BATCH_REQ, decoded.getMsgType());
+        assertEquals(2, decoded.getOps().size());
+        assertEquals(PUT_REQ, decoded.getOps().get(0).getMsgType());
+        assertEquals("1", decoded.getOps().get(0).getValue());
+        assertEquals(DEL_REQ, decoded.getOps().get(1).getMsgType());
+        assertEquals("b", decoded.getOps().get(1).getKey());
+        try {
+            batch.toXML();
+            fail("batches have no XML form");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void binaryInvalidFormat() throws KVException {
+        KVMessage kvm = new KVMessage(GET_REQ);
+        try {
+            KVMessage.readBinary(new ByteArrayInputStream(kvm.toBinary()));
+            fail("getreq without key should not decode");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void binaryNegativeFieldLength() throws KVException {
+        byte[] frame = new KVMessage(RESP, SUCCESS).toBinary();
+        // magic, one length byte, type, then an empty key field
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(frame[2]);
+        KVMessage.writeVarint(body, -2);
+        body.write(frame, 4, frame.length - 4);
+        try {
+            KVMessage.fromBinary(body.toByteArray());
+            fail("negative field length should not decode");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void binaryTruncatedFrame() throws KVException {
+        KVMessage kvm = new KVMessage(DEL_REQ);
+        kvm.setKey("key");
+        byte[] frame = kvm.toBinary();
+        try {
+            KVMessage.readBinary(new ByteArrayInputStream(frame, 0, frame.length - 1));
+            fail("truncated frame should not decode");
+        } catch (KVException e) {
+            assertEquals(ERROR_COULD_NOT_RECEIVE_DATA, e.getKVMessage().getMessage());
+        }
+    }
+
     /*
     @Test
     public void basicSendRecieve() throws KVException{
@@ -2,6 +2,7 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.util.*;
 
 import org.junit.*;
@@ -125,4 +126,34 @@ public class KVServerTest {
         }
     }
 
+    @Test
+    public void snapshotIgnoresLaterWrites() throws Exception {
+        String path = "bin/kvServerSnapshot.xml";
+        server.put("kept", "1");
+        server.put("changed", "old");
+        server.put("deleted", "gone");
+        KVServer.Snapshot snapshot = server.beginSnapshot();
+        server.put("changed", "new");
+        server.put("changed", "newer");
+        server.del("deleted");
+        server.put("added", "late");
+
+        snapshot.writeTo(path, false);
+        KVStore image = new KVStore();
+        image.restoreFromFile(path);
+        assertEquals("1", image.get("kept"));
+        assertEquals("old", image.get("changed"));
+        assertEquals("gone", image.get("deleted"));
+        assertFalse(image.hasKey("added"));
+        assertEquals("newer", server.get("changed"));
+
+        // the next snapshot sees the writes
+        server.snapshot(path, true).get();
+        image.restoreFromFile(path);
+        assertEquals("newer", image.get("changed"));
+        assertEquals("late", image.get("added"));
+        assertFalse(image.hasKey("deleted"));
+        new File(path).delete();
+    }
+
 }
@@ -3,6 +3,12 @@ package kvstore;
 import static kvstore.KVConstants.*;
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
 import org.junit.*;
 
 public class KVStoreTest {
@@ -67,4 +73,37 @@ public class KVStoreTest {
         assertEquals("four", store.get("4"));
     }
 
+    @Test
+    public void compressedDumpRestores() throws Exception {
+        String path = "bin/kvStoreTest.xml.gz";
+        for (int i = 0; i < 1000; i++) {
+            store.put("key" + i, "value <&> " + i);
+        }
+        store.writeToFile(path, true);
+        // a gzip stream, which restore recognizes on its own
+        new GZIPInputStream(new FileInputStream(path)).close();
+
+        store.restoreFromFile(path);
+        assertEquals("value <&> 0", store.get("key0"));
+        assertEquals("value <&> 999", store.get("key999"));
+        new File(path).delete();
+    }
+
+    @Test
+    public void restoresIndentedDump() throws KVException, IOException {
+        String path = "bin/kvStoreTest.xml";
+        FileWriter out = new FileWriter(path);
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+            + "<KVStore>\n  <KVPair>\n    <Key>a</Key>\n    <Value>1</Value>\n  </KVPair>\n"
+            + "  <KVPair><Value>2</Value><Key>b</Key></KVPair>\n</KVStore>\n");
+        out.close();
+        store.put("stale", "gone");
+
+        store.restoreFromFile(path);
+        assertEquals("1", store.get("a"));
+        assertEquals("2", store.get("b"));
+        assertFalse(store.hasKey("stale"));
+        new File(path).delete();
+    }
+
 }
@@ -0,0 +1,122 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.*;
+
+public class LSMStoreTest {
+
+    File directory = new File("bin/lsmStoreTest");
+    LSMStore store;
+
+    @Before
+    public void setupStore() throws Exception {
+        // small memtables so that tests reach the tables
+        store = new LSMStore(directory, 4096);
+    }
+
+    @After
+    public void removeStore() {
+        store.close();
+        directory.delete();
+    }
+
+    @Test
+    public void putGetDel() throws KVException {
+        store.put("key", "value");
+        assertTrue(store.hasKey("key"));
+        assertEquals("value", store.get("key"));
+        store.del("key");
+        assertFalse(store.hasKey("key"));
+        try {
+            store.del("key");
+            fail("deleted key should be gone");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void newestValueSurvivesFlushesAndCompaction() throws Exception {
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 200; i++) {
+                store.put("key" + i, "value" + i + "-" + round);
+            }
+            for (int i = 0; i < 200; i += 10) {
+                store.del("key" + i);
+            }
+        }
+        while (store.getFrozenCount() > 0 || store.getTableCount() > 4) {
+            Thread.sleep(10);
+        }
+        assertTrue(store.getTableCount() > 0);
+        for (int i = 0; i < 200; i++) {
+            if (i % 10 == 0) {
+                assertFalse(store.hasKey("key" + i));
+            } else {
+                assertEquals("value" + i + "-9", store.get("key" + i));
+            }
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void failingFlushesAreReported() throws Exception {
+        // a file in place of the directory, so no table can be written
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        assertTrue(directory.delete());
+        assertTrue(directory.createNewFile());
+        try {
+            for (int i = 0; i < 10000; i++) {
+                store.put("key" + i, "value" + i);
+            }
+            fail("writes should fail once no memtable can be written out");
+        } catch (KVException e) {
+            assertEquals(ERROR_STORAGE_UNAVAILABLE, e.getKVMessage().getMessage());
+        }
+        assertEquals("value0", store.get("key0"));
+
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        while (store.getFrozenCount() > 0) {
+            Thread.sleep(10);
+        }
+        store.put("after", "value");
+        assertEquals("value", store.get("after"));
+        assertEquals("value0", store.get("key0"));
+    }
+
+    @Test
+    public void dumpAndRestore() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.put("key" + i, "value" + i);
+        }
+        store.del("key7");
+        store.writeToFile("bin/lsmStoreTest.xml", false);
+        store.restoreFromFile("bin/lsmStoreTest.xml");
+        assertEquals("value42", store.get("key42"));
+        assertFalse(store.hasKey("key7"));
+        new File("bin/lsmStoreTest.xml").delete();
+    }
+
+    @Test
+    public void bloomFilterHasNoFalseNegatives() {
+        LSMStore.BloomFilter bloom = new LSMStore.BloomFilter(1000);
+        for (int i = 0; i < 1000; i++) {
+            bloom.add("key" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bloom.mightContain("key" + i));
+            if (bloom.mightContain("missing" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 50);
+    }
+
+}
@@ -0,0 +1,83 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.*;
+
+public class MappedStoreTest {
+
+    File directory = new File("bin/mappedStoreTest");
+    MappedStore store;
+
+    @Before
+    public void setupStore() throws Exception {
+        store = new MappedStore(directory, MappedStore.MIN_SEGMENT_SIZE);
+    }
+
+    @After
+    public void removeStore() {
+        store.resetStore();
+        directory.delete();
+    }
+
+    @Test
+    public void putGetDel() throws KVException {
+        store.put("key", "v\u00e4lue");
+        assertTrue(store.hasKey("key"));
+        assertEquals("v\u00e4lue", store.get("key"));
+        store.put("key", "other");
+        assertEquals("other", store.get("key"));
+        store.del("key");
+        assertFalse(store.hasKey("key"));
+        try {
+            store.get("key");
+            fail("deleted key should be gone");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void overwrittenSegmentsAreReclaimed() throws KVException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 64 * 1024; i++) {
+            value.append('x');
+        }
+        // every round rewrites all keys, so older segments die off
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 8; i++) {
+                store.put("key" + i, value.toString() + round);
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            assertEquals(value.toString() + 19, store.get("key" + i));
+        }
+        assertTrue("segments: " + store.getSegmentCount(), store.getSegmentCount() <= 3);
+    }
+
+    @Test
+    public void dumpAndRestore() throws Exception {
+        store.put("1", "one");
+        store.put("2", "two");
+        store.writeToFile("bin/mappedStoreTest.xml", true);
+        store.del("1");
+        store.restoreFromFile("bin/mappedStoreTest.xml");
+        assertEquals("one", store.get("1"));
+        assertEquals("two", store.get("2"));
+        new File("bin/mappedStoreTest.xml").delete();
+    }
+
+    @Test
+    public void backsKVServer() throws KVException {
+        KVServer server = new KVServer(1, 1, store);
+        server.put("a", "1");
+        server.put("b", "2");
+        assertTrue(server.hasKey("a"));
+        assertEquals("1", server.get("a"));
+        assertEquals("2", store.get("b"));
+    }
+
+}
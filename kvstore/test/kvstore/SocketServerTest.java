@@ -0,0 +1,119 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class SocketServerTest {
+
+    String hostname;
+    ServerRunner serverRunner;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        hostname = InetAddress.getLocalHost().getHostAddress();
+
+        SocketServer ss = new SocketServer(hostname, 8082, 2);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10)));
+        serverRunner = new ServerRunner(ss, "eventloop server");
+        serverRunner.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        serverRunner.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void eventLoopXMLClient() throws KVException {
+        KVClient client = new KVClient(hostname, 8082);
+        client.put("foo", "bar");
+        assertEquals("bar", client.get("foo"));
+        client.del("foo");
+        try {
+            client.get("foo");
+            fail("get of deleted key should fail");
+        } catch (KVException kve) {
+            assertEquals(ERROR_NO_SUCH_KEY, kve.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void eventLoopBinaryClient() throws KVException {
+        KVClient client = new KVClient(hostname, 8082, true);
+        client.put("foo", "bar");
+        assertEquals("bar", client.get("foo"));
+    }
+
+    @Test(timeout = 20000)
+    public void eventLoopPipelinedClients() throws Exception {
+        // a single worker thread serves many open connections in turn
+        final KVClient client = new KVClient(hostname, 8082, 4);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final String prefix = "thread" + t + "-";
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 25; i++) {
+                            client.put(prefix + i, "value" + i);
+                            if (!("value" + i).equals(client.get(prefix + i))) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (KVException kve) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        // open keep-alive connections do not block other clients
+        assertEquals("value3", new KVClient(hostname, 8082).get("thread5-3"));
+        client.close();
+    }
+
+    @Test(timeout = 10000)
+    public void eventLoopSplitFrames() throws Exception {
+        KVMessage put = new KVMessage(PUT_REQ);
+        put.setKey("split");
+        put.setValue("frames");
+        KVMessage get = new KVMessage(GET_REQ);
+        get.setKey("split");
+        byte[] first = put.toBinary();
+        byte[] second = get.toBinary();
+
+        Socket sock = new Socket(hostname, 8082);
+        OutputStream out = sock.getOutputStream();
+        // one byte at a time, then both frames of the next round in one write
+        for (byte b : first) {
+            out.write(b);
+            out.flush();
+        }
+        InputStream in = sock.getInputStream();
+        assertEquals(SUCCESS, KVMessage.readBinary(in).getMessage());
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        out.write(both);
+        out.flush();
+        assertEquals(SUCCESS, KVMessage.readBinary(in).getMessage());
+        assertEquals("frames", KVMessage.readBinary(in).getValue());
+        sock.close();
+    }
+
+}
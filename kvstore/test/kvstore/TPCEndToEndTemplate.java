@@ -60,7 +60,8 @@ public class TPCEndToEndTemplate {
     }
 
     protected void startMaster() throws Exception {
-        master = new TPCMaster(NUMSLAVES, new KVCache(1,4));
+        // enough sets that writes to different keys can run concurrently
+        master = new TPCMaster(NUMSLAVES, new KVCache(16,4));
         SocketServer clientSocketServer = new SocketServer(hostname, CLIENTPORT);
         clientSocketServer.addHandler(new TPCClientHandler(master));
         masterClientRunner = new ServerRunner(clientSocketServer, "masterClient");
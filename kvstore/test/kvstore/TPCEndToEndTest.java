@@ -50,5 +50,47 @@ public class TPCEndToEndTest extends TPCEndToEndTemplate {
     		
     	}
     }
-    
+
+    /**
+     * Transactions on different keys overlap on the replicas they share;
+     * the slaves have to serve them side by side rather than one
+     * connection at a time.
+     */
+    @Test(timeout = 15000)
+    public void concurrentWritesCommit() throws Exception {
+        Thread[] writers = new Thread[8];
+        final KVException[] errors = new KVException[writers.length];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < writers.length; i++) {
+            final int n = i;
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+                        put.setKey("key" + n);
+                        put.setValue("value" + n);
+                        master.handleTPCRequest(put, true);
+                    } catch (KVException kve) {
+                        errors[n] = kve;
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        for (int i = 0; i < writers.length; i++) {
+            if (errors[i] != null) {
+                throw errors[i];
+            }
+        }
+        assertTrue("took " + elapsed + "ms", elapsed < TPCMaster.TIMEOUT);
+        for (int i = 0; i < writers.length; i++) {
+            assertEquals("value" + i, client.get("key" + i));
+        }
+    }
+
 }
@@ -2,6 +2,16 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
 import org.junit.*;
 
 public class TPCLogTest extends TPCEndToEndTemplate{
@@ -38,6 +48,238 @@ public class TPCLogTest extends TPCEndToEndTemplate{
     	}
     }
     
+    /**
+     * Transactions on different keys may be interleaved in the log; each
+     * decision applies to the request on its own key.
+     */
+    @Test
+    public void rebuildInterleavedTest() throws KVException {
+        String path = "bin/log.interleavedTest";
+        new File(path).delete();
+        TPCLog log = new TPCLog(path, new KVServer(1, 4));
+        log.appendAndFlush(put("a", "1"));
+        log.appendAndFlush(put("b", "2"));
+        log.appendAndFlush(decision(KVConstants.COMMIT, "b"));
+        log.appendAndFlush(put("c", "3"));
+        log.appendAndFlush(decision(KVConstants.ABORT, "a"));
+
+        KVServer server = new KVServer(1, 4);
+        log = new TPCLog(path, server);
+        assertEquals("2", server.get("b"));
+        assertFalse(server.hasKey("a"));
+        assertFalse(server.hasKey("c"));
+        Map<String, KVMessage> pending = log.getPendingRequests();
+        assertEquals(1, pending.size());
+        assertEquals("3", pending.get("c").getValue());
+        new File(path).delete();
+    }
+
+    @Test
+    public void rebuildBatchTest() throws KVException {
+        String path = "bin/log.batchTest";
+        new File(path).delete();
+        KVServer server = new KVServer(1, 4);
+        server.put("c", "old");
+        TPCLog log = new TPCLog(path, server);
+        KVMessage del = new KVMessage(KVConstants.DEL_REQ);
+        del.setKey("c");
+        log.appendAndFlush(new KVMessage(Arrays.asList(put("a", "1"), put("b", "2"))));
+        log.appendAndFlush(decision(KVConstants.COMMIT, "a"));
+        log.appendAndFlush(new KVMessage(Arrays.asList(put("d", "4"), del)));
+
+        server = new KVServer(1, 4);
+        log = new TPCLog(path, server);
+        assertEquals("1", server.get("a"));
+        assertEquals("2", server.get("b"));
+        Map<String, KVMessage> pending = log.getPendingRequests();
+        assertEquals(2, pending.size());
+        assertSame(pending.get("c"), pending.get("d"));
+        assertSame(pending.get("c"), TPCLog.takePending(pending, "d"));
+        assertTrue(pending.isEmpty());
+        new File(path).delete();
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws Exception {
+        String path = "bin/log.tornTest";
+        new File(path).delete();
+        TPCLog log = new TPCLog(path, new KVServer(1, 4));
+        log.appendAndFlush(put("a", "1"));
+        log.appendAndFlush(decision(KVConstants.COMMIT, "a"));
+        log.appendAndFlush(put("b", "2"));
+        log.close();
+        long intact = new File(path).length();
+        log = new TPCLog(path, new KVServer(1, 4));
+        log.appendAndFlush(decision(KVConstants.COMMIT, "b"));
+        log.close();
+        // lose the end of the last record, as if we crashed while writing it
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        KVServer server = new KVServer(1, 4);
+        log = new TPCLog(path, server);
+        assertEquals(intact, new File(path).length());
+        assertEquals("1", server.get("a"));
+        assertFalse(server.hasKey("b"));
+        assertEquals("2", log.getPendingRequests().get("b").getValue());
+        log.appendAndFlush(decision(KVConstants.COMMIT, "b"));
+        log.close();
+
+        server = new KVServer(1, 4);
+        log = new TPCLog(path, server);
+        assertEquals("2", server.get("b"));
+        log.close();
+        new File(path).delete();
+    }
+
+    @Test
+    public void failedAppendIsReported() throws Exception {
+        String path = "bin/log.failedAppendTest";
+        new File(path).delete();
+        TPCLog log = new TPCLog(path, new KVServer(1, 4));
+        log.appendAndFlush(put("a", "1"));
+        log.close();
+        try {
+            log.appendAndFlush(decision(KVConstants.COMMIT, "a"));
+            fail("append to a closed log should fail");
+        } catch (KVException kve) {
+            assertEquals(KVConstants.ERROR_STORAGE_UNAVAILABLE,
+                kve.getKVMessage().getMessage());
+        }
+        assertEquals("a", log.getLastEntry().getKey());
+        assertEquals(KVConstants.PUT_REQ, log.getLastEntry().getMsgType());
+
+        KVServer server = new KVServer(1, 4);
+        log = new TPCLog(path, server);
+        assertFalse(server.hasKey("a"));
+        assertEquals("1", log.getPendingRequests().get("a").getValue());
+        log.close();
+        new File(path).delete();
+    }
+
+    @Test
+    public void legacyLogIsMigrated() throws Exception {
+        String path = "bin/log.legacyTest";
+        ArrayList<KVMessage> entries = new ArrayList<KVMessage>();
+        entries.add(put("a", "1"));
+        entries.add(new KVMessage(KVConstants.COMMIT));
+        entries.add(put("b", "2"));
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(path));
+        out.writeObject(entries);
+        out.close();
+
+        KVServer server = new KVServer(1, 4);
+        TPCLog log = new TPCLog(path, server);
+        assertEquals("1", server.get("a"));
+        assertEquals("2", log.getPendingRequests().get("b").getValue());
+        assertEquals("b", log.getLastEntry().getKey());
+        log.close();
+        DataInputStream in = new DataInputStream(new FileInputStream(path));
+        assertEquals(TPCLog.LOG_MAGIC, in.readInt());
+        in.close();
+        new File(path).delete();
+    }
+
+    @Test
+    public void checkpointKeepsPendingRequests() throws Exception {
+        String path = "bin/log.checkpointTest";
+        deleteLog(path);
+        KVServer server = new KVServer(1, 4);
+        TPCLog log = new TPCLog(path, server);
+        log.setCheckpointInterval(4);
+        for (int i = 0; i < 3; i++) {
+            log.appendAndFlush(put("k" + i, "v" + i));
+            log.appendAndFlush(decision(KVConstants.COMMIT, "k" + i));
+            server.put("k" + i, "v" + i);
+        }
+        log.appendAndFlush(put("waiting", "w"));
+        for (int i = 3; i < 6; i++) {
+            log.appendAndFlush(put("k" + i, "v" + i));
+            log.appendAndFlush(decision(KVConstants.COMMIT, "k" + i));
+            server.put("k" + i, "v" + i);
+        }
+        log.close();
+        // snapshots are written in the background, so which records the
+        // last one covers depends on timing; only it is kept
+        File[] snapshots = new File(path).getAbsoluteFile().getParentFile().listFiles();
+        int kept = 0;
+        for (File file : snapshots) {
+            if (file.getName().startsWith(new File(path).getName() + ".snapshot.")) {
+                assertFalse(file.getName().endsWith(".tmp"));
+                kept++;
+            }
+        }
+        assertEquals(1, kept);
+
+        server = new KVServer(1, 4);
+        log = new TPCLog(path, server);
+        for (int i = 0; i < 6; i++) {
+            assertEquals("v" + i, server.get("k" + i));
+        }
+        assertEquals("w", log.getPendingRequests().get("waiting").getValue());
+        log.appendAndFlush(decision(KVConstants.COMMIT, "waiting"));
+        log.close();
+
+        server = new KVServer(1, 4);
+        new TPCLog(path, server).close();
+        assertEquals("w", server.get("waiting"));
+        assertEquals("v5", server.get("k5"));
+        deleteLog(path);
+    }
+
+    @Test
+    public void unreadableSnapshotFailsRecovery() throws Exception {
+        String path = "bin/log.badSnapshotTest";
+        deleteLog(path);
+        KVServer server = new KVServer(1, 4);
+        TPCLog log = new TPCLog(path, server);
+        log.setCheckpointInterval(2);
+        log.appendAndFlush(put("a", "1"));
+        log.appendAndFlush(decision(KVConstants.COMMIT, "a"));
+        server.put("a", "1");
+        log.appendAndFlush(put("b", "2"));
+        log.close();
+        File snapshot = new File(path + ".snapshot.2");
+        assertTrue(snapshot.exists());
+        RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+        file.setLength(snapshot.length() / 2);
+        file.close();
+
+        try {
+            new TPCLog(path, new KVServer(1, 4));
+            fail("recovery should not go on without the snapshot");
+        } catch (KVException kve) {
+            assertEquals(KVConstants.ERROR_STORAGE_UNAVAILABLE,
+                kve.getKVMessage().getMessage());
+        }
+        assertTrue(snapshot.exists());
+        deleteLog(path);
+    }
+
+    private void deleteLog(String path) {
+        final String name = new File(path).getName();
+        File[] files = new File(path).getAbsoluteFile().getParentFile().listFiles();
+        for (File file : files) {
+            if (file.getName().startsWith(name)) {
+                file.delete();
+            }
+        }
+    }
+
+    private KVMessage put(String key, String value) throws KVException {
+        KVMessage request = new KVMessage(KVConstants.PUT_REQ);
+        request.setKey(key);
+        request.setValue(value);
+        return request;
+    }
+
+    private KVMessage decision(String type, String key) throws KVException {
+        KVMessage decision = new KVMessage(type);
+        decision.setKey(key);
+        return decision;
+    }
+
     @Test
     public void setup() {
     	try {
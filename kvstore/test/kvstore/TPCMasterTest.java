@@ -6,7 +6,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.junit.*;
 
@@ -175,6 +179,37 @@ public class TPCMasterTest {
 		}
 	}
 	
+	/**
+	 * With one virtual node, a key belongs to the first slave whose ID is
+	 * at or after its hash; slaves with IDs close together then split the
+	 * keys badly, which more virtual nodes fix.
+	 */
+	@Test
+	public void virtualNodesSpreadKeys() throws KVException {
+		TPCMaster master = new TPCMaster(4, new KVCache(1, 4));
+		for (int id = 1; id <= 4; id++) {
+			master.registerSlave(new TPCSlaveInfo(id + "@localhost:" + (9000 + id)));
+		}
+		assertEquals(1, master.findFirstReplica("key").getSlaveID());
+		assertEquals(2, master.findSuccessor(master.findFirstReplica("key")).getSlaveID());
+		assertEquals(1, master.findSuccessor(master.slaveList.get(3)).getSlaveID());
+
+		master.setVirtualNodes(128);
+		int[] owned = new int[5];
+		for (int i = 0; i < 10000; i++) {
+			owned[(int) master.findFirstReplica("key" + i).getSlaveID()]++;
+		}
+		for (int id = 1; id <= 4; id++) {
+			assertTrue("slave " + id + " owns " + owned[id], owned[id] > 1500);
+		}
+		TPCSlaveInfo[] replicas = master.findReplicas("key", 3);
+		assertEquals(3, replicas.length);
+		assertNotSame(replicas[0], replicas[1]);
+		assertNotSame(replicas[1], replicas[2]);
+		assertNotSame(replicas[0], replicas[2]);
+		assertEquals(4, master.findReplicas("key", 6).length);
+	}
+	
 	@Test
 	public void slaveTimesOutTestP1() {
 		fail();
@@ -240,5 +275,504 @@ public class TPCMasterTest {
 		fail();
 	}
 	
+	/**
+	 * Starts a fake slave that answers every message from the master after a
+	 * delay: phase-1 requests with the given vote, decisions with an ACK,
+	 * and GETs with a value named after the key. Every message it receives
+	 * is recorded in received.
+	 */
+	private ServerRunner fakeSlave(int port, int delay, KVMessage vote,
+			List<String> received) throws Exception {
+		return fakeSlave(port, delay, delay, vote, received);
+	}
+
+	/**
+	 * As above, but votes after voteDelay and answers everything else
+	 * after delay.
+	 */
+	private ServerRunner fakeSlave(int port, final int voteDelay, final int delay,
+			final KVMessage vote, final List<String> received) throws Exception {
+		final MessageHandler slave = new MessageHandler() {
+			@Override
+			public KVMessage process(KVMessage request) throws KVException {
+				received.add(request.getMsgType());
+				boolean voting = request.getMsgType().equals(KVConstants.PUT_REQ)
+						|| request.getMsgType().equals(KVConstants.DEL_REQ)
+						|| request.getMsgType().equals(KVConstants.BATCH_REQ);
+				try {
+					Thread.sleep(voting ? voteDelay : delay);
+				} catch (InterruptedException e) {
+				}
+				if (voting) {
+					return vote;
+				}
+				if (request.getMsgType().equals(KVConstants.GET_REQ)) {
+					KVMessage response = new KVMessage(KVConstants.RESP);
+					response.setKey(request.getKey());
+					response.setValue("value of " + request.getKey());
+					return response;
+				}
+				return new KVMessage(KVConstants.ACK);
+			}
+		};
+		SocketServer ss = new SocketServer(InetAddress.getLocalHost().getHostAddress(), port);
+		ss.addHandler(new NetworkHandler() {
+			@Override
+			public void handle(final Socket sock) {
+				new Thread() {
+					@Override
+					public void run() {
+						new KVConnection(sock).serve(slave);
+					}
+				}.start();
+			}
+		});
+		ServerRunner runner = new ServerRunner(ss, "fake slave " + port);
+		runner.start();
+		return runner;
+	}
+
+	/**
+	 * Describes a slave at the address fakeSlave listens on.
+	 */
+	private TPCSlaveInfo fakeSlaveInfo(long slaveID, int port) throws Exception {
+		return new TPCSlaveInfo(slaveID + "@" + InetAddress.getLocalHost().getHostAddress() + ":" + port);
+	}
+
+	@Test(timeout = 20000)
+	public void phasesContactReplicasConcurrently() throws Exception {
+		int delay = 400;
+		List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		List<String> second = Collections.synchronizedList(new ArrayList<String>());
+		ServerRunner slave1 = fakeSlave(8091, delay, new KVMessage(KVConstants.READY), first);
+		ServerRunner slave2 = fakeSlave(8092, delay, new KVMessage(KVConstants.READY), second);
+		try {
+			TPCMaster master = new TPCMaster(2, new KVCache(1, 4));
+			master.registerSlave(fakeSlaveInfo(1, 8091));
+			master.registerSlave(fakeSlaveInfo(2, 8092));
+			KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+			put.setKey("foo");
+			put.setValue("bar");
+
+			long start = System.currentTimeMillis();
+			master.handleTPCRequest(put, true);
+			long elapsed = System.currentTimeMillis() - start;
+
+			// one delay per phase, not one per replica per phase
+			assertTrue("took " + elapsed + "ms", elapsed < 3 * delay);
+			assertEquals(first, second);
+			assertEquals(KVConstants.PUT_REQ, first.get(0));
+			assertEquals(KVConstants.COMMIT, first.get(1));
+			assertEquals("bar", master.handleGet(put));
+		} finally {
+			slave1.stop();
+			slave2.stop();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void unrelatedKeysCommitConcurrently() throws Exception {
+		final int delay = 400;
+		List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		List<String> second = Collections.synchronizedList(new ArrayList<String>());
+		ServerRunner slave1 = fakeSlave(8095, delay, new KVMessage(KVConstants.READY), first);
+		ServerRunner slave2 = fakeSlave(8096, delay, new KVMessage(KVConstants.READY), second);
+		try {
+			// "a" and "b" fall in different sets of the master cache
+			final TPCMaster master = new TPCMaster(2, new KVCache(10, 4));
+			master.registerSlave(fakeSlaveInfo(1, 8095));
+			master.registerSlave(fakeSlaveInfo(2, 8096));
+			Thread[] writers = new Thread[2];
+			final KVException[] errors = new KVException[2];
+			String[] keys = { "a", "b" };
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < writers.length; i++) {
+				final int n = i;
+				final KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+				put.setKey(keys[i]);
+				put.setValue("value");
+				writers[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							master.handleTPCRequest(put, true);
+						} catch (KVException kve) {
+							errors[n] = kve;
+						}
+					}
+				};
+				writers[i].start();
+			}
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			assertNull(errors[0]);
+			assertNull(errors[1]);
+			// the two transactions overlap instead of running back to back
+			assertTrue("took " + elapsed + "ms", elapsed < 3 * delay);
+		} finally {
+			slave1.stop();
+			slave2.stop();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void concurrentWritesShareOneRound() throws Exception {
+		List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		List<String> second = Collections.synchronizedList(new ArrayList<String>());
+		ServerRunner slave1 = fakeSlave(8097, 0, new KVMessage(KVConstants.READY), first);
+		ServerRunner slave2 = fakeSlave(8098, 0, new KVMessage(KVConstants.READY), second);
+		try {
+			final TPCMaster master = new TPCMaster(2, new KVCache(10, 4));
+			master.registerSlave(fakeSlaveInfo(1, 8097));
+			master.registerSlave(fakeSlaveInfo(2, 8098));
+			master.setBatching(4, 2000);
+			Thread[] writers = new Thread[4];
+			final KVException[] errors = new KVException[writers.length];
+			for (int i = 0; i < writers.length; i++) {
+				final int n = i;
+				final KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+				put.setKey("key" + i);
+				put.setValue("value" + i);
+				writers[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							master.handleTPCRequest(put, true);
+						} catch (KVException kve) {
+							errors[n] = kve;
+						}
+					}
+				};
+				writers[i].start();
+			}
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			for (KVException error : errors) {
+				assertNull(error);
+			}
+			// a full batch goes out without waiting out the window
+			assertEquals(2, first.size());
+			assertEquals(KVConstants.BATCH_REQ, first.get(0));
+			assertEquals(KVConstants.COMMIT, first.get(1));
+			assertEquals(first, second);
+			for (int i = 0; i < writers.length; i++) {
+				KVMessage get = new KVMessage(KVConstants.GET_REQ);
+				get.setKey("key" + i);
+				assertEquals("value" + i, master.handleGet(get));
+			}
+		} finally {
+			slave1.stop();
+			slave2.stop();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void failedBatchFailsItsFollowers() throws Exception {
+		List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		List<String> second = Collections.synchronizedList(new ArrayList<String>());
+		ServerRunner slave1 = fakeSlave(8112, 0, new KVMessage(KVConstants.READY), first);
+		ServerRunner slave2 = fakeSlave(8113, 0, new KVMessage(KVConstants.READY), second);
+		try {
+			final TPCMaster master = new TPCMaster(2, new KVCache(10, 4) {
+				@Override
+				public void put(String key, String value) {
+					if ("key3".equals(key)) {
+						throw new IllegalStateException("cache broke");
+					}
+					super.put(key, value);
+				}
+			});
+			master.registerSlave(fakeSlaveInfo(1, 8112));
+			master.registerSlave(fakeSlaveInfo(2, 8113));
+			master.setBatching(4, 2000);
+			Thread[] writers = new Thread[4];
+			final Throwable[] errors = new Throwable[writers.length];
+			for (int i = 0; i < writers.length; i++) {
+				final int n = i;
+				final KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+				put.setKey("key" + i);
+				put.setValue("value" + i);
+				writers[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							master.handleTPCRequest(put, true);
+						} catch (Throwable t) {
+							errors[n] = t;
+						}
+					}
+				};
+				writers[i].start();
+			}
+			for (Thread writer : writers) {
+				writer.join();
+			}
+			assertEquals(KVConstants.BATCH_REQ, first.get(0));
+			// the request that broke the batch must not be reported as done
+			assertNotNull(errors[3]);
+			for (Throwable error : errors) {
+				if (error instanceof KVException) {
+					assertEquals(KVConstants.ERROR_BATCH_FAILED,
+							((KVException) error).getKVMessage().getMessage());
+				} else if (error != null) {
+					assertTrue(error instanceof IllegalStateException);
+				}
+			}
+		} finally {
+			slave1.stop();
+			slave2.stop();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void abortVoteAbortsBothReplicas() throws Exception {
+		List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		List<String> second = Collections.synchronizedList(new ArrayList<String>());
+		ServerRunner slave1 = fakeSlave(8093, 0, new KVMessage(KVConstants.READY), first);
+		ServerRunner slave2 = fakeSlave(8094, 0,
+				new KVMessage(KVConstants.ABORT, KVConstants.ERROR_OVERSIZED_VALUE), second);
+		try {
+			TPCMaster master = new TPCMaster(2, new KVCache(1, 4));
+			master.registerSlave(fakeSlaveInfo(1, 8093));
+			master.registerSlave(fakeSlaveInfo(2, 8094));
+			KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+			put.setKey("foo");
+			put.setValue("bar");
+			try {
+				master.handleTPCRequest(put, true);
+				fail("put should abort");
+			} catch (KVException kve) {
+				assertEquals(KVConstants.ERROR_OVERSIZED_VALUE, kve.getKVMessage().getMessage());
+			}
+			assertEquals(KVConstants.ABORT, first.get(1));
+			assertEquals(KVConstants.ABORT, second.get(1));
+		} finally {
+			slave1.stop();
+			slave2.stop();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void replicationFactorThreeUsesEveryReplica() throws Exception {
+		try {
+			new TPCMaster(2, new KVCache(1, 4), 3);
+			fail("two slaves cannot hold three replicas");
+		} catch (IllegalArgumentException expected) {
+		}
+		List<List<String>> received = new ArrayList<List<String>>();
+		ServerRunner[] slaves = new ServerRunner[3];
+		TPCMaster master = new TPCMaster(3, new KVCache(1, 4), 3);
+		try {
+			for (int i = 0; i < slaves.length; i++) {
+				received.add(Collections.synchronizedList(new ArrayList<String>()));
+				slaves[i] = fakeSlave(8099 + i, 0, new KVMessage(KVConstants.READY), received.get(i));
+				master.registerSlave(fakeSlaveInfo(i + 1, 8099 + i));
+			}
+			KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+			put.setKey("foo");
+			put.setValue("bar");
+			master.handleTPCRequest(put, true);
+			for (List<String> messages : received) {
+				assertEquals(KVConstants.PUT_REQ, messages.get(0));
+				assertEquals(KVConstants.COMMIT, messages.get(1));
+			}
+
+			// every key misses the master cache; reads are shared by all replicas
+			for (int i = 0; i < 30; i++) {
+				KVMessage get = new KVMessage(KVConstants.GET_REQ);
+				get.setKey("key" + i);
+				assertEquals("value of key" + i, master.handleGet(get));
+			}
+			for (List<String> messages : received) {
+				assertTrue(messages.contains(KVConstants.GET_REQ));
+			}
+		} finally {
+			for (ServerRunner slave : slaves) {
+				if (slave != null) slave.stop();
+			}
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void slowReplicaIsHedged() throws Exception {
+		int slowDelay = 1500;
+		ServerRunner fast = fakeSlave(8102, 0, new KVMessage(KVConstants.READY),
+				Collections.synchronizedList(new ArrayList<String>()));
+		ServerRunner slow = fakeSlave(8103, slowDelay, new KVMessage(KVConstants.READY),
+				Collections.synchronizedList(new ArrayList<String>()));
+		try {
+			TPCMaster master = new TPCMaster(2, new KVCache(1, 4));
+			master.registerSlave(fakeSlaveInfo(1, 8102));
+			master.registerSlave(fakeSlaveInfo(2, 8103));
+			assertEquals(TPCMaster.TIMEOUT / 10, master.getHedgeDelay());
+			for (int i = 0; i < 20; i++) {
+				KVMessage get = new KVMessage(KVConstants.GET_REQ);
+				get.setKey("key" + i);
+				long start = System.currentTimeMillis();
+				assertEquals("value of key" + i, master.handleGet(get));
+				long elapsed = System.currentTimeMillis() - start;
+				// reads that start at the slow replica go to the fast one too
+				assertTrue("took " + elapsed + "ms", elapsed < slowDelay);
+			}
+			assertTrue(master.getHedgeRate() > 0);
+			assertTrue(master.getHedgeRate() < 1);
+			// only the fast replica ever answered, so the delay has come down
+			assertTrue(master.getHedgeDelay() < TPCMaster.TIMEOUT / 10);
+		} finally {
+			fast.stop();
+			slow.stop();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void readsPreferTheFasterReplica() throws Exception {
+		List<String> fastReceived = Collections.synchronizedList(new ArrayList<String>());
+		List<String> slowReceived = Collections.synchronizedList(new ArrayList<String>());
+		ServerRunner fast = fakeSlave(8104, 0, new KVMessage(KVConstants.READY), fastReceived);
+		ServerRunner slow = fakeSlave(8105, 200, new KVMessage(KVConstants.READY), slowReceived);
+		try {
+			TPCMaster master = new TPCMaster(2, new KVCache(1, 4));
+			master.registerSlave(fakeSlaveInfo(1, 8104));
+			master.registerSlave(fakeSlaveInfo(2, 8105));
+			master.setHedging(0);
+			for (int i = 0; i < 20; i++) {
+				KVMessage get = new KVMessage(KVConstants.GET_REQ);
+				get.setKey("key" + i);
+				assertEquals("value of key" + i, master.handleGet(get));
+			}
+			// the slow replica may be tried before either has been timed, never after
+			assertTrue(slowReceived.size() + " reads went to the slow replica",
+					slowReceived.size() <= 1);
+			assertTrue(fastReceived.size() >= 19);
+		} finally {
+			fast.stop();
+			slow.stop();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void connectionsToSlavesAreReused() throws Exception {
+		List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		List<String> second = Collections.synchronizedList(new ArrayList<String>());
+		ServerRunner slave1 = fakeSlave(8106, 0, new KVMessage(KVConstants.READY), first);
+		ServerRunner slave2 = fakeSlave(8107, 0, new KVMessage(KVConstants.READY), second);
+		try {
+			TPCMaster master = new TPCMaster(2, new KVCache(1, 4));
+			TPCSlaveInfo info1 = fakeSlaveInfo(1, 8106);
+			TPCSlaveInfo info2 = fakeSlaveInfo(2, 8107);
+			master.registerSlave(info1);
+			master.registerSlave(info2);
+			for (int i = 0; i < 5; i++) {
+				KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+				put.setKey("key" + i);
+				put.setValue("value");
+				master.handleTPCRequest(put, true);
+				KVMessage get = new KVMessage(KVConstants.GET_REQ);
+				get.setKey("other" + i);
+				assertEquals("value of other" + i, master.handleGet(get));
+			}
+			assertEquals(10, first.size() - Collections.frequency(first, KVConstants.GET_REQ));
+			// both phases of every transaction, and every GET, on one connection
+			assertEquals(1, info1.getOpenConnections());
+			assertEquals(1, info2.getOpenConnections());
+		} finally {
+			slave1.stop();
+			slave2.stop();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void lateVoteIsNotTakenForAnAck() throws Exception {
+		List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		List<String> second = Collections.synchronizedList(new ArrayList<String>());
+		ServerRunner slave1 = fakeSlave(8108, TPCMaster.TIMEOUT + 500, 0,
+				new KVMessage(KVConstants.READY), first);
+		ServerRunner slave2 = fakeSlave(8109, 0, new KVMessage(KVConstants.READY), second);
+		try {
+			TPCMaster master = new TPCMaster(2, new KVCache(1, 4));
+			master.registerSlave(fakeSlaveInfo(1, 8108));
+			master.registerSlave(fakeSlaveInfo(2, 8109));
+			KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+			put.setKey("foo");
+			put.setValue("bar");
+			try {
+				master.handleTPCRequest(put, true);
+				fail("put should abort");
+			} catch (KVException kve) {
+				// the reason for the abort, not the READY arriving after it
+				assertEquals(KVConstants.ERROR_SOCKET_TIMEOUT, kve.getKVMessage().getMessage());
+			}
+			assertEquals(KVConstants.ABORT, first.get(1));
+			assertEquals(KVConstants.ABORT, second.get(1));
+		} finally {
+			slave1.stop();
+			slave2.stop();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void slowConnectDoesNotHoldUpOtherReplicas() throws Exception {
+		List<String> first = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> second = Collections.synchronizedList(new ArrayList<String>());
+		ServerRunner slave1 = fakeSlave(8110, 0, new KVMessage(KVConstants.READY), first);
+		ServerRunner slave2 = fakeSlave(8111, 0, new KVMessage(KVConstants.READY), second);
+		List<KVConnection> held = new ArrayList<KVConnection>();
+		TPCSlaveInfo info1 = fakeSlaveInfo(1, 8110);
+		try {
+			final TPCMaster master = new TPCMaster(2, new KVCache(1, 4));
+			master.registerSlave(info1);
+			master.registerSlave(fakeSlaveInfo(2, 8111));
+			String key = null;
+			for (int i = 0; key == null; i++) {
+				if (master.findFirstReplica("key" + i).getSlaveID() == 1) key = "key" + i;
+			}
+			// no connection to the first replica can be had before the deadline
+			for (int i = 0; i < TPCSlaveInfo.MAX_CONNECTIONS; i++) {
+				held.add(info1.borrowConnection(TPCMaster.TIMEOUT, false));
+			}
+			final KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+			put.setKey(key);
+			put.setValue("bar");
+			final KVException[] error = new KVException[1];
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						master.handleTPCRequest(put, true);
+					} catch (KVException kve) {
+						error[0] = kve;
+					}
+				}
+			};
+			long start = System.currentTimeMillis();
+			writer.start();
+			while (!second.contains(KVConstants.PUT_REQ)) {
+				assertTrue("second replica was not asked to vote in time",
+						System.currentTimeMillis() - start < TPCMaster.TIMEOUT / 2);
+				Thread.sleep(10);
+			}
+			// let the vote on the first replica time out, then let the
+			// decision through
+			Thread.sleep(start + TPCMaster.TIMEOUT + 500 - System.currentTimeMillis());
+			for (KVConnection connection : held) {
+				info1.releaseConnection(connection, false);
+			}
+			held.clear();
+			writer.join();
+			assertNotNull("put should abort", error[0]);
+			assertEquals(KVConstants.ERROR_SOCKET_TIMEOUT, error[0].getKVMessage().getMessage());
+			assertEquals(KVConstants.ABORT, second.get(1));
+		} finally {
+			for (KVConnection connection : held) {
+				info1.releaseConnection(connection, false);
+			}
+			slave1.stop();
+			slave2.stop();
+		}
+	}
+
 	//thenCallRealMethod()
 }
@@ -2,6 +2,10 @@ package kvstore;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
 import org.junit.*;
 
 public class TPCSlaveInfoTest {
@@ -159,5 +163,94 @@ public class TPCSlaveInfoTest {
         	assertEquals(KVConstants.ERROR_INVALID_FORMAT, kve.getKVMessage().getMessage());
         }
     }
-	
+
+    /**
+     * The read score is the latency average scaled by the reads in flight.
+     */
+    @Test
+    public void readScoreWeighsLatencyAndLoad() throws KVException {
+        TPCSlaveInfo slave = new TPCSlaveInfo("10@hello:50");
+        assertEquals(0, slave.getReadScore(), 0);
+
+        slave.startRead();
+        slave.finishRead(1000000);
+        double idle = slave.getReadScore();
+        assertTrue(idle > 900000 && idle <= 1000000);
+
+        slave.startRead();
+        slave.startRead();
+        assertEquals(2, slave.getReadsInFlight());
+        assertTrue(slave.getReadScore() > 2.5 * idle);
+
+        // a slow read moves the average up, but only part of the way
+        slave.finishRead(11000000);
+        slave.finishRead(11000000);
+        double busy = slave.getReadScore();
+        assertTrue(busy > 4000000 && busy < 11000000);
+    }
+
+    /**
+     * Idle connections are closed in the background, without a borrower.
+     */
+    @Test(timeout = 10000)
+    public void idleConnectionsAreEvicted() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        ExclusiveConnectionPool pool = new ExclusiveConnectionPool(2, 200) {
+            @Override
+            protected KVConnection openConnection(int timeout) throws KVException {
+                try {
+                    return new KVConnection(new Socket("localhost", server.getLocalPort()), true);
+                } catch (IOException e) {
+                    throw new KVException(KVConstants.ERROR_COULD_NOT_CONNECT);
+                }
+            }
+        };
+        try {
+            pool.giveBack(pool.borrow(1000, false));
+            assertEquals(1, pool.idleCount());
+            while (pool.size() > 0) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, pool.idleCount());
+        } finally {
+            pool.close();
+            server.close();
+        }
+    }
+
+    /**
+     * A connection with a response read ahead into its buffer is not reused.
+     */
+    @Test(timeout = 10000)
+    public void connectionWithBufferedResponseIsDropped() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        ExclusiveConnectionPool pool = new ExclusiveConnectionPool(2, 60000) {
+            @Override
+            protected KVConnection openConnection(int timeout) throws KVException {
+                try {
+                    return new KVConnection(new Socket("localhost", server.getLocalPort()), true);
+                } catch (IOException e) {
+                    throw new KVException(KVConstants.ERROR_COULD_NOT_CONNECT);
+                }
+            }
+        };
+        try {
+            KVConnection connection = pool.borrow(1000, false);
+            KVConnection peer = new KVConnection(server.accept(), true);
+            peer.send(new KVMessage(KVConstants.RESP, KVConstants.SUCCESS));
+            peer.send(new KVMessage(KVConstants.RESP, KVConstants.SUCCESS));
+            Thread.sleep(200);
+            connection.receive(1000);
+            // the second response sits in the buffer, not on the socket
+            assertEquals(0, connection.getSocket().getInputStream().available());
+            pool.giveBack(connection);
+            assertEquals(0, pool.idleCount());
+            assertEquals(0, pool.size());
+            peer.close();
+        } finally {
+            pool.close();
+            server.close();
+        }
+    }
+
 }
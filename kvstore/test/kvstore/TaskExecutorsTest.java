@@ -0,0 +1,69 @@
+package kvstore;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+public class TaskExecutorsTest {
+
+    @Test(timeout = 10000)
+    public void virtualThreadsAreNotCapped() throws InterruptedException {
+        Executor executor = TaskExecutors.virtualThreadPerTask();
+        final CountDownLatch started = new CountDownLatch(200);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 200; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+        }
+        // every job is blocked at once, none waits for another to finish
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test(timeout = 10000)
+    public void virtualThreadsAvailableOnModernJDK() throws Exception {
+        boolean hasVirtual;
+        try {
+            Thread.class.getMethod("isVirtual");
+            hasVirtual = true;
+        } catch (NoSuchMethodException e) {
+            hasVirtual = false;
+        }
+        assertEquals(hasVirtual, TaskExecutors.virtualThreadsAvailable());
+    }
+
+    @Test(timeout = 15000)
+    public void serverOnVirtualThreads() throws Exception {
+        String hostname = InetAddress.getLocalHost().getHostAddress();
+        SocketServer ss = new SocketServer(hostname, 8083);
+        ss.addHandler(new ServerClientHandler(new KVServer(100, 10),
+            TaskExecutors.virtualThreadPerTask()));
+        ServerRunner runner = new ServerRunner(ss, "virtual thread server");
+        runner.start();
+        try {
+            // keep-alive connections each hold a thread of their own
+            KVClient first = new KVClient(hostname, 8083, 1);
+            KVClient second = new KVClient(hostname, 8083, 1);
+            first.put("foo", "bar");
+            assertEquals("bar", second.get("foo"));
+            assertEquals("bar", new KVClient(hostname, 8083).get("foo"));
+            first.close();
+            second.close();
+        } finally {
+            runner.stop();
+        }
+    }
+
+}
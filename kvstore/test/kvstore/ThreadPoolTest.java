@@ -3,7 +3,13 @@ package kvstore;
 import static org.junit.Assert.*;
 import org.junit.*;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -161,4 +167,133 @@ public class ThreadPoolTest {
         */
     }
 
+    @Test(timeout = 10000)
+    public void jobsRunOnResidentWorkers() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(2);
+        final Set<Thread> ran = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch done = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            pool.addJob(new Runnable() {
+                public void run() {
+                    ran.add(Thread.currentThread());
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        assertTrue(ran.size() <= 2);
+    }
+
+    @Test(timeout = 10000)
+    public void failingJobDoesNotKillWorker() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        pool.addJob(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("job failed");
+            }
+        });
+        pool.addJob(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void boundedQueueRejectionPolicies() throws InterruptedException {
+        for (ThreadPool.RejectionPolicy policy : ThreadPool.RejectionPolicy.values()) {
+            ThreadPool pool = new ThreadPool(1, 1, policy);
+            final CountDownLatch release = new CountDownLatch(1);
+            Runnable blocker = new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+            assertTrue(pool.addJob(blocker));
+            while (pool.getActiveWorkers() == 0) {
+                Thread.sleep(10);
+            }
+            assertTrue(pool.addJob(blocker));
+            assertEquals(1, pool.getQueueDepth());
+
+            final Thread[] ranOn = new Thread[1];
+            boolean accepted = pool.addJob(new Runnable() {
+                public void run() {
+                    ranOn[0] = Thread.currentThread();
+                }
+            });
+            if (policy == ThreadPool.RejectionPolicy.CALLER_RUNS) {
+                assertTrue(accepted);
+                assertEquals(Thread.currentThread(), ranOn[0]);
+            } else {
+                assertFalse(accepted);
+                assertNull(ranOn[0]);
+            }
+            release.countDown();
+            while (pool.getQueueDepth() > 0 || pool.getActiveWorkers() > 0) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void callerRunsRefusesConnectionJobs() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1, 1, ThreadPool.RejectionPolicy.CALLER_RUNS);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        assertTrue(pool.addJob(blocker));
+        while (pool.getActiveWorkers() == 0) {
+            Thread.sleep(10);
+        }
+        assertTrue(pool.addJob(blocker));
+
+        final Thread[] ranOn = new Thread[1];
+        assertFalse(pool.addJob(new ThreadPool.ConnectionJob() {
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+            }
+        }));
+        assertNull(ranOn[0]);
+        assertFalse(ThreadPool.dropsRejected(pool));
+        release.countDown();
+    }
+
+    @Test(timeout = 10000)
+    public void executeThrowsWhenQueueIsFull() throws InterruptedException {
+        ThreadPool pool = new ThreadPool(1, 1, ThreadPool.RejectionPolicy.REJECT);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        pool.execute(blocker);
+        while (pool.getActiveWorkers() == 0) {
+            Thread.sleep(10);
+        }
+        pool.execute(blocker);
+        try {
+            pool.execute(blocker);
+            fail("execute should reject a job when the queue is full");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        release.countDown();
+    }
+
 }